@@ -0,0 +1,52 @@
+package com.github.endoscope.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks and writes JMH results as JSON files to directory given with
+ * endoscope.benchmarks.dir system property (benchmark-results by default):
+ * <ul>
+ * <li>monitor-threads-N.json - {@link MonitorBenchmark} with N threads sharing single engine</li>
+ * <li>hot-paths.json - all other benchmarks</li>
+ * </ul>
+ * When any arguments are given they are passed to JMH as is, e.g. "MergeBenchmark -rf json".
+ */
+public class BenchmarksMain {
+    private static final int[] MONITOR_THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        File dir = new File(System.getProperty("endoscope.benchmarks.dir", "benchmark-results"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("cannot create results directory: " + dir.getAbsolutePath());
+        }
+        for (int threads : MONITOR_THREADS) {
+            run(new OptionsBuilder()
+                    .include(MonitorBenchmark.class.getSimpleName())
+                    .threads(threads), new File(dir, "monitor-threads-" + threads + ".json"));
+        }
+        run(new OptionsBuilder()
+                .include(CurrentStatsBenchmark.class.getSimpleName())
+                .include(StatsStoreBenchmark.class.getSimpleName())
+                .include(MergeBenchmark.class.getSimpleName())
+                .include(JsonBenchmark.class.getSimpleName())
+                .include(GzipStorageBenchmark.class.getSimpleName())
+                .include(JdbcStorageBenchmark.class.getSimpleName()), new File(dir, "hot-paths.json"));
+    }
+
+    private static void run(ChainedOptionsBuilder options, File result) throws RunnerException {
+        new Runner(options
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getAbsolutePath())
+                .build()).run();
+    }
+}
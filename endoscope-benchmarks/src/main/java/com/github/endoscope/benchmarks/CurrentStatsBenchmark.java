@@ -0,0 +1,51 @@
+package com.github.endoscope.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.endoscope.core.Context;
+import com.github.endoscope.core.CurrentStats;
+import com.github.endoscope.core.CurrentStatsAsyncTasks;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing finished call tree over to collector - includes creating the tree as collector releases
+ * stored trees to context pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CurrentStatsBenchmark {
+    private CurrentStats currentStats;
+    private CurrentStatsAsyncTasks tasks;
+
+    @Setup
+    public void setUp() {
+        currentStats = new CurrentStats();
+        tasks = new CurrentStatsAsyncTasks(currentStats, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tasks.stopStatsProcessorThread();
+    }
+
+    @Benchmark
+    public int add() {
+        int shard = currentStats.add(new Context("root", 1000000));
+        tasks.triggerAsyncTask(shard);
+        return shard;
+    }
+}
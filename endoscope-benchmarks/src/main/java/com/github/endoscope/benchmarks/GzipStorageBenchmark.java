@@ -0,0 +1,69 @@
+package com.github.endoscope.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.github.endoscope.core.Stats;
+import com.github.endoscope.storage.gzip.GzipStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading stats in temporary directory. Saves overwrite the same file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GzipStorageBenchmark {
+    @Param({"10", "100"})
+    public int roots;
+
+    private Path dir;
+    private GzipStorage storage;
+    private Stats stats;
+    private String savedId;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("endoscope-benchmark");
+        storage = new GzipStorage();
+        storage.setup(dir.toString());
+        stats = Trees.stats(roots, 3, 5);
+        savedId = storage.save(stats, "benchmark", "load");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public String save() {
+        return storage.save(stats, "benchmark", "save");
+    }
+
+    @Benchmark
+    public Stats load() {
+        return storage.load(savedId);
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.endoscope.benchmarks;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import com.github.endoscope.core.Stats;
+import com.github.endoscope.storage.jdbc.DataSourceProvider;
+import com.github.endoscope.storage.jdbc.JdbcStorage;
+import com.github.endoscope.storage.jdbc.Schema;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving stats to embedded in-memory H2. Tables are recreated before each iteration so database doesn't keep growing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdbcStorageBenchmark {
+    private static JdbcDataSource ds;
+
+    @Param({"10", "100"})
+    public int roots;
+
+    private JdbcStorage storage;
+    private Stats stats;
+
+    public static class H2Provider implements DataSourceProvider {
+        @Override
+        public DataSource create(String initParam) {
+            return ds;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1;DATABASE_TO_UPPER=false;");
+        storage = new JdbcStorage();
+        storage.setup(H2Provider.class.getName());
+        stats = Trees.stats(roots, 3, 5);
+    }
+
+    @Setup(Level.Iteration)
+    public void recreateTables() throws SQLException {
+        try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        }
+        Schema.createH2Tables(ds);
+    }
+
+    @Benchmark
+    public String save() {
+        return storage.save(stats, "benchmark", "save");
+    }
+}
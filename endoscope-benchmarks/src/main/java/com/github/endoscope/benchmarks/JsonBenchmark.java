@@ -0,0 +1,56 @@
+package com.github.endoscope.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.endoscope.core.Stats;
+import com.github.endoscope.util.JsonUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stats serialization used by storages and UI.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"10", "100"})
+    public int roots;
+
+    private final JsonUtil jsonUtil = new JsonUtil();
+    private Stats stats;
+    private String json;
+
+    @Setup
+    public void setUp() {
+        stats = Trees.stats(roots, 3, 5);
+        json = jsonUtil.toJson(stats);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return jsonUtil.toJson(stats);
+    }
+
+    @Benchmark
+    public Stats fromJson() {
+        return jsonUtil.fromJson(Stats.class, json);
+    }
+
+    @Benchmark
+    public Stats roundTrip() {
+        return jsonUtil.fromJson(Stats.class, jsonUtil.toJson(stats));
+    }
+}
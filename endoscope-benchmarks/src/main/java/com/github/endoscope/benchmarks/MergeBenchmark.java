@@ -0,0 +1,57 @@
+package com.github.endoscope.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.endoscope.core.Stat;
+import com.github.endoscope.core.Stats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging large trees as done when aggregating saved stats and merging shards.
+ * Target already has all stats so only counters get updated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark {
+    @Param({"100", "1000"})
+    public int roots;
+
+    private Stats source;
+    private Stats target;
+    private Stat sourceStat;
+    private Stat targetStat;
+
+    @Setup
+    public void setUp() {
+        source = Trees.stats(roots, 3, 5);
+        target = source.deepCopy();
+        sourceStat = source.getMap().get("root0");
+        targetStat = sourceStat.deepCopy();
+    }
+
+    @Benchmark
+    public Stats statsMerge() {
+        target.merge(source, true);
+        return target;
+    }
+
+    @Benchmark
+    public Stat statMerge() {
+        targetStat.merge(sourceStat, true);
+        return targetStat;
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.endoscope.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.endoscope.core.Engine;
+import com.github.endoscope.properties.Properties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Nested {@link Engine#monitor(String, Runnable)} calls as seen by monitored application - with collector thread
+ * running in background. All benchmark threads share single engine so running it with more threads
+ * (see {@link BenchmarksMain}) shows contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorBenchmark {
+    @Param({"1", "5", "20"})
+    public int depth;
+
+    private Engine engine;
+    private Runnable call;
+
+    @Setup
+    public void setUp() {
+        System.setProperty(Properties.ENABLED, "true");
+        engine = new Engine();
+
+        Runnable call = () -> {};
+        for (int level = depth - 1; level >= 0; level--) {
+            String id = "level" + level;
+            Runnable nested = call;
+            call = () -> engine.monitor(id, nested);
+        }
+        this.call = call;
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.getCurrentStatsAsyncTasks().stopStatsProcessorThread();
+    }
+
+    @Benchmark
+    public void monitor() {
+        call.run();
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.endoscope.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.endoscope.core.Context;
+import com.github.endoscope.core.Stats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collector side of storing single call tree in stats that already contain it.
+ * Trees grow in depth only (see {@link Trees#deepTree(String, int, int)}) so deep ones stay small enough.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsStoreBenchmark {
+    @Param({"1", "3", "10", "20"})
+    public int depth;
+
+    @Param({"1", "5"})
+    public int fanout;
+
+    private Stats stats;
+    private Context tree;
+
+    @Setup
+    public void setUp() {
+        stats = new Stats(true);
+        tree = Trees.deepTree("root", depth, fanout);
+    }
+
+    @Benchmark
+    public Stats store() {
+        stats.store(tree);
+        return stats;
+    }
+}
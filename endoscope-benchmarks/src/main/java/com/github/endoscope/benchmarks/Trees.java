@@ -0,0 +1,70 @@
+package com.github.endoscope.benchmarks;
+
+import java.util.Date;
+
+import com.github.endoscope.core.Context;
+import com.github.endoscope.core.Stats;
+
+/**
+ * Call trees and stats of predictable shape used by benchmarks.
+ */
+final class Trees {
+    private Trees() {
+    }
+
+    /**
+     * @param depth levels below root
+     * @param fanout children of each call
+     */
+    static Context tree(String root, int depth, int fanout) {
+        Context context = new Context(root, 1000000);
+        addChildren(context, 1, depth, fanout);
+        return context;
+    }
+
+    private static void addChildren(Context parent, int level, int depth, int fanout) {
+        if (level > depth) {
+            return;
+        }
+        for (int i = 0; i < fanout; i++) {
+            Context child = new Context("level" + level + "-" + i, 100000 / level);
+            parent.addChild(child);
+            addChildren(child, level + 1, depth, fanout);
+        }
+    }
+
+    /**
+     * Tree which grows in depth only: each call has fanout children and the first of them has children of its own.
+     * @param depth levels below root
+     * @param fanout children of each call
+     */
+    static Context deepTree(String root, int depth, int fanout) {
+        Context context = new Context(root, 1000000);
+        Context parent = context;
+        for (int level = 1; level <= depth; level++) {
+            Context next = null;
+            for (int i = 0; i < fanout; i++) {
+                Context child = new Context("level" + level + "-" + i, 100000 / level);
+                parent.addChild(child);
+                if (next == null) {
+                    next = child;
+                }
+            }
+            parent = next;
+        }
+        return context;
+    }
+
+    /**
+     * @return stats of given number of roots - each with full tree of calls
+     */
+    static Stats stats(int roots, int depth, int fanout) {
+        Stats stats = new Stats(true);
+        for (int i = 0; i < roots; i++) {
+            stats.store(tree("root" + i, depth, fanout));
+        }
+        stats.setStartDate(new Date(0));
+        stats.setEndDate(new Date(60000));
+        return stats;
+    }
+}
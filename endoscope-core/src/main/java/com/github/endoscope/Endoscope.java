@@ -3,9 +3,13 @@ package com.github.endoscope;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
+import com.github.endoscope.core.CollectorMetrics;
 import com.github.endoscope.core.Engine;
 import com.github.endoscope.core.ExceptionalSupplier;
+import com.github.endoscope.core.SelfMetrics;
 import com.github.endoscope.core.Stats;
+import com.github.endoscope.core.StatsDiff;
+import com.github.endoscope.properties.Properties;
 import com.github.endoscope.storage.Storage;
 
 public class Endoscope {
@@ -50,9 +54,10 @@ public class Endoscope {
     }
 
     /**
-     * This method blocks stats updating thread from storing new data.
+     * Function gets snapshot of stats published by stats updating thread (see {@link Properties#SNAPSHOT_MAX_AGE_MS})
+     * or, when that thread doesn't run, locked stats which block storing new data.
      * Please do your job as quickly as possible otherwise internal queue will reach limit and you'll loose some data.
-     * Do not expose objects outside - deep copy such object in order to keep it thread safe.
+     * Snapshot is shared with other readers - do not modify it and deep copy objects you expose outside.
      * @param function
      */
     public static <T> T processStats(Function<Stats, T> function){
@@ -70,6 +75,17 @@ public class Endoscope {
         return result[0];
     }
 
+    /**
+     * Returns stats changed since given generation - cheap way of polling for changes.
+     * Apply it to stats seen before with {@link StatsDiff#applyTo(Stats)} and pass {@link StatsDiff#getGeneration()}
+     * next time. Diff is full after stats reset, with multiple stats shards and when changes could not be tracked.
+     * @param generation generation of stats seen before or 0
+     * @return
+     */
+    public static StatsDiff getCurrentStatsDiff(long generation){
+        return processStats(stats -> stats.diffSince(generation));
+    }
+
     /**
      * Access to stored stats.
      * @return null if not supported
@@ -90,4 +106,18 @@ public class Endoscope {
     public static long getQueueSize(){
         return ENGINE.getCurrentStats().getQueueSize();
     }
+
+    /**
+     * Drain rate and lag of thread that moves collected data to current stats.
+     */
+    public static CollectorMetrics getCollectorMetrics(){
+        return ENGINE.getCurrentStats().getCollectorMetrics();
+    }
+
+    /**
+     * @return cost of Endoscope itself - also available as {@link SelfMetrics#OBJECT_NAME} MBean
+     */
+    public static SelfMetrics getSelfMetrics(){
+        return ENGINE.getCurrentStats().getSelfMetrics();
+    }
 }
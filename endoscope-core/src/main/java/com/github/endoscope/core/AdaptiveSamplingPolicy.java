@@ -0,0 +1,35 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Records all calls as long as collector keeps up. When queue gets more than half full probability of recording
+ * root call drops - by half with each 1/12 of queue capacity, down to 1/64.
+ *
+ * With thread local aggregation queue is rarely used so it records all calls.
+ */
+public class AdaptiveSamplingPolicy implements SamplingPolicy {
+    static final double FILL_THRESHOLD = 0.5;
+    static final int MAX_SHIFT = 6;
+
+    @Override
+    public int sample(String id, CurrentStats currentStats) {
+        double fill = currentStats.getQueueFill();
+        if (fill < FILL_THRESHOLD) {
+            return 1;
+        }
+        int interval = intervalFor(fill);
+        if (ThreadLocalRandom.current().nextInt(interval) == 0) {
+            return interval;
+        }
+        return 0;
+    }
+
+    static int intervalFor(double fill) {
+        if (fill < FILL_THRESHOLD) {
+            return 1;
+        }
+        int shift = Math.min(MAX_SHIFT, (int) ((fill - FILL_THRESHOLD) * 12) + 1);
+        return 1 << shift;
+    }
+}
@@ -0,0 +1,11 @@
+package com.github.endoscope.core;
+
+/**
+ * Records every call - it's the default.
+ */
+public class AllSamplingPolicy implements SamplingPolicy {
+    @Override
+    public int sample(String id, CurrentStats currentStats) {
+        return 1;
+    }
+}
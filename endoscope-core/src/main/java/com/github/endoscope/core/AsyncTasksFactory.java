@@ -2,5 +2,13 @@ package com.github.endoscope.core;
 
 public interface AsyncTasksFactory {
     void triggerAsyncTask();
+
+    /**
+     * @param shard index of stats shard the tree was added to
+     */
+    default void triggerAsyncTask(int shard) {
+        triggerAsyncTask();
+    }
+
     void stopStatsProcessorThread();
 }
@@ -0,0 +1,180 @@
+package com.github.endoscope.core;
+
+/**
+ * Per thread stack of currently monitored calls.
+ *
+ * Frames are kept in array that grows when needed and is never shrunk.
+ * Contexts come from thread local free list which gets refilled from {@link ContextPool}.
+ * Completed calls are collapsed into earlier siblings with the same id and go straight back to the free list.
+ * Not thread safe - it's supposed to be used by owner thread only.
+ */
+class CallStack {
+    private static final int INITIAL_DEPTH = 16;
+    static final int MAX_COLLAPSE_SCAN = 16;//number of most recent siblings checked for the same id
+
+    private final ContextPool pool;
+    private Context[] frames = new Context[INITIAL_DEPTH];
+    private int depth = 0;
+    private int treeSize = 0;
+    private int skippedDepth = 0;//depth of calls in root skipped by sampling
+    private int selfSampleCount = 0;//calls since last one measured for SelfMetrics
+    private Context free;
+    private LocalStats localStats;
+
+    CallStack(ContextPool pool) {
+        this.pool = pool;
+    }
+
+    boolean isEmpty() {
+        return depth == 0;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return number of contexts pushed since current (or last) root
+     */
+    int getTreeSize() {
+        return treeSize;
+    }
+
+    /**
+     * @return true if current root call was skipped by sampling
+     */
+    boolean isSkipping() {
+        return skippedDepth > 0;
+    }
+
+    /**
+     * @param every measure one of that many calls - 0 disables measuring
+     * @return true if current call should be measured
+     */
+    boolean sampleSelf(int every) {
+        if (every <= 0 || ++selfSampleCount < every) {
+            return false;
+        }
+        selfSampleCount = 0;
+        return true;
+    }
+
+    void pushSkipped() {
+        skippedDepth++;
+    }
+
+    void popSkipped() {
+        skippedDepth--;
+    }
+
+    void clearSkipped() {
+        skippedDepth = 0;
+    }
+
+    LocalStats getLocalStats() {
+        return localStats;
+    }
+
+    void setLocalStats(LocalStats localStats) {
+        this.localStats = localStats;
+    }
+
+    Context peek() {
+        return depth == 0 ? null : frames[depth - 1];
+    }
+
+    /**
+     * @return new frame - Context taken from pool
+     */
+    Context push() {
+        if (depth == frames.length) {
+            Context[] bigger = new Context[frames.length * 2];
+            System.arraycopy(frames, 0, bigger, 0, frames.length);
+            frames = bigger;
+        }
+        if (depth == 0) {
+            treeSize = 0;
+        }
+        treeSize++;
+        Context context = take();
+        frames[depth++] = context;
+        return context;
+    }
+
+    Context pop() {
+        Context context = frames[--depth];
+        frames[depth] = null;//don't keep references to trees already handed over to collector
+        return context;
+    }
+
+    /**
+     * Collapses just completed call into earlier sibling with the same id - subtrees are merged the same way.
+     * Only {@link #MAX_COLLAPSE_SCAN} most recent siblings are checked (starting with the previous one)
+     * so cost doesn't depend on number of siblings and loops are collapsed no matter how many calls preceded them.
+     * @param completed call popped from this stack with time already set
+     */
+    void collapse(Context completed) {
+        Context parent = peek();
+        if (parent == null || parent.lastChild != completed || completed.prevSibling == null) {
+            return;
+        }
+        Context same = findSibling(completed.prevSibling, completed);
+        if (same == null) {
+            return;
+        }
+        parent.lastChild = completed.prevSibling;
+        parent.lastChild.nextSibling = null;
+        absorb(same, completed);
+    }
+
+    /**
+     * @param last sibling to start backward scan from
+     */
+    private Context findSibling(Context last, Context call) {
+        int scanned = 0;
+        for (Context c = last; c != null && scanned < MAX_COLLAPSE_SCAN; c = c.prevSibling, scanned++) {
+            if (c.hasSameId(call)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private void absorb(Context target, Context source) {
+        target.addCall(source);
+        Context child = source.firstChild;
+        while (child != null) {
+            Context next = child.nextSibling;
+            child.nextSibling = null;
+            Context same = findSibling(target.lastChild, child);
+            if (same == null) {
+                target.addChild(child);
+            } else {
+                absorb(same, child);
+            }
+            child = next;
+        }
+        recycle(source);
+    }
+
+    private void recycle(Context context) {
+        context.reset();
+        context.nextSibling = free;
+        free = context;
+        treeSize--;
+    }
+
+    private Context take() {
+        if (free == null) {
+            free = pool.takeAll();
+            if (free == null) {
+                return new Context();
+            }
+        }
+        Context context = free;
+        free = context.nextSibling;
+        context.nextSibling = null;
+        context.pooled = 0;
+        return context;
+    }
+}
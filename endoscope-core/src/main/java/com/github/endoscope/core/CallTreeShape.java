@@ -0,0 +1,46 @@
+package com.github.endoscope.core;
+
+/**
+ * Compiled shape of call tree: ids and depths of calls in pre-order together with all stats each call updates
+ * (see {@link Stats#store(Context)}). Trees of the same shape get stored with flat array update instead of
+ * map lookups at every tree level.
+ *
+ * Shape keeps references to Stat instances so it's valid as long as stats are not replaced in their maps.
+ */
+class CallTreeShape {
+    final int hash;
+    final int[] encoding;//int from IdDictionary and depth of each call in pre-order
+    final Stat[] targets;//call i updates targets from offsets[i] (inclusive) to offsets[i+1] (exclusive)
+    final int[] offsets;
+
+    CallTreeShape(int hash, int[] encoding, Stat[] targets, int[] offsets) {
+        this.hash = hash;
+        this.encoding = encoding;
+        this.targets = targets;
+        this.offsets = offsets;
+    }
+
+    int size() {
+        return offsets.length - 1;
+    }
+
+    boolean matches(int hash, int[] encoding, int length) {
+        if (this.hash != hash || this.encoding.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (this.encoding[i] != encoding[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int hash(int[] encoding, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + encoding[i];
+        }
+        return h ^ (h >>> 16);
+    }
+}
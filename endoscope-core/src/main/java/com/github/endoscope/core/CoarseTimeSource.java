@@ -0,0 +1,43 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cheap time source - it's just a read of volatile field updated by separate ticker thread.
+ *
+ * Resolution is limited to tick length (and OS scheduler) so it suits applications with lots of short calls
+ * where System.nanoTime() cost matters more than precise times of sub-tick calls.
+ */
+public class CoarseTimeSource implements TimeSource {
+    public static final String TICKER_THREAD_NAME = "endoscope-time-ticker";
+    public static final long DEFAULT_TICK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private volatile long now = System.nanoTime();
+    private volatile boolean running = true;
+
+    public CoarseTimeSource() {
+        this(DEFAULT_TICK_NANOS);
+    }
+
+    public CoarseTimeSource(long tickNanos) {
+        Thread ticker = new Thread(() -> {
+            while (running) {
+                now = System.nanoTime();
+                LockSupport.parkNanos(tickNanos);
+            }
+        });
+        ticker.setDaemon(true);//we don't want to block JVM shutdown
+        ticker.setName(TICKER_THREAD_NAME);
+        ticker.start();
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    public void stop() {
+        running = false;
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of collector thread - the one that moves trees from queue to stats.
+ *
+ * Updated by collector thread only so plain volatile writes are enough - except for wake ups which are counted
+ * by application threads that wake collector up. Readers may see values from different passes.
+ */
+public class CollectorMetrics {
+    private volatile long passes;
+    private final LongAdder wakeUps = new LongAdder();
+    private volatile long drained;
+    private volatile long busyNanos;
+    private volatile long lagNanos;
+    private volatile long maxLagNanos;
+    private volatile long maxQueueSize;
+    private volatile long storeNanos;
+    private long emptySince = -1;
+
+    /**
+     * @param count number of trees processed in this pass
+     * @param left queue size after the pass
+     * @param startNanos pass start time (System.nanoTime())
+     * @param endNanos pass end time (System.nanoTime())
+     */
+    void recordPass(int count, int left, long startNanos, long endNanos) {
+        passes++;
+        drained += count;
+        busyNanos += endNanos - startNanos;
+
+        //trees processed now were queued after queue was seen empty last time
+        if (emptySince < 0) {
+            emptySince = startNanos;
+        }
+        if (count > 0) {
+            lagNanos = endNanos - emptySince;
+            if (lagNanos > maxLagNanos) {
+                maxLagNanos = lagNanos;
+            }
+        }
+        if (left == 0) {
+            emptySince = endNanos;
+        }
+    }
+
+    /**
+     * Accumulates metrics of other collector - used to present all shards at once.
+     */
+    void add(CollectorMetrics other) {
+        passes += other.passes;
+        wakeUps.add(other.wakeUps.sum());
+        drained += other.drained;
+        busyNanos += other.busyNanos;
+        lagNanos = Math.max(lagNanos, other.lagNanos);
+        maxLagNanos = Math.max(maxLagNanos, other.maxLagNanos);
+        maxQueueSize += other.maxQueueSize;
+        storeNanos += other.storeNanos;
+    }
+
+    /**
+     * @param size queue size seen at pass start
+     */
+    void recordQueueSize(int size) {
+        if (size > maxQueueSize) {
+            maxQueueSize = size;
+        }
+    }
+
+    /**
+     * @param nanos time of storing batch of trees (including taking them from queue)
+     */
+    void recordStore(long nanos) {
+        storeNanos += nanos;
+    }
+
+    void recordWakeUp() {
+        wakeUps.increment();
+    }
+
+    /**
+     * @return number of collector passes (both woken up and timed out)
+     */
+    public long getPasses() {
+        return passes;
+    }
+
+    /**
+     * @return number of passes triggered by batch size threshold
+     */
+    public long getWakeUps() {
+        return wakeUps.sum();
+    }
+
+    /**
+     * @return total number of trees moved from queue to stats
+     */
+    public long getDrained() {
+        return drained;
+    }
+
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * @return average number of trees stored per second of collector work
+     */
+    public double getDrainRate() {
+        long busy = busyNanos;
+        return busy == 0 ? 0 : drained * (double)TimeUnit.SECONDS.toNanos(1) / busy;
+    }
+
+    /**
+     * @return upper bound of time the trees processed in last non empty pass spent in queue
+     */
+    public long getLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lagNanos);
+    }
+
+    public long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLagNanos);
+    }
+
+    /**
+     * @return biggest queue size seen at pass start (high-water mark)
+     */
+    public long getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * @return average time of storing single tree
+     */
+    public long getAvgStoreNanos() {
+        long count = drained;
+        return count == 0 ? 0 : storeNanos / count;
+    }
+
+    @Override
+    public String toString() {
+        return "CollectorMetrics{" +
+                "passes=" + passes +
+                ", wakeUps=" + getWakeUps() +
+                ", drained=" + drained +
+                ", drainRate=" + getDrainRate() +
+                ", lagMillis=" + getLagMillis() +
+                ", maxLagMillis=" + getMaxLagMillis() +
+                ", maxQueueSize=" + getMaxQueueSize() +
+                ", avgStoreNanos=" + getAvgStoreNanos() +
+                '}';
+    }
+}
@@ -1,31 +1,91 @@
 package com.github.endoscope.core;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
 /**
  * This class represents method invocation tree.
  * You can "add" such tree to Stats in order to update global statistics.
+ *
+ * Time is kept in nanoseconds. Millisecond accessors are kept for compatibility with older data.
+ *
+ * Children are kept as intrusive linked list (firstChild -> nextSibling -> ...) so building a tree doesn't allocate
+ * anything but Context objects which in turn are recycled with {@link ContextPool}.
+ * Do not keep references to Context trees passed to {@link CurrentStats#add(Context)} - they get reused.
+ *
+ * Repeated sibling calls (e.g. the same query called in loop) are collapsed into single Context once completed
+ * (see {@link CallStack#collapse(Context)}) so such loops don't grow in-flight trees.
  */
+@JsonPropertyOrder({"id", "time", "timeNanos", "err", "weight", "children"})
 public class Context {
+    static final int ESTIMATED_BYTES = 64;//approximate heap size of single Context
     private String id;
-    private long time;
+    private int nameId = IdDictionary.NO_ID;//id mapped by IdDictionary - resolved lazily when tree gets aggregated
+    private long timeNanos;
     private boolean err;
-    private List<Context> children;
+    private int weight = 1;//number of root calls represented by this tree - see SamplingPolicy
+
+    Context firstChild;
+    Context lastChild;
+    Stat calls;//repeated sibling calls collapsed into this one - null when it's single call
+    private Stat spareCalls;//cleared calls of previous use - reused so collapsing doesn't allocate
+    Context nextSibling;//next child of the same parent or next free element when pooled
+    Context prevSibling;//previous child of the same parent - lets CallStack#collapse check the most recent siblings
+    int pooled;//number of elements in pooled chain - valid in chain head only
 
     public Context() {
     }
 
+    /**
+     * @param id
+     * @param time in milliseconds
+     */
     public Context(String id, long time) {
         this.id = id;
-        this.time = time;
+        setTime(time);
     }
 
     public void addChild(Context child){
-        if( children == null ){
-            children = new LinkedList<>();
+        if( lastChild == null ){
+            firstChild = child;
+        } else {
+            lastChild.nextSibling = child;
         }
-        children.add(child);
+        child.prevSibling = lastChild;
+        lastChild = child;
+    }
+
+    boolean hasSameId(Context other){
+        if( nameId != IdDictionary.NO_ID && other.nameId != IdDictionary.NO_ID ){
+            return nameId == other.nameId;
+        }
+        return id != null && id.equals(other.id);
+    }
+
+    /**
+     * Collapses timing of other call with the same id into this one. Time becomes sum of times
+     * and err is set if any call failed - individual calls are kept in {@link #calls}.
+     * Children are not touched.
+     */
+    void addCall(Context other){
+        if( calls == null ){
+            calls = spareCalls != null ? spareCalls : new Stat();
+            spareCalls = null;
+            calls.updateNanos(timeNanos);
+            calls.updateErr(err);
+        }
+        if( other.calls == null ){
+            calls.updateNanos(other.timeNanos);
+            calls.updateErr(other.err);
+        } else {
+            calls.updateCalls(other.calls, 1);
+        }
+        timeNanos += other.timeNanos;
+        err |= other.err;
     }
 
     public String getId() {
@@ -34,22 +94,62 @@ public class Context {
 
     public void setId(String id) {
         this.id = id;
+        this.nameId = IdDictionary.NO_ID;
+    }
+
+    /**
+     * @return int mapped to id by given dictionary or NO_ID when dictionary is full
+     */
+    int getNameId(IdDictionary dictionary) {
+        if (nameId == IdDictionary.NO_ID) {
+            nameId = dictionary.intern(id);
+        }
+        return nameId;
     }
 
+    /**
+     * @return time in milliseconds
+     */
     public long getTime() {
-        return time;
+        return TimeUnit.NANOSECONDS.toMillis(timeNanos);
     }
 
+    /**
+     * @param time in milliseconds
+     */
     public void setTime(long time) {
-        this.time = time;
+        this.timeNanos = TimeUnit.MILLISECONDS.toNanos(time);
+    }
+
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    public void setTimeNanos(long timeNanos) {
+        this.timeNanos = timeNanos;
     }
 
+    /**
+     * Creates read only list of children - use {@link #addChild(Context)} or {@link #setChildren(List)} to change them.
+     * Intended for serialization - internal code iterates over firstChild/nextSibling.
+     * @return null if there are no children
+     */
     public List<Context> getChildren() {
-        return children;
+        if( firstChild == null ){
+            return null;
+        }
+        List<Context> children = new ArrayList<>();
+        for(Context child = firstChild; child != null; child = child.nextSibling){
+            children.add(child);
+        }
+        return Collections.unmodifiableList(children);
     }
 
     public void setChildren(List<Context> children) {
-        this.children = children;
+        firstChild = lastChild = null;
+        if( children != null ){
+            children.forEach(this::addChild);
+        }
     }
 
     public boolean isErr() {
@@ -59,4 +159,30 @@ public class Context {
     public void setErr(boolean err) {
         this.err = err;
     }
+
+    /**
+     * @return number of calls this tree represents - greater than 1 when roots get sampled. Meaningful in root only.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    void reset(){
+        id = null;
+        nameId = IdDictionary.NO_ID;
+        timeNanos = 0;
+        err = false;
+        weight = 1;
+        firstChild = lastChild = prevSibling = null;
+        if( calls != null ){
+            calls.clear();
+            spareCalls = calls;
+            calls = null;
+        }
+        pooled = 0;
+    }
 }
@@ -0,0 +1,74 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Recycles Context objects so monitored calls don't create garbage in steady state.
+ *
+ * Application threads take contexts from their own free list (see {@link CallStack}) and refill it by grabbing
+ * all contexts returned so far - it costs single atomic operation per refill.
+ * Collector thread returns whole trees once they got stored in Stats.
+ *
+ * Pool size is limited - contexts returned to full pool are left for GC.
+ */
+public class ContextPool {
+    private final AtomicReference<Context> returned = new AtomicReference<>();
+    private final int maxSize;
+
+    public ContextPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns whole tree to the pool. Tree must not be used after this call.
+     * @param root tree root
+     * @return number of contexts in released tree - 0 when pool is disabled
+     */
+    public int release(Context root) {
+        if (root == null || maxSize <= 0) {
+            return 0;
+        }
+
+        //flatten tree into single chain linked with nextSibling - it doesn't allocate anything
+        root.nextSibling = null;
+        Context tail = root;
+        int count = 0;
+        for (Context c = root; c != null; c = c.nextSibling) {
+            if (c.firstChild != null) {
+                tail.nextSibling = c.firstChild;
+                tail = c.lastChild;
+            }
+            c.reset();
+            count++;
+        }
+
+        Context head;
+        do {
+            head = returned.get();
+            int size = count + (head == null ? 0 : head.pooled);
+            if (size > maxSize) {
+                tail.nextSibling = null;
+                return count;//pool is full - let GC do the job
+            }
+            tail.nextSibling = head;
+            root.pooled = size;
+        } while (!returned.compareAndSet(head, root));
+        return count;
+    }
+
+    /**
+     * Takes all contexts returned so far.
+     * @return head of chain linked with nextSibling or null
+     */
+    Context takeAll() {
+        if (returned.get() == null) {
+            return null;//don't invalidate cache line with write if there is nothing to take
+        }
+        return returned.getAndSet(null);
+    }
+
+    public int getSize() {
+        Context head = returned.get();
+        return head == null ? 0 : head.pooled;
+    }
+}
@@ -1,7 +1,9 @@
 package com.github.endoscope.core;
 
-import java.util.Date;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Function;
 
 import com.github.endoscope.properties.Properties;
@@ -21,64 +23,250 @@ import static org.slf4j.LoggerFactory.getLogger;
  * Operations on stats also needs to be thread safe as we don't know who runs #lockReadStats method.
  * All stats operations might take a lot of time: save, processing and updates (in case of complex stats).
  * Because of that we need different thread that will move data from queue to stats.
+ *
+ * Stats might be split into shards (see {@link Properties#STATS_SHARDS}). Trees are assigned to shards by root id
+ * and each shard has its own queue and collector thread. Queue size and stats limit are split evenly between shards.
+ * Readers get shards merged into single Stats.
+ *
+ * When queue fills up trees get degraded rather than dropped - see {@link OverloadTier}.
+ *
+ * With thread local aggregation (see {@link Properties#THREAD_LOCAL_AGGREGATION}) application threads fold trees
+ * into their own {@link LocalStats} instead of queue. Collector harvests them with {@link #harvestLocalStats()}.
  */
 public class CurrentStats {
     private static final Logger log = getLogger(CurrentStats.class);
 
-    private Stats stats;
-    private LinkedBlockingDeque<Context> queue;
+    private final StatsShard[] shards;
+    private ContextPool contextPool;
+    private final ConcurrentLinkedQueue<LocalStats> localStats = new ConcurrentLinkedQueue<>();
+    private final long localMaxStatCount = Properties.getThreadLocalMaxStatCount();
+    private final SelfMetrics selfMetrics = new SelfMetrics(this);
 
     public CurrentStats() {
-        stats = createEmptyStats();
-        queue = new LinkedBlockingDeque<>(Properties.getMaxQueueSize());
+        this(Properties.getStatsShards());
+    }
+
+    public CurrentStats(int shardCount) {
+        contextPool = new ContextPool(Properties.getContextPoolSize());
+
+        shardCount = Math.max(1, shardCount);
+        int queueSize = Math.max(1, Properties.getMaxQueueSize() / shardCount);
+        long maxStatCount = Properties.getMaxStatCount() / shardCount;
+        long maxStatsBytes = Properties.getMaxStatsBytes() / shardCount;
+        shards = new StatsShard[shardCount];
+        for(int i=0; i<shardCount; i++){
+            shards[i] = new StatsShard(queueSize, maxStatCount, maxStatsBytes, contextPool);
+        }
     }
 
-    private Stats createEmptyStats() {
-        Stats stats = new Stats(Properties.getAggregateSubCalls());
-        stats.setStartDate(new Date());
-        return stats;
+    /**
+     * @param context root of finished call tree
+     * @return index of shard the tree was assigned to
+     */
+    public int add(Context context){
+        int shard = shardIndex(context.getId());
+        shards[shard].add(context);
+        return shard;
     }
 
-    public void add(Context context){
-        try{
-            queue.addLast(context);
-        }catch(IllegalStateException e){//eg. due to exhausted queue size
-            //don't sync here - that could block application
-            stats.threadSafeIncrementLost();
+    private int shardIndex(String id){
+        if( shards.length == 1 ){
+            return 0;
         }
+        int h = id == null ? 0 : id.hashCode();
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % shards.length;
     }
 
+    /**
+     * Runs function with locked stats.
+     * In case of multiple shards or off heap stats function gets copy - changes made to it are not preserved.
+     */
     public <T> T lockReadStats(Function<Stats, T> function){
-        synchronized(stats){
-            return function.apply(stats);
+        long start = System.nanoTime();
+        if( shards.length == 1 ){
+            return shards[0].readStats(stats -> {
+                selfMetrics.recordReadWait(System.nanoTime() - start);
+                return function.apply(stats);
+            });
+        }
+        Stats merged = mergeShards();
+        selfMetrics.recordReadWait(System.nanoTime() - start);
+        return function.apply(merged);
+    }
+
+    private Stats mergeShards(){
+        Stats merged = new Stats(Properties.getAggregateSubCalls());
+        long statsLeft = 0;
+        for(StatsShard shard : shards){
+            statsLeft += shard.readStats(stats -> {
+                merged.merge(stats, true);
+                return stats.getStatsLeft();
+            });
         }
+        merged.setStatsLeft(statsLeft);
+        return merged;
     }
 
     public int getQueueSize(){
-        return queue.size();
+        int size = 0;
+        for(StatsShard shard : shards){
+            size += shard.getQueueSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return fill ratio of queues: 0 - empty, 1 - full
+     */
+    public double getQueueFill(){
+        long size = 0;
+        long capacity = 0;
+        for(StatsShard shard : shards){
+            size += shard.getQueueSize();
+            capacity += shard.getQueueCapacity();
+        }
+        return (double)size / capacity;
+    }
+
+    /**
+     * Moves trees from queue to stats in all shards.
+     * @return number of processed trees
+     */
+    int processAllFromQueue(){
+        int total = 0;
+        for(StatsShard shard : shards){
+            total += shard.processAllFromQueue();
+        }
+        return total;
+    }
+
+    /**
+     * Creates stats for current thread. Called once per thread.
+     */
+    LocalStats registerLocalStats(){
+        LocalStats local = new LocalStats(Thread.currentThread(), localMaxStatCount);
+        localStats.add(local);
+        return local;
     }
 
-    void processAllFromQueue(){
-        Context ctx = queue.pollFirst();
-        synchronized(stats){
-            while(ctx != null){
-                stats.store(ctx);
-                ctx = queue.pollFirst();
+    /**
+     * Merges stats collected by application threads since last harvest and gives them back for reuse.
+     * Forgets stats of dead threads.
+     * @return number of harvested thread stats
+     */
+    int harvestLocalStats(){
+        List<LocalStats> sources = new ArrayList<>();
+        List<Stats> harvested = new ArrayList<>();
+        Iterator<LocalStats> it = localStats.iterator();
+        while(it.hasNext()){
+            LocalStats local = it.next();
+            boolean alive = local.isOwnerAlive();//check before harvest so we don't miss last trees
+            Stats stats = local.harvest();
+            if( stats != null ){
+                sources.add(local);
+                harvested.add(stats);
+            }
+            if( !alive ){
+                it.remove();
             }
         }
+        if( harvested.isEmpty() ){
+            return 0;
+        }
+        for(int i=0; i<shards.length; i++){
+            int shard = i;
+            shards[i].lockStats(stats -> {
+                for(Stats h : harvested){
+                    if( shard == 0 ){
+                        stats.mergeCounters(h);
+                    }
+                    h.getMap().forEach((id, stat) -> {
+                        if( shardIndex(id) == shard ){
+                            stats.mergeWithinLimit(id, stat);
+                        }
+                    });
+                }
+                return null;
+            });
+        }
+        for(int i=0; i<harvested.size(); i++){
+            sources.get(i).recycle(harvested.get(i));
+        }
+        return harvested.size();
+    }
+
+    int getShardCount(){
+        return shards.length;
+    }
+
+    StatsShard getShard(int index){
+        return shards[index];
+    }
+
+    /**
+     * @return collector metrics - summed up in case of multiple shards
+     */
+    public CollectorMetrics getCollectorMetrics() {
+        if( shards.length == 1 ){
+            return shards[0].getCollectorMetrics();
+        }
+        CollectorMetrics sum = new CollectorMetrics();
+        for(StatsShard shard : shards){
+            sum.add(shard.getCollectorMetrics());
+        }
+        return sum;
+    }
+
+    public SelfMetrics getSelfMetrics() {
+        return selfMetrics;
+    }
+
+    public ContextPool getContextPool() {
+        return contextPool;
     }
 
     public void setFatalError(String message){
-        stats.setFatalError(message);//assignment is thread safe
+        shards[0].getStats().setFatalError(message);//assignment is thread safe
     }
 
     /**
      * Creates new empty stats and returns old one.
-     * @return old stats
+     * @return old stats (merged in case of multiple shards)
      */
     public Stats resetStats(){
-        Stats old = stats;
-        stats = createEmptyStats();
-        return old;
+        if( shards.length == 1 ){
+            return shards[0].resetStats();
+        }
+        Stats merged = new Stats(Properties.getAggregateSubCalls());
+        long statsLeft = 0;
+        for(StatsShard shard : shards){
+            Stats old = shard.resetStats();//collector doesn't touch it any more
+            merged.merge(old, true);
+            statsLeft += old.getStatsLeft();
+        }
+        merged.setStatsLeft(statsLeft);
+        return merged;
+    }
+
+    /**
+     * Adds stats back to current ones - e.g. when save failed.
+     * Top level stats go to shards their ids are assigned to and respect shard limits - counters go to the first shard.
+     */
+    public void restoreStats(Stats old){
+        for(int i=0; i<shards.length; i++){
+            int shard = i;
+            shards[i].lockStats(stats -> {
+                if( shard == 0 ){
+                    stats.mergeCounters(old);
+                }
+                old.getMap().forEach((id, stat) -> {
+                    if( shardIndex(id) == shard ){
+                        stats.mergeWithinLimit(id, stat);
+                    }
+                });
+                return null;
+            });
+        }
     }
 }
@@ -3,19 +3,28 @@ package com.github.endoscope.core;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
+import com.github.endoscope.properties.Properties;
 import com.github.endoscope.storage.StatsPersistence;
 import com.github.endoscope.storage.Storage;
 import org.slf4j.Logger;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
+/**
+ * Runs long lived collector threads (one per stats shard) that move trees from queue to stats and triggers saving.
+ *
+ * Collector parks between passes. It's woken up by application thread when queue reaches batch size
+ * or wakes up by itself once max latency passes - whichever comes first.
+ * Application threads pay for volatile read only unless collector needs to be woken up.
+ * Readers of current stats wake collector up as well - it makes copy for them between batches.
+ *
+ * Stats are saved by another long lived thread so saving doesn't hold collector up. It parks until save is due
+ * (see {@link StatsPersistence#threadSafeMillisToSave()}) or until collector sees save is due and wakes it up.
+ */
 public class CurrentStatsAsyncTasks implements AsyncTasksFactory {
     private static final Logger log = getLogger(CurrentStatsAsyncTasks.class);
     public static final String COLLECTOR_THREAD_NAME = "endoscope-stats-collect";
@@ -23,98 +32,144 @@ public class CurrentStatsAsyncTasks implements AsyncTasksFactory {
     public static final String COLLECTOR_ID = UUID.randomUUID().toString();
     public static final String SAVING_ID = UUID.randomUUID().toString();
 
-    private ExecutorService collectingExecutor;
-    private ExecutorService savingExecutor;
+    private Collector[] collectors;
+    private Saver saver;//null when there is no storage
     private CurrentStats currentStats;
     private StatsPersistence statsPersistence;
-    private boolean enabled = true;
-    private Future collectingTaskResult;
-    private Future savingTaskResult;
+    private volatile boolean enabled = true;
+    private final int batchSize;
+    private final long maxLatencyNanos;
 
     public CurrentStatsAsyncTasks(CurrentStats currentStats, Storage storage) {
         this.currentStats = currentStats;
         this.statsPersistence = new StatsPersistence(storage);
+        this.batchSize = Math.max(1, Properties.getCollectorBatchSize() / currentStats.getShardCount());
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Properties.getCollectorMaxLatencyMs()));
+
+        if (storage != null) {
+            saver = new Saver();
+            Thread t = new Thread(saver);
+            t.setDaemon(true);//we don't want to block JVM shutdown
+            t.setName(SAVING_THREAD_NAME);
+            saver.thread = t;
+            t.start();
+        }
 
-        collectingExecutor = new ThreadPoolExecutor(0, 1,
-                60L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(),
-                runnable -> {
-                    Thread t = Executors.defaultThreadFactory().newThread(runnable);
-                    t.setDaemon(true);//we don't want to block JVM shutdown
-                    t.setName(COLLECTOR_THREAD_NAME);
-                    return t;
-        });
-
-        savingExecutor = new ThreadPoolExecutor(0, 1,
-                60L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(),
-                runnable -> {
-                    Thread t = Executors.defaultThreadFactory().newThread(runnable);
-                    t.setDaemon(true);//we don't want to block JVM shutdown
-                    t.setName(SAVING_THREAD_NAME);
-                    return t;
-                });
+        int shardCount = currentStats.getShardCount();
+        collectors = new Collector[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            collectors[i] = new Collector(currentStats.getShard(i), i == 0);
+            Thread t = new Thread(collectors[i]);
+            t.setDaemon(true);//we don't want to block JVM shutdown
+            t.setName(shardCount == 1 ? COLLECTOR_THREAD_NAME : COLLECTOR_THREAD_NAME + "-" + i);
+            collectors[i].thread = t;
+            t.start();
+        }
     }
 
+    /**
+     * Called by application thread after each queued tree - must be cheap.
+     * Checks all shards - prefer {@link #triggerAsyncTask(int)}.
+     */
     public void triggerAsyncTask() {
-        try{
-            if (!enabled || (collectingTaskResult != null && !collectingTaskResult.isDone())) {
-                //previous task is still running
-                //it's not a perfect synchronization but it doesn't have to be
-                return;
+        for (Collector collector : collectors) {
+            collector.wakeUpIfNeeded();
+        }
+    }
+
+    /**
+     * Called by application thread after each queued tree - must be cheap.
+     */
+    @Override
+    public void triggerAsyncTask(int shard) {
+        collectors[shard].wakeUpIfNeeded();
+    }
+
+    private class Collector implements Runnable {
+        private final StatsShard shard;
+        private final boolean first;//first collector also harvests thread local stats and triggers save
+        private final AtomicBoolean parked = new AtomicBoolean(false);
+        private Thread thread;
+
+        Collector(StatsShard shard, boolean first) {
+            this.shard = shard;
+            this.first = first;
+        }
+
+        void wakeUpIfNeeded() {
+            if (parked.get()
+                    && shard.getQueueSize() >= batchSize
+                    && parked.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+                shard.getCollectorMetrics().recordWakeUp();
             }
-            log.debug("Creating new async task for collector: {}", COLLECTOR_ID);
-            collectingTaskResult = collectingExecutor.submit(() -> {
+        }
 
-                //this stuff runs in new thread
+        void wakeUp() {
+            if (parked.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
 
-                safeSleep();
-                log.debug("started async task for collector: {}", COLLECTOR_ID);
+        @Override
+        public void run() {
+            //this stuff runs in collector thread
+            log.debug("started collector: {}, thread: {}", COLLECTOR_ID, thread.getName());
+            shard.attachCollector(this::wakeUp);
+            while (enabled) {
                 try {
-                    currentStats.processAllFromQueue();
-                    if (statsPersistence != null && statsPersistence.threadSafeShouldSave()) {
-                        //run save in another thread so we don't block processing elements from queue
-                        triggerAsyncSafeSave();
+                    if (first) {
+                        currentStats.harvestLocalStats();
+                    }
+                    shard.processAllFromQueue();
+                    if (first && saver != null && statsPersistence.threadSafeShouldSave()) {
+                        //save runs in another thread so we don't block processing elements from queue
+                        saver.wakeUp();
                     }
                 } catch (Exception e) {
                     currentStats.setFatalError(getStacktrace(e));
-                    log.debug("error occurred when processing async task for collector: {}", COLLECTOR_ID, e);
+                    log.debug("error occurred when processing queue by collector: {}", COLLECTOR_ID, e);
+                }
+
+                if (shard.getQueueSize() < batchSize && !shard.hasPendingRead()) {
+                    parked.set(true);
+                    //check again - we might have missed wake up between queue check and setting flag
+                    if (shard.getQueueSize() < batchSize && !shard.hasPendingRead() && enabled) {
+                        LockSupport.parkNanos(this, maxLatencyNanos);
+                    }
+                    parked.set(false);
                 }
-                log.debug("finished async task for collector: {}", COLLECTOR_ID);
-            });
-            log.debug("Created new async task for collector: {}", COLLECTOR_ID);
-        }catch(Exception e){
-            log.warn("Failed to trigger async task for collector: {}", COLLECTOR_ID, e);
+            }
+            shard.attachCollector(null);
+            log.debug("finished collector: {}, thread: {}", COLLECTOR_ID, thread.getName());
         }
     }
 
-    private void triggerAsyncSafeSave() {
-        try{
-            if (!enabled ) {
-                return;
-            }
-            if (savingTaskResult != null && !savingTaskResult.isDone()) {
-                log.debug("Previous async task for saving stats: {} is still running...skipping", SAVING_ID);
-                //it's not a perfect synchronization but it doesn't have to be
-                return;
-            }
-            log.debug("Creating new async task for saving stats: {}", SAVING_ID);
-            savingTaskResult = savingExecutor.submit(() -> {
+    private class Saver implements Runnable {
+        private Thread thread;
 
-                //this stuff runs in new thread
+        void wakeUp() {
+            LockSupport.unpark(thread);
+        }
 
-                safeSleep();
-                log.debug("started async task for saving stats: {}", SAVING_ID);
-                try {
-                    safeSave();
-                } catch (Exception e) {
-                    log.debug("error occurred when processing async task for saving stats: {}", SAVING_ID, e);
+        @Override
+        public void run() {
+            //this stuff runs in saving thread
+            log.debug("started saving thread: {}", SAVING_ID);
+            while (enabled) {
+                if (statsPersistence.threadSafeShouldSave()) {
+                    try {
+                        safeSave();
+                    } catch (Exception e) {
+                        log.debug("error occurred when saving stats: {}", SAVING_ID, e);
+                    }
+                }
+                long waitMillis = statsPersistence.threadSafeMillisToSave();
+                if (enabled && waitMillis > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMillis));
                 }
-                log.debug("finished async task for saving stats: {}", SAVING_ID);
-            });
-            log.debug("Created new async task for saving stats: {}", SAVING_ID);
-        }catch(Exception e){
-            log.warn("Failed to trigger async task for saving stats: {}", SAVING_ID, e);
+            }
+            log.debug("finished saving thread: {}", SAVING_ID);
         }
     }
 
@@ -124,15 +179,14 @@ public class CurrentStatsAsyncTasks implements AsyncTasksFactory {
         log.debug("persisting stats");
 
         //don't lock for long here! - just get stats we plan to save and start to collect new values
-        Stats oldStats = currentStats.lockReadStats(stats -> currentStats.resetStats() );
+        Stats oldStats = currentStats.resetStats();
 
+        long start = System.nanoTime();
         boolean saved = statsPersistence.safeSave(oldStats);
+        currentStats.getSelfMetrics().recordSave(System.nanoTime() - start, saved ? oldStats.estimateBytes() : 0, saved);
         if( !saved ){
             log.debug("failed to save stats - returning stats in order to try again later");
-            currentStats.lockReadStats(stats -> {
-                stats.merge(oldStats, true);
-                return true;
-            });
+            currentStats.restoreStats(oldStats);
         } else {
             log.debug("saved stats - running stats cleanup");
             statsPersistence.safeCleanup();
@@ -145,19 +199,21 @@ public class CurrentStatsAsyncTasks implements AsyncTasksFactory {
     public void stopStatsProcessorThread() {
         log.info("Requested threads: {}, {} shutdown", COLLECTOR_THREAD_NAME, SAVING_THREAD_NAME);
         enabled = false;
-        collectingExecutor.shutdownNow();
-        savingExecutor.shutdownNow();
+        for (Collector collector : collectors) {
+            LockSupport.unpark(collector.thread);
+        }
+        if (saver != null) {
+            saver.thread.interrupt();//stops save in progress as well
+        }
+        currentStats.getSelfMetrics().safeUnregisterMBean();
     }
 
-    public boolean isEnabled() {
-        return enabled;
+    boolean isCollectorParked(int shard) {
+        return collectors[shard].parked.get();
     }
 
-    private static void safeSleep() {
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-        }
+    public boolean isEnabled() {
+        return enabled;
     }
 
     private static String getStacktrace(Exception e) {
@@ -1,6 +1,5 @@
 package com.github.endoscope.core;
 
-import java.util.LinkedList;
 import java.util.function.Supplier;
 
 import com.github.endoscope.properties.Properties;
@@ -9,24 +8,44 @@ import com.github.endoscope.storage.StorageFactory;
 import org.apache.commons.lang3.StringUtils;
 
 public class Engine {
-    private ThreadLocal<LinkedList<Context>> contextStack = new ThreadLocal<>();
     private Boolean enabled = null;
     private Storage storage = null;//may stay null if disabled or cannot setup it
     private CurrentStats currentStats;
     private AsyncTasksFactory currentStatsAsyncTasks;
     private int maxIdLength = Properties.getMaxIdLength();
+    private boolean threadLocalAggregation = Properties.isThreadLocalAggregation();
+    private TimeSource timeSource;
+    private SamplingPolicy samplingPolicy;
+    private final int selfMetricsSample = Properties.getSelfMetricsSample();
+    private ThreadLocal<CallStack> contextStack = ThreadLocal.withInitial(() -> new CallStack(currentStats.getContextPool()));
 
     public Engine() {
         if (isEnabled()) {
             storage = new StorageFactory().safeCreate();//may return null
+            timeSource = new TimeSourceFactory().safeCreate();
+            samplingPolicy = new SamplingPolicyFactory().safeCreate();
             currentStats = new CurrentStats();
             currentStatsAsyncTasks = new CurrentStatsAsyncTasks(currentStats, storage);
+            if (Properties.isJmxEnabled()) {
+                currentStats.getSelfMetrics().safeRegisterMBean();
+            }
         }
     }
 
     protected Engine(boolean enabled, Storage storage, AsyncTasksFactory tasksFactory) {
+        this(enabled, storage, tasksFactory, new NanoTimeSource());
+    }
+
+    protected Engine(boolean enabled, Storage storage, AsyncTasksFactory tasksFactory, TimeSource timeSource) {
+        this(enabled, storage, tasksFactory, timeSource, new AllSamplingPolicy());
+    }
+
+    protected Engine(boolean enabled, Storage storage, AsyncTasksFactory tasksFactory, TimeSource timeSource,
+                     SamplingPolicy samplingPolicy) {
         this.enabled = enabled;
         this.storage = storage;
+        this.timeSource = timeSource;
+        this.samplingPolicy = samplingPolicy;
         currentStats = new CurrentStats();
         currentStatsAsyncTasks = tasksFactory;
     }
@@ -55,22 +74,41 @@ public class Engine {
     protected boolean push(String id) {
         checkEnabled();
 
-        id = prepareId(id);
-        Context context = new Context(id, System.currentTimeMillis());
+        CallStack stack = contextStack.get();
+        if (stack.sampleSelf(selfMetricsSample)) {
+            long start = System.nanoTime();
+            boolean first = push(stack, id);
+            currentStats.getSelfMetrics().recordPush(System.nanoTime() - start);
+            return first;
+        }
+        return push(stack, id);
+    }
 
-        LinkedList<Context> stack = contextStack.get();
-        boolean first = false;
-        if (stack == null) {
-            first = true;
-            stack = new LinkedList<>();
-            contextStack.set(stack);
+    private boolean push(CallStack stack, String id) {
+        if (stack.isSkipping()) {
+            stack.pushSkipped();
+            return false;
         }
+
+        id = prepareId(id);
+
         Context parent = stack.peek();
+        int weight = 1;
+        if (parent == null) {
+            weight = samplingPolicy.sample(id, currentStats);
+            if (weight <= 0) {
+                stack.pushSkipped();
+                return true;
+            }
+        }
+        Context context = stack.push();
+        context.setId(id);//int id is assigned by whoever aggregates the tree - not by application thread
+        context.setWeight(weight);
+        context.setTimeNanos(timeSource.nanoTime());
         if (parent != null) {
             parent.addChild(context);
         }
-        stack.push(context);
-        return first;
+        return parent == null;
     }
 
     private String prepareId(String id) {
@@ -87,17 +125,32 @@ public class Engine {
     protected void pop(boolean completedWithException) {
         checkEnabled();
 
-        LinkedList<Context> stack = contextStack.get();
+        CallStack stack = contextStack.get();
+        if (stack.sampleSelf(selfMetricsSample)) {
+            long start = System.nanoTime();
+            pop(stack, completedWithException);
+            currentStats.getSelfMetrics().recordPop(System.nanoTime() - start);
+            return;
+        }
+        pop(stack, completedWithException);
+    }
+
+    private void pop(CallStack stack, boolean completedWithException) {
+        if (stack.isSkipping()) {
+            stack.popSkipped();
+            return;
+        }
         if (stack.isEmpty()) {
             return;
         }
         Context context = stack.pop();
-        context.setTime(System.currentTimeMillis() - context.getTime());
+        context.setTimeNanos(timeSource.nanoTime() - context.getTimeNanos());
         context.setErr(completedWithException);
 
         if (stack.isEmpty()) {
-            currentStats.add(context);
-            currentStatsAsyncTasks.triggerAsyncTask();
+            submit(stack, context);
+        } else {
+            stack.collapse(context);
         }
     }
 
@@ -107,17 +160,48 @@ public class Engine {
     protected void popAll(boolean completedWithException) {
         checkEnabled();
 
-        LinkedList<Context> stack = contextStack.get();
+        CallStack stack = contextStack.get();
+        if (stack.sampleSelf(selfMetricsSample)) {
+            long start = System.nanoTime();
+            popAll(stack, completedWithException);
+            currentStats.getSelfMetrics().recordPop(System.nanoTime() - start);
+            return;
+        }
+        popAll(stack, completedWithException);
+    }
+
+    private void popAll(CallStack stack, boolean completedWithException) {
+        if (stack.isSkipping()) {
+            stack.clearSkipped();
+            return;
+        }
         Context context = null;
+        long now = timeSource.nanoTime();
         while (!stack.isEmpty()) {
             context = stack.pop();
-            context.setTime(System.currentTimeMillis() - context.getTime());
+            context.setTimeNanos(now - context.getTimeNanos());
             context.setErr(completedWithException);
         }
         if (context != null) {
-            currentStats.add(context);
-            currentStatsAsyncTasks.triggerAsyncTask();
+            submit(stack, context);
+        }
+    }
+
+    private void submit(CallStack stack, Context root) {
+        if (threadLocalAggregation) {
+            LocalStats local = stack.getLocalStats();
+            if (local == null) {
+                local = currentStats.registerLocalStats();
+                stack.setLocalStats(local);
+            }
+            if (local.store(root, stack.getTreeSize())) {
+                currentStats.getContextPool().release(root);
+                return;
+            }
+            //doesn't fit - let collector handle it
         }
+        int shard = currentStats.add(root);
+        currentStatsAsyncTasks.triggerAsyncTask(shard);
     }
 
     public CurrentStats getCurrentStats() {
@@ -141,10 +225,25 @@ public class Engine {
      * @param runnable result runnable
      */
     public void monitor(String id, Runnable runnable) {
-        monitor(id, () -> {
+        if (!isEnabled()) {
+            runnable.run();
+            return;
+        }
+
+        //not delegated to supplier version as wrapping lambda would allocate on every call
+        boolean first = false;
+        boolean completedWithException = true;
+        try {
+            first = push(id);
             runnable.run();
-            return null;
-        });
+            completedWithException = false;
+        } finally {
+            if (first) {
+                popAll(completedWithException);
+            } else {
+                pop(completedWithException);
+            }
+        }
     }
 
     /**
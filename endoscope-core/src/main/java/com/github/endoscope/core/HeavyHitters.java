@@ -0,0 +1,64 @@
+package com.github.endoscope.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving sketch of ids seen after stat count limit was reached. At most capacity ids are followed - when
+ * it's full new id replaces the one with the lowest count and inherits that count as possible error.
+ * Ids seen more often than {@link #getGuaranteed(String)} hits are guaranteed to be among followed ones.
+ *
+ * Not thread safe.
+ */
+class HeavyHitters {
+    private static class Candidate {
+        long count;
+        long error;//upper bound of hits counted for replaced ids
+    }
+
+    private final int capacity;
+    private final Map<String, Candidate> candidates = new HashMap<>();
+
+    HeavyHitters(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return lower bound of hits of given id since it's followed
+     */
+    long add(String id, long hits) {
+        Candidate candidate = candidates.get(id);
+        if (candidate == null) {
+            candidate = new Candidate();
+            if (candidates.size() >= capacity) {
+                Map.Entry<String, Candidate> min = null;
+                for (Map.Entry<String, Candidate> e : candidates.entrySet()) {
+                    if (min == null || e.getValue().count < min.getValue().count) {
+                        min = e;
+                    }
+                }
+                candidates.remove(min.getKey());
+                candidate.count = candidate.error = min.getValue().count;
+            }
+            candidates.put(id, candidate);
+        }
+        candidate.count += hits;
+        return candidate.count - candidate.error;
+    }
+
+    /**
+     * @return lower bound of hits of given id or 0 if it's not followed
+     */
+    long getGuaranteed(String id) {
+        Candidate candidate = candidates.get(id);
+        return candidate == null ? 0 : candidate.count - candidate.error;
+    }
+
+    void remove(String id) {
+        candidates.remove(id);
+    }
+
+    int size() {
+        return candidates.size();
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.endoscope.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.endoscope.properties.Properties;
+
+/**
+ * Maps call ids to dense ints so aggregation path compares ints instead of hashing and comparing strings
+ * at every tree level. Strings are restored with {@link #getName(int)} for serialization and storage only.
+ *
+ * Ids are never removed - dictionary size is limited and once it's full new ids get {@link #NO_ID}
+ * and code falls back to string keys.
+ *
+ * This class is thread safe. Lookup of known id doesn't lock nor allocate.
+ */
+public class IdDictionary {
+    public static final int NO_ID = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final IdDictionary GLOBAL = new IdDictionary(Properties.getIdDictionarySize());
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private volatile String[] names = new String[INITIAL_CAPACITY];
+    private volatile int size = 0;//updated under lock
+
+    public IdDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static IdDictionary global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @return int assigned to given id - it's assigned when id is seen for the first time, or NO_ID when dictionary is full
+     */
+    public int intern(String id) {
+        if (id == null) {
+            return NO_ID;
+        }
+        Integer known = ids.get(id);
+        if (known != null) {
+            return known;
+        }
+        if (size >= maxSize) {
+            return NO_ID;//don't lock when it's full
+        }
+        return add(id);
+    }
+
+    private synchronized int add(String id) {
+        Integer known = ids.get(id);
+        if (known != null) {
+            return known;
+        }
+        if (size >= maxSize) {
+            return NO_ID;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, Math.min(maxSize, names.length * 2));
+        }
+        //name must be set before int gets published by the map
+        names[size] = id;
+        ids.put(id, size);
+        return size++;
+    }
+
+    /**
+     * Doesn't assign new ints.
+     * @return int assigned to given id or NO_ID
+     */
+    public int lookup(String id) {
+        if (id == null) {
+            return NO_ID;
+        }
+        Integer known = ids.get(id);
+        return known == null ? NO_ID : known;
+    }
+
+    /**
+     * @param nameId value returned by {@link #intern(String)}
+     */
+    public String getName(int nameId) {
+        return names[nameId];
+    }
+
+    public int getSize() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,306 @@
+package com.github.endoscope.core;
+
+import java.util.Arrays;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * Compact, mergeable histogram of times in nanoseconds with log-linear buckets (HDR style).
+ *
+ * Each power of 2 range is split into {@link #SUB_BUCKETS} equal buckets so bucket width never exceeds 1/8 of
+ * its lower bound - reported values are bucket midpoints which keeps relative error around 6%.
+ * Values below {@link #SUB_BUCKETS} get exact buckets. Only range between lowest and highest non empty bucket is
+ * allocated and it never exceeds {@link #MAX_SIZE} buckets (20 powers of 2 - e.g. 10us to 10s) - when wider range
+ * is needed lowest buckets are collapsed into one (like in DDSketch). That keeps high percentiles accurate while size
+ * stays fixed no matter how many stats get merged - which is what aggregated (daily, weekly, monthly) and
+ * multi-instance stats rely on. Merge is associative and commutative as long as no collapse happens.
+ *
+ * It's serialized as compact string: "firstBucketIndex:count,count,...".
+ * Not thread safe.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+    static final int MAX_SIZE = 20 * SUB_BUCKETS;
+
+    private int offset;//bucket index of counts[0]
+    private long[] counts;//null when empty
+    private long[] spare;//zeroed counts kept by clear() for reuse
+    private long total;
+
+    public LatencyHistogram() {
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int group = index >>> SUB_BUCKET_BITS;
+        int subBucket = index & (SUB_BUCKETS - 1);
+        return (long) (SUB_BUCKETS + subBucket) << (group - 1);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        return bucketLowerBound(index) + (1L << ((index >>> SUB_BUCKET_BITS) - 1)) - 1;
+    }
+
+    /**
+     * @param nanos negative values are ignored
+     */
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * @param nanos negative values are ignored
+     * @param count number of occurrences of given value
+     */
+    public void record(long nanos, long count) {
+        if (nanos < 0 || count <= 0) {
+            return;
+        }
+        add(bucketIndex(nanos), count);
+    }
+
+    private void add(int index, long count) {
+        int position = ensureBucket(index);//must be evaluated before counts is read
+        counts[position] += count;
+        total += count;
+    }
+
+    /**
+     * @return position of bucket in counts - it's the lowest bucket when index falls into collapsed range
+     */
+    private int ensureBucket(int index) {
+        if (counts == null) {
+            if (spare != null) {
+                counts = spare;
+                spare = null;
+                offset = Math.max(0, index - counts.length / 2);//reused buckets around first value
+            } else {
+                counts = new long[1];
+                offset = index;
+            }
+        } else if (index < offset) {
+            int newOffset = Math.max(index, offset + counts.length - MAX_SIZE);
+            if (newOffset < offset) {
+                long[] bigger = new long[counts.length + offset - newOffset];
+                System.arraycopy(counts, 0, bigger, offset - newOffset, counts.length);
+                counts = bigger;
+                offset = newOffset;
+            }
+            return Math.max(index, offset) - offset;
+        } else if (index >= offset + counts.length) {
+            if (index - offset + 1 > MAX_SIZE) {
+                collapseBelow(index - MAX_SIZE + 1);
+            }
+            counts = Arrays.copyOf(counts, index - offset + 1);
+        }
+        return index - offset;
+    }
+
+    /**
+     * Moves counts of all buckets below given index into bucket with that index.
+     */
+    private void collapseBelow(int newOffset) {
+        int shift = newOffset - offset;
+        long low = 0;
+        for (int i = 0; i < Math.min(shift, counts.length); i++) {
+            low += counts[i];
+        }
+        long[] kept = new long[Math.max(1, counts.length - shift)];
+        if (shift < counts.length) {
+            System.arraycopy(counts, shift, kept, 0, counts.length - shift);
+        }
+        kept[0] += low;
+        counts = kept;
+        offset = newOffset;
+    }
+
+    public void merge(LatencyHistogram other) {
+        merge(other, 1);
+    }
+
+    /**
+     * @param multiplier number of times each value of other histogram is added
+     */
+    public void merge(LatencyHistogram other, long multiplier) {
+        if (other == null || other.counts == null || other.total == 0 || multiplier <= 0) {
+            return;
+        }
+        //grow (or collapse) to the highest bucket first so that lower ones don't get moved more than once
+        int last = other.counts.length - 1;
+        while (other.counts[last] == 0) {
+            last--;//reused counts may end with empty buckets
+        }
+        ensureBucket(other.offset + last);
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] > 0) {
+                int position = ensureBucket(other.offset + i);
+                counts[position] += multiplier * other.counts[i];
+            }
+        }
+        total += multiplier * other.total;
+    }
+
+    /**
+     * Removes all values but keeps buckets for reuse - used by collapsed calls which are cleared on every tree.
+     */
+    void clear() {
+        if (counts != null) {
+            Arrays.fill(counts, 0);
+            spare = counts;
+            counts = null;
+        }
+        total = 0;
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.merge(this);
+        return h;
+    }
+
+    public long getTotalCount() {
+        return total;
+    }
+
+    /**
+     * @return number of allocated buckets - never more than {@link #MAX_SIZE}
+     */
+    public int getBucketCount() {
+        return counts == null ? 0 : counts.length;
+    }
+
+    /**
+     * @return bucket index of first allocated bucket - see {@link #countAt(int)}
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @param position 0 to {@link #getBucketCount()} - 1
+     * @return count of bucket with index {@link #getOffset()} + position
+     */
+    long countAt(int position) {
+        return counts[position];
+    }
+
+    /**
+     * @return approximate heap size in bytes
+     */
+    long estimateBytes() {
+        return 32 + (counts == null ? 0 : 16 + 8L * counts.length);
+    }
+
+    public boolean isEmpty() {
+        return total == 0;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return midpoint of bucket containing requested percentile or -1 if histogram is empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                int index = offset + i;
+                long lower = bucketLowerBound(index);
+                return lower + (bucketUpperBound(index) - lower) / 2;
+            }
+        }
+        return bucketUpperBound(offset + counts.length - 1);
+    }
+
+    @JsonValue
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        if (counts == null) {
+            return sb.toString();
+        }
+        int first = 0;
+        while (counts[first] == 0) {
+            first++;
+        }
+        int last = counts.length - 1;
+        while (counts[last] == 0) {
+            last--;
+        }
+        sb.append(offset + first).append(':');
+        for (int i = first; i <= last; i++) {
+            if (i > first) {
+                sb.append(',');
+            }
+            sb.append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param encoded value produced by {@link #encode()}
+     * @return null if input is blank
+     */
+    @JsonCreator
+    public static LatencyHistogram decode(String encoded) {
+        if (encoded == null || encoded.trim().isEmpty()) {
+            return null;
+        }
+        int colon = encoded.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Invalid histogram: " + encoded);
+        }
+        int index = Integer.parseInt(encoded.substring(0, colon).trim());
+        String[] values = encoded.substring(colon + 1).split(",");
+        if (index < 0 || index + values.length > MAX_BUCKETS) {
+            throw new IllegalArgumentException("Invalid histogram range: " + encoded);
+        }
+        LatencyHistogram h = new LatencyHistogram();
+        for (String value : values) {
+            long count = Long.parseLong(value.trim());
+            if (count > 0) {
+                h.add(index, count);
+            }
+            index++;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LatencyHistogram)) return false;
+        return encode().equals(((LatencyHistogram) o).encode());
+    }
+
+    @Override
+    public int hashCode() {
+        return encode().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
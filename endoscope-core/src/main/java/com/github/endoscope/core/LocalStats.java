@@ -0,0 +1,83 @@
+package com.github.endoscope.core;
+
+import java.lang.ref.WeakReference;
+
+import com.github.endoscope.properties.Properties;
+
+/**
+ * Small Stats owned by single application thread - used when thread local aggregation is enabled.
+ *
+ * Owner thread folds finished trees into it and collector periodically takes it away (replacing with spare one)
+ * and merges into current stats. Lock is contended only when collector harvests.
+ *
+ * Harvested stats are given back with {@link #recycle(Stats)} and become spare - they keep their stats
+ * (cleared) so owner thread stores the same trees again without allocating. Stats are dropped once they take
+ * more than half of the limit so ids the thread stopped using don't stay forever.
+ */
+class LocalStats {
+    private final WeakReference<Thread> owner;
+    private final long maxStatCount;
+    private Stats stats;
+    private Stats spare;//null while harvested stats are being merged
+    private boolean stored = false;//anything stored since last harvest
+
+    LocalStats(Thread owner, long maxStatCount) {
+        this.owner = new WeakReference<>(owner);
+        this.maxStatCount = maxStatCount;
+        this.stats = createEmptyStats();
+    }
+
+    private Stats createEmptyStats() {
+        Stats stats = new Stats(Properties.getAggregateSubCalls());
+        stats.setStatsLeft(maxStatCount);
+        return stats;
+    }
+
+    /**
+     * @param root finished call tree
+     * @param treeSize number of contexts in the tree
+     * @return false if tree might not fit in local stats - it should be queued instead
+     */
+    synchronized boolean store(Context root, int treeSize) {
+        //each context adds at most 2 stats: nested one and top level one
+        if (stats.getStatsLeft() < 2L * treeSize) {
+            return false;
+        }
+        stats.store(root);
+        stored = true;
+        return true;
+    }
+
+    /**
+     * @return collected stats or null if there is nothing new - should be given back with {@link #recycle(Stats)}
+     */
+    synchronized Stats harvest() {
+        if (!stored) {
+            return null;
+        }
+        Stats old = stats;
+        stats = spare != null ? spare : createEmptyStats();
+        spare = null;
+        stored = false;
+        return old;
+    }
+
+    /**
+     * @param harvested stats returned by {@link #harvest()} - already merged
+     */
+    void recycle(Stats harvested) {
+        boolean keepStats = harvested.getStatsLeft() >= maxStatCount / 2;
+        harvested.clearValues(keepStats);
+        if (!keepStats) {
+            harvested.setStatsLeft(maxStatCount);
+        }
+        synchronized (this) {
+            spare = harvested;
+        }
+    }
+
+    boolean isOwnerAlive() {
+        Thread thread = owner.get();
+        return thread != null && thread.isAlive();
+    }
+}
@@ -0,0 +1,11 @@
+package com.github.endoscope.core;
+
+/**
+ * Default time source with best resolution available in JVM.
+ */
+public class NanoTimeSource implements TimeSource {
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,485 @@
+package com.github.endoscope.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stats tree kept in direct memory so it doesn't add hundreds of thousands of objects to old generation.
+ * It's filled the same way as {@link Stats#store(Context)} and gets converted to regular {@link Stats}
+ * for storage and readers.
+ *
+ * Each stat is fixed width record in single direct buffer - record index is its address. Records of children
+ * form linked list (first/last child, next sibling) so conversion keeps insertion order. Children are found
+ * with open addressing index (also in direct memory) keyed by parent record and name. Names are ints from
+ * {@link IdDictionary} - ids which didn't get int are kept in small string table and encoded as negative numbers.
+ * Histograms are kept in direct memory too: each record points to linked list of chunks, one chunk per power of 2
+ * range of buckets (see {@link LatencyHistogram}), so only ranges which were hit take memory.
+ * Instead of M2 records keep sum of squared differences from shift (first time stored) so single call doesn't divide -
+ * M2 is derived on conversion.
+ *
+ * Record 0 is parent of top level stats. Records are never removed - number of stats is limited
+ * the same way as with statsLeft.
+ *
+ * Not thread safe.
+ */
+class OffHeapStats {
+    static final int RECORD_BYTES = 80;
+    private static final int NAME = 0;
+    private static final int PARENT = 4;
+    private static final int FIRST_CHILD = 8;
+    private static final int LAST_CHILD = 12;
+    private static final int NEXT_SIBLING = 16;
+    private static final int HISTOGRAM = 20;//first chunk
+    private static final int HITS = 24;
+    private static final int ERR = 32;
+    private static final int MAX = 40;
+    private static final int MIN = 48;
+    private static final int SUM = 56;
+    private static final int SQUARES = 64;//sum of squared differences from SHIFT
+    private static final int SHIFT = 72;
+    static final int CHUNK_BYTES = 72;
+    private static final int CHUNK_GROUP = 64;//bucket index of first bucket >> SUB_BUCKET_BITS
+    private static final int CHUNK_NEXT = 68;
+    private static final int TOP = 0;
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 1024;//records
+    private static final int INITIAL_DEPTH = 16;
+
+    private final boolean aggregateSubCalls;
+    private final long maxStatCount;
+    private final IdDictionary dictionary = IdDictionary.global();
+    private ByteBuffer records;
+    private ByteBuffer index;//record + 1 per slot, 0 means empty slot - null in read only copy
+    private int indexMask;
+    private int size = 0;//records including TOP
+    private ByteBuffer chunks;
+    private int chunkCount = 0;
+    private final List<String> names = new ArrayList<>();//ids without int from dictionary
+    private final Map<String, Integer> nameCodes = new HashMap<>();
+    private long skipped = 0;
+    private long untracked = 0;
+    //store() scratch space
+    private Context[] path = new Context[INITIAL_DEPTH];
+    private int[][] levels = new int[INITIAL_DEPTH][];
+
+    OffHeapStats(boolean aggregateSubCalls, long maxStatCount) {
+        this.aggregateSubCalls = aggregateSubCalls;
+        this.maxStatCount = maxStatCount;
+        clear();
+    }
+
+    private OffHeapStats(OffHeapStats source) {
+        this.aggregateSubCalls = source.aggregateSubCalls;
+        this.maxStatCount = source.maxStatCount;
+        this.records = heapCopy(source.records, source.size * RECORD_BYTES);
+        this.chunks = heapCopy(source.chunks, source.chunkCount * CHUNK_BYTES);
+        this.size = source.size;
+        this.chunkCount = source.chunkCount;
+        this.names.addAll(source.names);
+        this.skipped = source.skipped;
+        this.untracked = source.untracked;
+    }
+
+    /**
+     * Copies used part of buffers only - it's much faster than {@link #toStats()} so it can be taken
+     * while collector waits and converted later.
+     * @return copy which can't be updated - it's meant for {@link #toStats()} only
+     */
+    OffHeapStats readOnlyCopy() {
+        return new OffHeapStats(this);
+    }
+
+    private static ByteBuffer heapCopy(ByteBuffer buffer, int used) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(0);
+        source.limit(used);
+        ByteBuffer copy = ByteBuffer.allocate(used).order(ByteOrder.nativeOrder());
+        copy.put(source);
+        return copy;
+    }
+
+    /**
+     * Removes all stats - memory is kept for next stats.
+     */
+    void clear() {
+        if (records == null) {
+            records = allocate(INITIAL_CAPACITY * RECORD_BYTES);
+            index = allocate(INITIAL_CAPACITY * 2 * 4);
+            chunks = allocate(INITIAL_CAPACITY * CHUNK_BYTES);
+        } else {
+            for (int i = 0; i < index.capacity(); i += 4) {
+                index.putInt(i, 0);
+            }
+        }
+        indexMask = index.capacity() / 4 - 1;
+        size = 0;
+        chunkCount = 0;
+        skipped = 0;
+        untracked = 0;
+        names.clear();
+        nameCodes.clear();
+        add(NONE, NONE);//TOP
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return number of stats - without top record
+     */
+    long getStatCount() {
+        return size - 1;
+    }
+
+    long getStatsLeft() {
+        return maxStatCount - getStatCount();
+    }
+
+    /**
+     * @return bytes of direct memory in use
+     */
+    long getDirectBytes() {
+        return records.capacity() + index.capacity() + chunks.capacity();
+    }
+
+    /**
+     * The same as {@link Stats#store(Context)}. Roots which don't fit in limit are counted as untracked.
+     * @param context root of call tree
+     */
+    void store(Context context) {
+        int weight = Math.max(1, context.getWeight());
+        skipped += weight - 1;
+        int root = getOrAdd(TOP, code(context));
+        if (root == NONE) {
+            untracked += weight;
+            return;
+        }
+        update(root, context, weight);
+        if (context.firstChild == null) {
+            return;
+        }
+
+        ensureDepth(0);
+        path[0] = context;
+        levels[0][0] = root;
+        int depth = 0;
+        int maxDepth = 0;
+        Context next = context.firstChild;
+        while (true) {
+            if (next != null) {
+                depth++;
+                maxDepth = Math.max(maxDepth, depth);
+                ensureDepth(depth);
+                path[depth] = next;
+                storeCall(next, levels[depth - 1], levels[depth], depth, weight);
+                next = next.firstChild;
+            } else if (depth > 0) {
+                next = path[depth].nextSibling;
+                depth--;
+            } else {
+                break;
+            }
+        }
+        Arrays.fill(path, 0, maxDepth + 1, null);//don't keep references to pooled contexts
+    }
+
+    private void storeCall(Context call, int[] parentLevel, int[] level, int depth, int weight) {
+        int code = code(call);
+        int inherited = aggregateSubCalls ? depth : 1;
+        for (int i = 0; i < inherited; i++) {
+            int record = parentLevel[i] == NONE ? NONE : getOrAdd(parentLevel[i], code);
+            if (record != NONE) {
+                update(record, call, weight);
+            }
+            level[i] = record;
+        }
+        if (aggregateSubCalls) {
+            //calls which don't fit in root tree don't start new paths either
+            int record = level[0] != NONE ? getOrAdd(TOP, code) : NONE;
+            if (record != NONE) {
+                update(record, call, weight);
+            }
+            level[depth] = record;
+        }
+    }
+
+    private void ensureDepth(int depth) {
+        if (depth >= path.length) {
+            path = Arrays.copyOf(path, path.length * 2);
+            levels = Arrays.copyOf(levels, levels.length * 2);
+        }
+        if (levels[depth] == null) {
+            levels[depth] = new int[aggregateSubCalls ? depth + 1 : 1];
+        }
+    }
+
+    /**
+     * @return int from dictionary or negative code of string table entry
+     */
+    private int code(Context context) {
+        int nameId = context.getNameId(dictionary);
+        if (nameId != IdDictionary.NO_ID) {
+            return nameId;
+        }
+        Integer code = nameCodes.get(context.getId());
+        if (code == null) {
+            code = -2 - names.size();
+            names.add(context.getId());
+            nameCodes.put(context.getId(), code);
+        }
+        return code;
+    }
+
+    private String name(int code) {
+        return code >= 0 ? dictionary.getName(code) : names.get(-2 - code);
+    }
+
+    private int slot(int parent, int code) {
+        return ((parent * 31 + code) * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(indexMask + 1));
+    }
+
+    private int getOrAdd(int parent, int code) {
+        for (int s = slot(parent, code); ; s = (s + 1) & indexMask) {
+            int record = index.getInt(s * 4) - 1;
+            if (record == NONE) {
+                return size - 1 < maxStatCount ? add(parent, code) : NONE;
+            }
+            int offset = record * RECORD_BYTES;
+            if (records.getInt(offset + PARENT) == parent && records.getInt(offset + NAME) == code) {
+                return record;
+            }
+        }
+    }
+
+    private int add(int parent, int code) {
+        if ((size + 1) * RECORD_BYTES > records.capacity()) {
+            grow();
+        }
+        int record = size++;
+        int offset = record * RECORD_BYTES;
+        records.putInt(offset + NAME, code);
+        records.putInt(offset + PARENT, parent);
+        records.putInt(offset + FIRST_CHILD, NONE);
+        records.putInt(offset + LAST_CHILD, NONE);
+        records.putInt(offset + NEXT_SIBLING, NONE);
+        records.putInt(offset + HISTOGRAM, NONE);
+        records.putLong(offset + HITS, 0);
+        records.putLong(offset + ERR, 0);
+        records.putLong(offset + MAX, -1);//not set
+        records.putLong(offset + MIN, 0);
+        records.putLong(offset + SUM, 0);
+        records.putDouble(offset + SQUARES, 0);
+        records.putLong(offset + SHIFT, 0);
+        if (parent != NONE) {
+            int parentOffset = parent * RECORD_BYTES;
+            int last = records.getInt(parentOffset + LAST_CHILD);
+            if (last == NONE) {
+                records.putInt(parentOffset + FIRST_CHILD, record);
+            } else {
+                records.putInt(last * RECORD_BYTES + NEXT_SIBLING, record);
+            }
+            records.putInt(parentOffset + LAST_CHILD, record);
+            addToIndex(record);
+        }
+        return record;
+    }
+
+    private void addToIndex(int record) {
+        int offset = record * RECORD_BYTES;
+        int s = slot(records.getInt(offset + PARENT), records.getInt(offset + NAME));
+        while (index.getInt(s * 4) != 0) {
+            s = (s + 1) & indexMask;
+        }
+        index.putInt(s * 4, record + 1);
+    }
+
+    private void grow() {
+        int capacity = records.capacity() / RECORD_BYTES * 2;
+        records = copy(records, capacity * RECORD_BYTES, size * RECORD_BYTES);
+
+        index = allocate(capacity * 2 * 4);//keeps load below 0.5
+        indexMask = capacity * 2 - 1;
+        for (int record = 1; record < size; record++) {
+            addToIndex(record);
+        }
+    }
+
+    /**
+     * @param used bytes to copy - multiple of 8 as records and chunks are
+     */
+    private static ByteBuffer copy(ByteBuffer buffer, int capacity, int used) {
+        ByteBuffer bigger = allocate(capacity);
+        for (int i = 0; i < used; i += 8) {//absolute access only
+            bigger.putLong(i, buffer.getLong(i));
+        }
+        return bigger;
+    }
+
+    private void update(int record, Context call, int weight) {
+        if (call.calls != null) {
+            updateCalls(record, call.calls, weight);
+            return;
+        }
+        long time = call.getTimeNanos();
+        int offset = record * RECORD_BYTES;
+        if (call.isErr()) {
+            records.putLong(offset + ERR, records.getLong(offset + ERR) + weight);
+        }
+        if (time < 0) {
+            return;
+        }
+        long diff = time - shift(offset, time);
+        updateTimes(offset, time, time, weight, (long) weight * time, (double) weight * diff * diff);
+        addToHistogram(offset, LatencyHistogram.bucketIndex(time), weight);
+    }
+
+    private void updateCalls(int record, Stat calls, int weight) {
+        if (calls.getHits() == 0 || calls.getMaxNanos() < 0) {
+            return;
+        }
+        int offset = record * RECORD_BYTES;
+        records.putLong(offset + ERR, records.getLong(offset + ERR) + weight * calls.getErr());
+        long hits = weight * calls.getHits();
+        long sum = weight * calls.getSumNanos();
+        double diff = (double) sum / hits - shift(offset, calls.getSumNanos() / calls.getHits());
+        updateTimes(offset, calls.getMaxNanos(), calls.getMinNanos(), hits, sum, weight * calls.getM2Nanos() + hits * diff * diff);
+        LatencyHistogram histogram = calls.getHistogram();
+        if (histogram != null) {
+            for (int i = 0; i < histogram.getBucketCount(); i++) {
+                long count = histogram.countAt(i);
+                if (count > 0) {
+                    addToHistogram(offset, histogram.getOffset() + i, weight * count);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param first time to shift by when record has no times yet
+     */
+    private long shift(int offset, long first) {
+        if (records.getLong(offset + HITS) == 0) {
+            records.putLong(offset + SHIFT, first);
+            return first;
+        }
+        return records.getLong(offset + SHIFT);
+    }
+
+    /**
+     * @param squares sum of squared differences of added times from shift
+     */
+    private void updateTimes(int offset, long max, long min, long hits, long sum, double squares) {
+        long currentMax = records.getLong(offset + MAX);
+        if (currentMax < 0) {
+            records.putLong(offset + MAX, max);
+            records.putLong(offset + MIN, min);
+        } else {
+            records.putLong(offset + MAX, Math.max(currentMax, max));
+            records.putLong(offset + MIN, Math.min(records.getLong(offset + MIN), min));
+        }
+        long currentHits = records.getLong(offset + HITS);
+        long currentSum = records.getLong(offset + SUM);
+        records.putDouble(offset + SQUARES, records.getDouble(offset + SQUARES) + squares);
+        records.putLong(offset + HITS, currentHits + hits);
+        records.putLong(offset + SUM, currentSum + sum);
+    }
+
+    private double m2(int offset) {
+        long hits = records.getLong(offset + HITS);
+        if (hits == 0) {
+            return 0;
+        }
+        long diffSum = records.getLong(offset + SUM) - hits * records.getLong(offset + SHIFT);
+        return Math.max(0, records.getDouble(offset + SQUARES) - (double) diffSum * diffSum / hits);
+    }
+
+    private void addToHistogram(int offset, int bucket, long count) {
+        int position = chunk(offset, bucket >>> LatencyHistogram.SUB_BUCKET_BITS) * CHUNK_BYTES
+                + (bucket & (LatencyHistogram.SUB_BUCKETS - 1)) * 8;
+        chunks.putLong(position, chunks.getLong(position) + count);
+    }
+
+    /**
+     * @return chunk of given record's histogram - added if it's missing
+     */
+    private int chunk(int offset, int group) {
+        int first = records.getInt(offset + HISTOGRAM);
+        for (int chunk = first; chunk != NONE; chunk = chunks.getInt(chunk * CHUNK_BYTES + CHUNK_NEXT)) {
+            if (chunks.getInt(chunk * CHUNK_BYTES + CHUNK_GROUP) == group) {
+                return chunk;
+            }
+        }
+        if ((chunkCount + 1) * CHUNK_BYTES > chunks.capacity()) {
+            chunks = copy(chunks, chunks.capacity() * 2, chunkCount * CHUNK_BYTES);
+        }
+        int chunk = chunkCount++;
+        int chunkOffset = chunk * CHUNK_BYTES;
+        for (int i = 0; i < CHUNK_GROUP; i += 8) {
+            chunks.putLong(chunkOffset + i, 0);
+        }
+        chunks.putInt(chunkOffset + CHUNK_GROUP, group);
+        chunks.putInt(chunkOffset + CHUNK_NEXT, first);
+        records.putInt(offset + HISTOGRAM, chunk);
+        return chunk;
+    }
+
+    private LatencyHistogram toHistogram(int first) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int chunk = first; chunk != NONE; chunk = chunks.getInt(chunk * CHUNK_BYTES + CHUNK_NEXT)) {
+            int chunkOffset = chunk * CHUNK_BYTES;
+            int firstBucket = chunks.getInt(chunkOffset + CHUNK_GROUP) << LatencyHistogram.SUB_BUCKET_BITS;
+            for (int i = 0; i < LatencyHistogram.SUB_BUCKETS; i++) {
+                long count = chunks.getLong(chunkOffset + i * 8);
+                if (count > 0) {
+                    histogram.record(LatencyHistogram.bucketLowerBound(firstBucket + i), count);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return heap copy of all stats - it's not affected by further updates
+     */
+    Stats toStats() {
+        Stats stats = new Stats(aggregateSubCalls);
+        stats.setStatsLeft(getStatsLeft());
+        stats.setSkipped(skipped);
+        stats.setUntracked(untracked);
+        addChildren(TOP, stats.getMap());
+        return stats;
+    }
+
+    private void addChildren(int parent, Map<String, Stat> target) {
+        for (int record = records.getInt(parent * RECORD_BYTES + FIRST_CHILD); record != NONE;
+             record = records.getInt(record * RECORD_BYTES + NEXT_SIBLING)) {
+            target.put(name(records.getInt(record * RECORD_BYTES + NAME)), toStat(record));
+        }
+    }
+
+    private Stat toStat(int record) {
+        int offset = record * RECORD_BYTES;
+        Stat stat = new Stat();
+        stat.setHits(records.getLong(offset + HITS));
+        stat.setErr(records.getLong(offset + ERR));
+        stat.setMaxNanos(records.getLong(offset + MAX));
+        stat.setMinNanos(records.getLong(offset + MIN));
+        stat.setSumNanos(records.getLong(offset + SUM));
+        stat.setM2Nanos(m2(offset));
+        int histogram = records.getInt(offset + HISTOGRAM);
+        if (histogram != NONE) {
+            stat.setHistogram(toHistogram(histogram));
+        }
+        if (records.getInt(offset + FIRST_CHILD) != NONE) {
+            stat.ensureChildrenMap();
+            addChildren(record, stat.getChildren());
+        }
+        return stat;
+    }
+}
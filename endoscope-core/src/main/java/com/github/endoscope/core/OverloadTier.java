@@ -0,0 +1,13 @@
+package com.github.endoscope.core;
+
+/**
+ * How much of call tree is kept when collector can't keep up - see {@link StatsShard#add(Context)}.
+ */
+public enum OverloadTier {
+    /** whole tree is queued */
+    NONE,
+    /** children are dropped and only root call is queued */
+    ROOT_ONLY,
+    /** root call is only counted with {@link RootCounter} - nothing is queued */
+    COUNT_ONLY
+}
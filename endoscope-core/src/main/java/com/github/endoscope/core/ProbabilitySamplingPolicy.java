@@ -0,0 +1,40 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.github.endoscope.properties.Properties;
+
+/**
+ * Records root calls with fixed probability.
+ *
+ * Probability is rounded to 1/N so each recorded call represents exactly N calls.
+ */
+public class ProbabilitySamplingPolicy implements SamplingPolicy {
+    private final int interval;
+
+    public ProbabilitySamplingPolicy() {
+        this(Properties.getSamplingProbability());
+    }
+
+    /**
+     * @param probability 0-1
+     */
+    public ProbabilitySamplingPolicy(double probability) {
+        if (probability <= 0 || probability > 1) {
+            throw new IllegalArgumentException("Sampling probability must be in range (0, 1]: " + probability);
+        }
+        interval = (int) Math.max(1, Math.round(1 / probability));
+    }
+
+    @Override
+    public int sample(String id, CurrentStats currentStats) {
+        if (interval == 1 || ThreadLocalRandom.current().nextInt(interval) == 0) {
+            return interval;
+        }
+        return 0;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.endoscope.properties.Properties;
+
+/**
+ * Records at most given number of root calls per second for each root id (token bucket per id).
+ * Rare calls are always recorded while the hottest ones get limited.
+ *
+ * Recorded call represents all calls skipped since previous recorded call with the same id, so hits are exact
+ * except for calls skipped after the last recorded one. Number of tracked ids is limited - calls with ids that
+ * don't fit are always recorded.
+ *
+ * Buckets don't lock: tokens are taken with CAS and clock is read only when bucket is empty and needs refill.
+ * Skipped calls are counted with striped counter so hot ids over limit don't contend on single value.
+ */
+public class RateLimitSamplingPolicy implements SamplingPolicy {
+    static final int MAX_TRACKED_IDS = 10000;
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final long nanosPerToken;
+    private final long maxTokens;
+    private final TimeSource timeSource;
+
+    public RateLimitSamplingPolicy() {
+        this(Properties.getSamplingMaxPerSecond(), new NanoTimeSource());
+    }
+
+    public RateLimitSamplingPolicy(int maxPerSecond, TimeSource timeSource) {
+        if (maxPerSecond <= 0) {
+            throw new IllegalArgumentException("Max calls per second must be positive: " + maxPerSecond);
+        }
+        this.nanosPerToken = Math.max(1, TimeUnit.SECONDS.toNanos(1) / maxPerSecond);
+        this.maxTokens = maxPerSecond;
+        this.timeSource = timeSource;
+    }
+
+    @Override
+    public int sample(String id, CurrentStats currentStats) {
+        Bucket bucket = buckets.get(id);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_TRACKED_IDS) {
+                return 1;
+            }
+            bucket = buckets.computeIfAbsent(id, k -> new Bucket(maxTokens, timeSource.nanoTime()));
+        }
+        if (!bucket.tryTake() && !(refill(bucket) && bucket.tryTake())) {
+            bucket.skipped.increment();
+            return 0;
+        }
+        //calls skipped concurrently are represented either by this call or by the next one
+        return 1 + (int) bucket.skipped.sumThenReset();
+    }
+
+    /**
+     * Adds tokens for whole periods passed since last refill - remainder is kept for next time.
+     * @return false if there was nothing to add
+     */
+    private boolean refill(Bucket bucket) {
+        long now = timeSource.nanoTime();
+        long last = bucket.lastRefill.get();
+        long add = (now - last) / nanosPerToken;
+        if (add <= 0) {
+            return false;
+        }
+        long next = add >= maxTokens ? now : last + add * nanosPerToken;
+        if (bucket.lastRefill.compareAndSet(last, next)) {
+            bucket.tokens.accumulateAndGet(add, (tokens, added) -> Math.min(maxTokens, tokens + added));
+        }
+        return true;//refilled by this or other thread
+    }
+
+    private static class Bucket {
+        private final AtomicLong tokens;
+        private final AtomicLong lastRefill;
+        private final LongAdder skipped = new LongAdder();
+
+        Bucket(long tokens, long now) {
+            this.tokens = new AtomicLong(tokens);
+            this.lastRefill = new AtomicLong(now);
+        }
+
+        boolean tryTake() {
+            while (true) {
+                long available = tokens.get();
+                if (available <= 0) {
+                    return false;
+                }
+                if (tokens.compareAndSet(available, available - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free multi-producer/single-consumer queue.
+ *
+ * Producers claim slot with single CAS on tail sequence and publish element with ordered store to the slot.
+ * Consumer takes elements in batches and moves head sequence once per batch.
+ * Slots are sized to power of 2 so index is computed with mask. Nothing is allocated per element.
+ *
+ * {@link #offer(Object)} is thread safe. {@link #drain(Consumer, int)} must be called by single thread at a time.
+ */
+public class RingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final int capacity;
+
+    private final Sequence head = new Sequence(0);//next slot to consume - written by consumer only
+    private final Sequence tail = new Sequence(0);//next slot to claim by producers
+
+    /**
+     * @param capacity max number of elements - must be > 0
+     */
+    public RingBuffer(int capacity) {
+        if( capacity <= 0 ){
+            throw new IllegalArgumentException("Capacity must be > 0, got: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if( size < capacity ){
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds element at the end of queue. Never blocks.
+     * @param element not null
+     * @return false if queue is full
+     */
+    public boolean offer(E element) {
+        long current;
+        do {
+            current = tail.get();
+            if( current - head.get() >= capacity ){
+                return false;
+            }
+        } while( !tail.compareAndSet(current, current + 1) );
+        slots.lazySet((int)current & mask, element);
+        return true;
+    }
+
+    /**
+     * Passes up to limit elements to consumer. Stops at first claimed but not yet published slot.
+     * @param consumer receives elements in insertion order
+     * @param limit max number of elements to take
+     * @return number of taken elements
+     */
+    public int drain(Consumer<E> consumer, int limit) {
+        long current = head.get();
+        int count = 0;
+        try {
+            while( count < limit ){
+                int index = (int)current & mask;
+                E element = slots.get(index);
+                if( element == null ){
+                    break;//empty or producer didn't publish yet
+                }
+                slots.lazySet(index, null);
+                current++;
+                count++;
+                consumer.accept(element);
+            }
+        } finally {
+            //release slots even if consumer failed - otherwise we'd stop at emptied slot forever
+            if( count > 0 ){
+                head.setOrdered(current);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return approximate number of elements - includes claimed but not yet published slots
+     */
+    public int size() {
+        //read head first so we never get negative value
+        long h = head.get();
+        long t = tail.get();
+        return (int)Math.max(0, Math.min(capacity, t - h));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped counters of root calls that didn't get to the queue because of overload.
+ * Many application threads may update it at the same time without contention.
+ */
+class RootCounter {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder err = new LongAdder();
+    private final LongAdder timeNanos = new LongAdder();
+
+    void add(Context root) {
+        int weight = Math.max(1, root.getWeight());
+        hits.add(weight);
+        timeNanos.add(weight * Math.max(0, root.getTimeNanos()));
+        if (root.isErr()) {
+            err.add(weight);
+        }
+    }
+
+    /**
+     * Moves counted values to stats. Calls counted concurrently are either moved or stay for next time.
+     */
+    void moveTo(Stats stats, String id) {
+        long h = hits.sumThenReset();
+        if (h == 0) {
+            return;
+        }
+        stats.storeCounts(id, h, err.sumThenReset(), timeNanos.sumThenReset());
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.endoscope.core;
+
+/**
+ * Decides which root calls get recorded. When root call is skipped all its nested calls are skipped as well.
+ *
+ * Recorded call might represent more calls - its weight is applied to hits, errors, times and histogram
+ * of whole tree so hits are extrapolated. Skipped calls are counted in {@link Stats#getSkipped()}.
+ *
+ * Implementation must be thread safe and as fast as possible as it's called once per root call.
+ * You can provide your own implementation - see {@link com.github.endoscope.properties.Properties#SAMPLING_POLICY}.
+ */
+public interface SamplingPolicy {
+    /**
+     * @param id root call id
+     * @param currentStats stats the call would be added to
+     * @return 0 to skip the call, otherwise number of calls the recorded one represents
+     */
+    int sample(String id, CurrentStats currentStats);
+}
@@ -0,0 +1,44 @@
+package com.github.endoscope.core;
+
+import com.github.endoscope.properties.Properties;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+public class SamplingPolicyFactory {
+    private static final Logger log = getLogger(SamplingPolicyFactory.class);
+
+    public static final String ALL = "all";
+    public static final String PROBABILITY = "probability";
+    public static final String RATE_LIMIT = "rate-limit";
+    public static final String ADAPTIVE = "adaptive";
+
+    /**
+     * Should not fail. Falls back to {@link AllSamplingPolicy} in case of failure.
+     * @return not null
+     */
+    public SamplingPolicy safeCreate(){
+        String name = Properties.getSamplingPolicy();
+        try {
+            if( ALL.equalsIgnoreCase(name) ){
+                return new AllSamplingPolicy();
+            }
+            if( PROBABILITY.equalsIgnoreCase(name) ){
+                return new ProbabilitySamplingPolicy();
+            }
+            if( RATE_LIMIT.equalsIgnoreCase(name) ){
+                return new RateLimitSamplingPolicy();
+            }
+            if( ADAPTIVE.equalsIgnoreCase(name) ){
+                return new AdaptiveSamplingPolicy();
+            }
+            Class<? extends SamplingPolicy> clazz = (Class<? extends SamplingPolicy>)Class.forName(name);
+            SamplingPolicy policy = clazz.newInstance();
+            log.debug("Successfully created SamplingPolicy instance: {}", name);
+            return policy;
+        } catch (Exception e) {
+            log.warn("Failed to create SamplingPolicy: {} - recording all calls.", name, e);
+        }
+        return new AllSamplingPolicy();
+    }
+}
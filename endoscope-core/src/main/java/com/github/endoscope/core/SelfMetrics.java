@@ -0,0 +1,245 @@
+package com.github.endoscope.core;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Cost of Endoscope itself: sampled push/pop latency of application threads, queue and collector metrics,
+ * time readers wait for stats and stats saving.
+ *
+ * Push/pop are measured once per {@link com.github.endoscope.properties.Properties#SELF_METRICS_SAMPLE} calls
+ * of each thread so measuring doesn't cost much more than what it measures.
+ *
+ * MBean is registered as {@link #OBJECT_NAME} unless other instance (e.g. of another web application) got it first -
+ * then instance key is added to the name. It must be unregistered when Endoscope stops so old class loader
+ * doesn't leak.
+ */
+public class SelfMetrics implements SelfMetricsMBean {
+    private static final Logger log = getLogger(SelfMetrics.class);
+    public static final String OBJECT_NAME = "com.github.endoscope:type=SelfMetrics";
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final CurrentStats currentStats;
+    private final Timer push = new Timer();
+    private final Timer pop = new Timer();
+    private final Timer readWait = new Timer();
+    private final Timer save = new Timer();
+    private final AtomicLong failedSaves = new AtomicLong();
+    private volatile long lastSaveNanos;
+    private volatile long lastSaveEstimatedBytes;
+    private volatile ObjectName registeredName;//null unless registered as MBean
+
+    /**
+     * Count, sum and max of measured times - updated by many threads.
+     */
+    private static final class Timer {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sumNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long avgNanos() {
+            long c = count.get();
+            return c == 0 ? 0 : sumNanos.get() / c;
+        }
+    }
+
+    SelfMetrics(CurrentStats currentStats) {
+        this.currentStats = currentStats;
+    }
+
+    void recordPush(long nanos) {
+        push.record(nanos);
+    }
+
+    void recordPop(long nanos) {
+        pop.record(nanos);
+    }
+
+    void recordReadWait(long nanos) {
+        readWait.record(nanos);
+    }
+
+    /**
+     * @param estimatedBytes estimated heap size of saved stats - see {@link Stats#estimateBytes()}
+     */
+    void recordSave(long nanos, long estimatedBytes, boolean saved) {
+        if (!saved) {
+            failedSaves.incrementAndGet();
+            return;
+        }
+        save.record(nanos);
+        lastSaveNanos = nanos;
+        lastSaveEstimatedBytes = estimatedBytes;
+    }
+
+    /**
+     * Registers this instance in platform MBean server - MBean of other instance is never replaced.
+     */
+    void safeRegisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                name = new ObjectName(OBJECT_NAME + ",instance=" + instances.incrementAndGet());
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (Exception e) {
+            log.warn("failed to register {} MBean", OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Removes MBean registered by {@link #safeRegisterMBean()} - does nothing if it wasn't registered.
+     */
+    void safeUnregisterMBean() {
+        ObjectName name = registeredName;
+        if (name == null) {
+            return;
+        }
+        registeredName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            log.warn("failed to unregister {} MBean", name, e);
+        }
+    }
+
+    /**
+     * @return name this instance is registered with - null unless it's registered as MBean
+     */
+    public ObjectName getRegisteredName() {
+        return registeredName;
+    }
+
+    /**
+     * @return number of measured push calls
+     */
+    public long getPushSamples() {
+        return push.count.get();
+    }
+
+    public long getAvgPushNanos() {
+        return push.avgNanos();
+    }
+
+    public long getMaxPushNanos() {
+        return push.maxNanos.get();
+    }
+
+    /**
+     * @return number of measured pop calls
+     */
+    public long getPopSamples() {
+        return pop.count.get();
+    }
+
+    public long getAvgPopNanos() {
+        return pop.avgNanos();
+    }
+
+    public long getMaxPopNanos() {
+        return pop.maxNanos.get();
+    }
+
+    public long getQueueSize() {
+        return currentStats.getQueueSize();
+    }
+
+    /**
+     * @return biggest queue size seen by collector - summed up in case of multiple shards
+     */
+    public long getMaxQueueSize() {
+        return currentStats.getCollectorMetrics().getMaxQueueSize();
+    }
+
+    public double getDrainRate() {
+        return currentStats.getCollectorMetrics().getDrainRate();
+    }
+
+    public long getLagMillis() {
+        return currentStats.getCollectorMetrics().getLagMillis();
+    }
+
+    public long getMaxLagMillis() {
+        return currentStats.getCollectorMetrics().getMaxLagMillis();
+    }
+
+    /**
+     * @return average time of storing single tree in stats
+     */
+    public long getAvgStoreNanos() {
+        return currentStats.getCollectorMetrics().getAvgStoreNanos();
+    }
+
+    /**
+     * @return number of stats reads - see {@link CurrentStats#lockReadStats(java.util.function.Function)}
+     */
+    public long getReads() {
+        return readWait.count.get();
+    }
+
+    /**
+     * @return average time readers waited for stats (lock or fresh snapshot)
+     */
+    public long getAvgReadWaitNanos() {
+        return readWait.avgNanos();
+    }
+
+    public long getMaxReadWaitNanos() {
+        return readWait.maxNanos.get();
+    }
+
+    public long getSaves() {
+        return save.count.get();
+    }
+
+    public long getFailedSaves() {
+        return failedSaves.get();
+    }
+
+    public long getLastSaveMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastSaveNanos);
+    }
+
+    public long getMaxSaveMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(save.maxNanos.get());
+    }
+
+    /**
+     * @return estimated heap size of last saved stats - not size of what storage wrote, it depends on storage
+     */
+    public long getLastSaveEstimatedBytes() {
+        return lastSaveEstimatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SelfMetrics{" +
+                "avgPushNanos=" + getAvgPushNanos() +
+                ", avgPopNanos=" + getAvgPopNanos() +
+                ", queueSize=" + getQueueSize() +
+                ", maxQueueSize=" + getMaxQueueSize() +
+                ", drainRate=" + getDrainRate() +
+                ", lagMillis=" + getLagMillis() +
+                ", avgStoreNanos=" + getAvgStoreNanos() +
+                ", avgReadWaitNanos=" + getAvgReadWaitNanos() +
+                ", lastSaveMillis=" + getLastSaveMillis() +
+                ", lastSaveEstimatedBytes=" + getLastSaveEstimatedBytes() +
+                '}';
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.endoscope.core;
+
+/**
+ * JMX view of {@link SelfMetrics}.
+ */
+public interface SelfMetricsMBean {
+    long getPushSamples();
+
+    long getAvgPushNanos();
+
+    long getMaxPushNanos();
+
+    long getPopSamples();
+
+    long getAvgPopNanos();
+
+    long getMaxPopNanos();
+
+    long getQueueSize();
+
+    long getMaxQueueSize();
+
+    double getDrainRate();
+
+    long getLagMillis();
+
+    long getMaxLagMillis();
+
+    long getAvgStoreNanos();
+
+    long getReads();
+
+    long getAvgReadWaitNanos();
+
+    long getMaxReadWaitNanos();
+
+    long getSaves();
+
+    long getFailedSaves();
+
+    long getLastSaveMillis();
+
+    long getMaxSaveMillis();
+
+    long getLastSaveEstimatedBytes();
+}
@@ -0,0 +1,52 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Counter padded on both sides so it occupies whole cache line(s) and updates of one sequence
+ * don't invalidate cache lines of objects allocated next to it (false sharing).
+ *
+ * Padding is done with class hierarchy as JVM doesn't reorder fields across classes.
+ */
+class Sequence extends SequenceValue {
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    Sequence(long initial) {
+        set(initial);
+    }
+
+    //prevents JIT from removing "unused" padding fields
+    long sumPaddingToPreventOptimisation() {
+        return p1 + p2 + p3 + p4 + p5 + p6 + p7 + p9 + p10 + p11 + p12 + p13 + p14 + p15;
+    }
+}
+
+class SequenceLhsPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequenceLhsPadding {
+    private static final AtomicLongFieldUpdater<SequenceValue> UPDATER =
+            AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    protected volatile long value;
+
+    long get() {
+        return value;
+    }
+
+    void set(long newValue) {
+        value = newValue;
+    }
+
+    /**
+     * Ordered store - cheaper than volatile write. Use when value is updated by single thread only.
+     */
+    void setOrdered(long newValue) {
+        UPDATER.lazySet(this, newValue);
+    }
+
+    boolean compareAndSet(long expected, long newValue) {
+        return UPDATER.compareAndSet(this, expected, newValue);
+    }
+}
@@ -1,22 +1,53 @@
 package com.github.endoscope.core;
 
 import java.beans.Transient;
-import java.util.HashMap;
 import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
-
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * Times are kept in nanoseconds. Millisecond properties (max, min, avg) are views kept for UI and older data
+ * which doesn't contain nanosecond values - that's why nanosecond properties are serialized after them and override
+ * millisecond values when both are present.
+ *
+ * Average is derived on read from exact sum of times so there is no floating point drift nor division per update.
+ * Standard deviation is derived from M2 - sum of squared differences from average. Single calls are accumulated
+ * as differences from fixed shift (first of them) so update doesn't divide. They are folded into M2 with Chan's
+ * parallel formula on merge and derived on read - shift is close to average so it doesn't lose precision
+ * the way sum of squares of nanoseconds would.
+ * Data stored before sums were introduced has average only - sum is restored from it and M2 stays 0 (standard
+ * deviation is 0 then).
+ *
+ * Every update is also recorded in {@link LatencyHistogram} which gives percentiles (p50, p95, p99).
+ * Data stored before histograms were introduced has no histogram - percentiles are -1 then.
+ * When such data gets merged with new one percentiles reflect new part only.
+ *
+ * Children are kept in {@link StatMap} keyed by ints from {@link IdDictionary} - names are used for serialization only.
+ */
 @JsonIgnoreProperties(ignoreUnknown = true)
-@JsonPropertyOrder({"hits", "err", "max", "min", "avg", "children"})
+@JsonPropertyOrder({"hits", "err", "max", "min", "avg", "maxNanos", "minNanos", "avgNanos",
+        "sumNanos", "m2Nanos", "stdDevNanos", "p50Nanos", "p95Nanos", "p99Nanos", "histogram", "children"})
 public class Stat {
+    private static final double NANOS_IN_MILLI = 1000000;
+
     private long hits = 0;
     private long err = 0;
-    private long max = -1;//-1 means it's not set
-    private long min = 0;
-    private double avg = 0;
+    private long maxNanos = -1;//-1 means it's not set
+    private long minNanos = 0;
+    private long sumNanos = 0;
+    private double m2Nanos = 0;//sum of squared differences from average - without pending calls
+    //single calls not folded into m2Nanos yet - differences from shift
+    private long shift;
+    private long pendingHits = 0;
+    private long pendingSum = 0;
+    private double pendingSquares = 0;
+    private LatencyHistogram histogram;
 
     private Map<String, Stat> children;
+    int modified;//generation of Stats which changed it last time - see Stats#snapshot
 
     public Stat() {
     }
@@ -38,40 +69,188 @@ public class Stat {
     }
 
     public long getMax() {
-        return max;
+        return maxNanos < 0 ? -1 : toMillis(maxNanos);
     }
 
     public void setMax(long max) {
-        this.max = max;
+        this.maxNanos = max < 0 ? -1 : toNanos(max);
     }
 
     public long getMin() {
-        return min;
+        return toMillis(minNanos);
     }
 
     public void setMin(long min) {
-        this.min = min;
+        this.minNanos = toNanos(min);
     }
 
     public long getAvg() {
-        return Math.round(avg);
+        return toMillis(getAvgNanos());
     }
 
+    /**
+     * Restores sum from average - hits must be set first.
+     * @param avg in milliseconds
+     */
     public void setAvg(long avg) {
-        this.avg = avg;
+        setAvgNanos(toNanos(avg));
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public void setMaxNanos(long maxNanos) {
+        this.maxNanos = maxNanos;
+    }
+
+    public long getMinNanos() {
+        return minNanos;
+    }
+
+    public void setMinNanos(long minNanos) {
+        this.minNanos = minNanos;
+    }
+
+    public double getAvgNanos() {
+        return hits == 0 ? 0 : (double) sumNanos / hits;
+    }
+
+    /**
+     * Restores sum from average - hits must be set first. Used for data stored before sums were introduced.
+     */
+    public void setAvgNanos(double avgNanos) {
+        this.sumNanos = Math.round(avgNanos * hits);
+    }
+
+    public long getSumNanos() {
+        return sumNanos;
+    }
+
+    public void setSumNanos(long sumNanos) {
+        this.sumNanos = sumNanos;
+    }
+
+    /**
+     * Derived from pending calls without changing state - snapshots might be read by many threads.
+     * @return sum of squared differences of times from average
+     */
+    public double getM2Nanos() {
+        if (pendingHits == 0) {
+            return m2Nanos;
+        }
+        long sum = pendingSum + pendingHits * shift;
+        double pendingM2 = Math.max(0, pendingSquares - (double) pendingSum * pendingSum / pendingHits);
+        return mergeM2(hits - pendingHits, sumNanos - sum, m2Nanos, pendingHits, sum, pendingM2);
+    }
+
+    /**
+     * Meant for deserialization - hits and sum are expected to include all calls.
+     */
+    public void setM2Nanos(double m2Nanos) {
+        this.m2Nanos = m2Nanos;
+        clearPending();
+    }
+
+    private void foldPending() {
+        if (pendingHits > 0) {
+            m2Nanos = getM2Nanos();
+            clearPending();
+        }
+    }
+
+    private void clearPending() {
+        pendingHits = 0;
+        pendingSum = 0;
+        pendingSquares = 0;
+    }
+
+    /**
+     * @return population standard deviation in nanoseconds
+     */
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    public double getStdDevNanos() {
+        return hits == 0 ? 0 : Math.sqrt(getM2Nanos() / hits);
+    }
+
+    /**
+     * Chan's parallel formula - M2 of two groups of times put together.
+     * Group is given by number of times, their sum and their M2.
+     */
+    static double mergeM2(long hitsA, long sumA, double m2A, long hitsB, long sumB, double m2B) {
+        if (hitsA == 0) {
+            return m2B;
+        }
+        if (hitsB == 0) {
+            return m2A;
+        }
+        double delta = (double) sumB / hitsB - (double) sumA / hitsA;
+        return m2A + m2B + delta * delta * ((double) hitsA * hitsB / (hitsA + hitsB));
+    }
+
+    /**
+     * @return null if there is no data or it was stored before histograms were introduced
+     */
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public void setHistogram(LatencyHistogram histogram) {
+        this.histogram = histogram;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return approximate time in nanoseconds or -1 if there is no histogram
+     */
+    @Transient
+    public long getPercentileNanos(double percentile) {
+        if (histogram == null || histogram.isEmpty()) {
+            return -1;
+        }
+        long value = histogram.getValueAtPercentile(percentile);
+        //bucket midpoint might be outside of known range
+        if (maxNanos >= 0) {
+            value = Math.max(minNanos, Math.min(maxNanos, value));
+        }
+        return value;
+    }
+
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    public long getP50Nanos() {
+        return getPercentileNanos(50);
+    }
+
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    public long getP95Nanos() {
+        return getPercentileNanos(95);
+    }
+
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    public long getP99Nanos() {
+        return getPercentileNanos(99);
+    }
+
+    private static long toMillis(double nanos) {
+        return Math.round(nanos / NANOS_IN_MILLI);
+    }
+
+    private static long toNanos(long millis) {
+        return millis * (long)NANOS_IN_MILLI;
     }
 
     public Map<String, Stat> getChildren() {
         return children;
     }
 
+    @JsonDeserialize(as = StatMap.class)
     public void setChildren(Map<String, Stat> children) {
         this.children = children;
     }
 
     public void ensureChildrenMap() {
         if (children == null) {
-            children = new HashMap<>();
+            children = new StatMap();
         }
     }
 
@@ -89,21 +268,118 @@ public class Stat {
         return child;
     }
 
+    /**
+     * Int keyed lookup used by aggregation - falls back to id when children map was set from outside.
+     * @param nameId int mapped to id by {@link IdDictionary#global()} or NO_ID
+     */
+    Stat getChild(int nameId, String id) {
+        ensureChildrenMap();
+        if (nameId != IdDictionary.NO_ID && children instanceof StatMap) {
+            return ((StatMap) children).getById(nameId);
+        }
+        return children.get(id);
+    }
+
+    Stat createChild(int nameId, String id) {
+        ensureChildrenMap();
+        Stat child = new Stat();
+        if (children instanceof StatMap) {
+            ((StatMap) children).putById(nameId, id, child);
+        } else {
+            children.put(id, child);
+        }
+        return child;
+    }
+
+    /**
+     * @return approximate heap size in bytes - including histogram and children map but without child stats
+     */
+    long estimateBytes() {
+        long bytes = 104;
+        if (histogram != null) {
+            bytes += histogram.estimateBytes();
+        }
+        if (children instanceof StatMap) {
+            bytes += ((StatMap) children).estimateBytes();
+        } else if (children != null) {
+            bytes += 48 + 48L * children.size();
+        }
+        return bytes;
+    }
+
+    /**
+     * @param time in milliseconds
+     */
     public void update(long time) {
         if (time < 0) return;
-        if (max < 0) {
-            avg = max = min = time;
+        updateNanos(toNanos(time));
+    }
+
+    public void updateNanos(long time) {
+        updateNanos(time, 1);
+    }
+
+    /**
+     * @param time in nanoseconds
+     * @param weight number of calls this one represents - greater than 1 when calls are sampled
+     */
+    public void updateNanos(long time, long weight) {
+        if (time < 0) return;
+        if (maxNanos < 0) {
+            maxNanos = minNanos = time;
         } else {
-            max = Math.max(max, time);
-            min = Math.min(min, time);
-            avg = (avg * hits + time) / (hits + 1);
+            maxNanos = Math.max(maxNanos, time);
+            minNanos = Math.min(minNanos, time);
+        }
+        if (pendingHits == 0) {
+            shift = time;
+        }
+        long diff = time - shift;
+        pendingHits += weight;
+        pendingSum += weight * diff;
+        pendingSquares += (double) weight * diff * diff;
+        hits += weight;
+        sumNanos += weight * time;
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+        }
+        histogram.record(time, weight);
+    }
+
+    /**
+     * Adds calls aggregated in other stat - children are ignored.
+     * @param calls stat of calls (see {@link Context#addCall(Context)})
+     * @param weight number of times each call is counted - greater than 1 when calls are sampled
+     */
+    public void updateCalls(Stat calls, long weight) {
+        if (calls.hits == 0 || calls.maxNanos < 0) return;
+        if (maxNanos < 0) {
+            maxNanos = calls.maxNanos;
+            minNanos = calls.minNanos;
+        } else {
+            maxNanos = Math.max(maxNanos, calls.maxNanos);
+            minNanos = Math.min(minNanos, calls.minNanos);
+        }
+        foldPending();
+        m2Nanos = mergeM2(hits, sumNanos, m2Nanos, weight * calls.hits, weight * calls.sumNanos, weight * calls.getM2Nanos());
+        hits += weight * calls.hits;
+        err += weight * calls.err;
+        sumNanos += weight * calls.sumNanos;
+        if (calls.histogram != null) {
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+            }
+            histogram.merge(calls.histogram, weight);
         }
-        hits++;
     }
 
     public void updateErr(boolean err) {
+        updateErr(err, 1);
+    }
+
+    public void updateErr(boolean err, long weight) {
         if (err) {
-            this.err++;
+            this.err += weight;
         }
     }
 
@@ -128,13 +404,20 @@ public class Stat {
      */
     @Transient
     public void merge(Stat inc, boolean withChildren) {
-        max = Math.max(max, inc.max);
-        min = Math.min(min, inc.min);
+        maxNanos = Math.max(maxNanos, inc.maxNanos);
+        minNanos = Math.min(minNanos, inc.minNanos);
         err += inc.err;
-
-        if (hits + inc.hits > 0) {
-            avg = (avg * hits + inc.avg * inc.hits) / (hits + inc.hits);
-            hits += inc.hits;
+        foldPending();
+        m2Nanos = mergeM2(hits, sumNanos, m2Nanos, inc.hits, inc.sumNanos, inc.getM2Nanos());
+        hits += inc.hits;
+        sumNanos += inc.sumNanos;
+
+        if (inc.histogram != null) {
+            if (histogram == null) {
+                histogram = inc.histogram.copy();
+            } else {
+                histogram.merge(inc.histogram);
+            }
         }
 
         if (withChildren) {
@@ -157,13 +440,52 @@ public class Stat {
         s2.children.forEach((k2, v2) -> {
             Stat v1 = children.get(k2);
             if (v1 == null) {
-                children.put(k2, v2);
+                children.put(k2, v2.deepCopy());//don't share instances - source might still be updated
             } else {
                 v1.merge(v2);
             }
         });
     }
 
+    /**
+     * Clears all values so instance can be reused - histogram keeps its buckets.
+     */
+    void clear() {
+        hits = 0;
+        err = 0;
+        maxNanos = -1;
+        minNanos = 0;
+        sumNanos = 0;
+        m2Nanos = 0;
+        clearPending();
+        if (histogram != null) {
+            histogram.clear();
+        }
+        children = null;
+        modified = 0;
+    }
+
+    /**
+     * Clears values of this stat and all its children but keeps children maps and histogram buckets
+     * so the same calls can be stored again without allocating.
+     */
+    void clearValues() {
+        Map<String, Stat> kept = children;
+        clear();
+        children = kept;
+        if (children != null) {
+            children.values().forEach(Stat::clearValues);
+        }
+    }
+
+    /**
+     * @return true if nothing was stored in it since it was created or cleared
+     */
+    @Transient
+    boolean isUnused() {
+        return hits == 0 && err == 0;
+    }
+
     @Transient
     public Stat deepCopy() {
         return deepCopy(true);
@@ -173,7 +495,8 @@ public class Stat {
     public Stat deepCopy(boolean withChildren) {
         Stat s = new Stat();
         s.merge(this, withChildren);
-        s.setMin(min);
+        s.setMinNanos(minNanos);
+        s.modified = modified;
         return s;
     }
 
@@ -186,9 +509,11 @@ public class Stat {
 
         if (hits != stat.hits) return false;
         if (err != stat.err) return false;
-        if (max != stat.max) return false;
-        if (min != stat.min) return false;
-        if (compareDoubleLowPrecision(stat.avg, avg) != 0) return false;
+        if (maxNanos != stat.maxNanos) return false;
+        if (minNanos != stat.minNanos) return false;
+        if (sumNanos != stat.sumNanos) return false;
+        if (compareDoubleRelative(stat.getM2Nanos(), getM2Nanos()) != 0) return false;
+        if (histogram != null ? !histogram.equals(stat.histogram) : stat.histogram != null) return false;
         return children != null ? children.equals(stat.children) : stat.children == null;
     }
 
@@ -198,6 +523,13 @@ public class Stat {
         return Long.compare(l1, l2);
     }
 
+    private static int compareDoubleRelative(double d1, double d2) {
+        if (Math.abs(d1 - d2) <= 1e-12 * Math.max(Math.abs(d1), Math.abs(d2))) {
+            return 0;
+        }
+        return Double.compare(d1, d2);
+    }
+
     public static Stat emptyStat() {
         Stat s = new Stat();
         s.setMax(0);
@@ -207,14 +539,12 @@ public class Stat {
     @Override
     public int hashCode() {
         int result;
-        long temp;
         result = (int) (hits ^ (hits >>> 32));
         result = 31 * result + (int) (err ^ (err >>> 32));
-        result = 31 * result + (int) (max ^ (max >>> 32));
-        result = 31 * result + (int) (min ^ (min >>> 32));
-        temp = Double.doubleToLongBits(avg);
-        result = 31 * result + (int) (temp ^ (temp >>> 32));
-        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        result = 31 * result + (int) (maxNanos ^ (maxNanos >>> 32));
+        result = 31 * result + (int) (minNanos ^ (minNanos >>> 32));
+        result = 31 * result + (int) (sumNanos ^ (sumNanos >>> 32));
+        result = 31 * result + (histogram != null ? histogram.hashCode() : 0);
         result = 31 * result + (children != null ? children.hashCode() : 0);
         return result;
     }
@@ -224,9 +554,11 @@ public class Stat {
         return "Stat{" +
                 "hits=" + hits +
                 ", err=" + err +
-                ", max=" + max +
-                ", min=" + min +
-                ", avg=" + avg +
+                ", maxNanos=" + maxNanos +
+                ", minNanos=" + minNanos +
+                ", sumNanos=" + sumNanos +
+                ", m2Nanos=" + getM2Nanos() +
+                ", histogram=" + histogram +
                 ", children=" + children +
                 '}';
     }
@@ -0,0 +1,435 @@
+package com.github.endoscope.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Compact map of stats keyed internally by ints from {@link IdDictionary}. Aggregation path uses {@link #getById(int)}
+ * and {@link #putById(int, String, Stat)} which neither hash nor compare strings. Regular Map methods translate
+ * string keys with dictionary so serialization, storage and UI see plain Map&lt;String, Stat&gt;.
+ *
+ * Most stats have just a few children so there are no entry objects: entries are kept in insertion order in two
+ * parallel arrays (ints and values) sized to what's needed. Maps with less than {@link #SMALL_SIZE} entries are
+ * searched by linear scan, bigger ones get open addressing index (linear probing) of entry positions.
+ * Names are taken from dictionary - names without int are kept here (with {@link IdDictionary#NO_ID})
+ * and such entries are indexed by name hash. Only aggregation path assigns ints (calls pushed by Engine):
+ * {@link #put(String, Stat)} used by deserialization, storage and merging only looks names up so loaded stats don't
+ * fill up the dictionary. Entry without int gets it once aggregation finds it by int assigned later.
+ *
+ * Not thread safe.
+ */
+public class StatMap extends AbstractMap<String, Stat> {
+    static final int SMALL_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 2;
+
+    private final IdDictionary dictionary;
+    private int[] ids;//null when empty
+    private Stat[] values;
+    private String[] names;//null until entry without int shows up
+    private int size = 0;
+    private int[] index;//entry position + 1, 0 means empty slot; null in small map
+
+    public StatMap() {
+        this(IdDictionary.global());
+    }
+
+    StatMap(IdDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    private int slot(int hash) {
+        return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(index.length));
+    }
+
+    private int hash(int position) {
+        return ids[position] == IdDictionary.NO_ID ? names[position].hashCode() : ids[position];
+    }
+
+    private int positionById(int nameId) {
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == nameId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int s = slot(nameId); index[s] != 0; s = (s + 1) & mask) {
+            int position = index[s] - 1;
+            if (ids[position] == nameId) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds entry added with int or with name only. Name only entry gets the int.
+     */
+    private int positionByIdOrName(int nameId) {
+        int position = positionById(nameId);
+        if (position >= 0 || names == null) {
+            return position;
+        }
+        position = positionOfUnmapped(dictionary.getName(nameId));
+        if (position >= 0) {
+            if (index != null) {
+                removeFromIndex(position);
+            }
+            ids[position] = nameId;
+            names[position] = null;
+            if (index != null) {
+                addToIndex(position);
+            }
+        }
+        return position;
+    }
+
+    private int positionByName(String name) {
+        int nameId = dictionary.lookup(name);
+        if (nameId != IdDictionary.NO_ID) {
+            int position = positionById(nameId);
+            if (position >= 0) {
+                return position;
+            }
+        }
+        return positionOfUnmapped(name);
+    }
+
+    private int positionOfUnmapped(String name) {
+        if (names == null) {
+            return -1;
+        }
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == IdDictionary.NO_ID && names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int s = slot(name.hashCode()); index[s] != 0; s = (s + 1) & mask) {
+            int position = index[s] - 1;
+            if (ids[position] == IdDictionary.NO_ID && names[position].equals(name)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private String nameAt(int position) {
+        int nameId = ids[position];
+        return nameId == IdDictionary.NO_ID ? names[position] : dictionary.getName(nameId);
+    }
+
+    /**
+     * @param nameId int from dictionary this map uses, must not be NO_ID
+     */
+    public Stat getById(int nameId) {
+        int position = positionByIdOrName(nameId);
+        return position < 0 ? null : values[position];
+    }
+
+    /**
+     * @param nameId int assigned to name by dictionary this map uses or NO_ID
+     * @return previous value
+     */
+    public Stat putById(int nameId, String name, Stat value) {
+        int position = nameId == IdDictionary.NO_ID ? positionByName(name) : positionByIdOrName(nameId);
+        if (position >= 0) {
+            Stat previous = values[position];
+            values[position] = value;
+            return previous;
+        }
+        append(nameId, name, value);
+        return null;
+    }
+
+    private void append(int nameId, String name, Stat value) {
+        if (ids == null) {
+            ids = new int[INITIAL_CAPACITY];
+            values = new Stat[INITIAL_CAPACITY];
+        } else if (size == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            values = Arrays.copyOf(values, capacity);
+            if (names != null) {
+                names = Arrays.copyOf(names, capacity);
+            }
+        }
+        if (nameId == IdDictionary.NO_ID && names == null) {
+            names = new String[ids.length];
+        }
+        ids[size] = nameId;
+        values[size] = value;
+        if (nameId == IdDictionary.NO_ID) {
+            names[size] = name;
+        }
+        size++;
+        if (index == null) {
+            if (size >= SMALL_SIZE) {
+                rebuildIndex(Integer.highestOneBit(size) * 4);
+            }
+        } else if (size * 2 > index.length) {
+            rebuildIndex(index.length * 2);
+        } else {
+            addToIndex(size - 1);
+        }
+    }
+
+    private void addToIndex(int position) {
+        int mask = index.length - 1;
+        int s = slot(hash(position));
+        while (index[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        index[s] = position + 1;
+    }
+
+    private void rebuildIndex(int length) {
+        if (size < SMALL_SIZE) {
+            index = null;
+            return;
+        }
+        index = new int[length];
+        for (int i = 0; i < size; i++) {
+            addToIndex(i);
+        }
+    }
+
+    private Stat removeAt(int position) {
+        Stat previous = values[position];
+        int moved = size - position - 1;
+        System.arraycopy(ids, position + 1, ids, position, moved);
+        System.arraycopy(values, position + 1, values, position, moved);
+        if (names != null) {
+            System.arraycopy(names, position + 1, names, position, moved);
+            names[size - 1] = null;
+        }
+        size--;
+        values[size] = null;
+        if (index != null) {
+            rebuildIndex(index.length);//positions changed - removal is rare so rebuild whole index
+        }
+        return previous;
+    }
+
+    private void removeFromIndex(int position) {
+        int mask = index.length - 1;
+        int hole = slot(hash(position));
+        while (index[hole] != position + 1) {
+            hole = (hole + 1) & mask;
+        }
+        //backward shift - entries which can't be found past the hole get moved into it
+        for (int s = (hole + 1) & mask; index[s] != 0; s = (s + 1) & mask) {
+            int home = slot(hash(index[s] - 1));
+            if (((s - home) & mask) >= ((s - hole) & mask)) {
+                index[hole] = index[s];
+                hole = s;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    /**
+     * Replaces entry with entry of other key at the same position - unlike remove and put it doesn't move
+     * other entries nor rebuild index.
+     * @param newKey must not be in the map
+     * @return previous value of key or null when key was not found (map is not changed then)
+     */
+    Stat replaceKey(String key, String newKey, Stat value) {
+        int position = positionByName(key);
+        if (position < 0) {
+            return null;
+        }
+        if (index != null) {
+            removeFromIndex(position);
+        }
+        int nameId = dictionary.lookup(newKey);
+        if (nameId == IdDictionary.NO_ID && names == null) {
+            names = new String[ids.length];
+        }
+        ids[position] = nameId;
+        if (names != null) {
+            names[position] = nameId == IdDictionary.NO_ID ? newKey : null;
+        }
+        Stat previous = values[position];
+        values[position] = value;
+        if (index != null) {
+            addToIndex(position);
+        }
+        return previous;
+    }
+
+    /**
+     * @return approximate heap size in bytes - without stats
+     */
+    long estimateBytes() {
+        long bytes = 48;
+        if (ids != null) {
+            bytes += 2 * (16 + 4L * ids.length);
+        }
+        if (names != null) {
+            bytes += 16 + 4L * names.length;
+            for (int i = 0; i < size; i++) {
+                if (names[i] != null) {
+                    bytes += 40 + 2L * names[i].length();
+                }
+            }
+        }
+        if (index != null) {
+            bytes += 16 + 4L * index.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes all matching entries in single pass.
+     * @return number of removed entries
+     */
+    int removeIf(BiPredicate<String, Stat> filter) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!filter.test(nameAt(i), values[i])) {
+                ids[kept] = ids[i];
+                values[kept] = values[i];
+                if (names != null) {
+                    names[kept] = names[i];
+                }
+                kept++;
+            }
+        }
+        int removed = size - kept;
+        if (removed > 0) {
+            Arrays.fill(values, kept, size, null);
+            if (names != null) {
+                Arrays.fill(names, kept, size, null);
+            }
+            size = kept;
+            if (index != null) {
+                rebuildIndex(index.length);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public Stat get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int position = positionByName((String) key);
+        return position < 0 ? null : values[position];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && positionByName((String) key) >= 0;
+    }
+
+    @Override
+    public Stat put(String key, Stat value) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        return putById(dictionary.lookup(key), key, value);
+    }
+
+    @Override
+    public Stat remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int position = positionByName((String) key);
+        return position < 0 ? null : removeAt(position);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        ids = null;
+        values = null;
+        names = null;
+        index = null;
+        size = 0;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Stat> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(nameAt(i), values[i]);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Stat>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Stat>>() {
+            @Override
+            public Iterator<Map.Entry<String, Stat>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Stat>> {
+        private int next = 0;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, Stat> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    private class Entry extends SimpleEntry<String, Stat> {
+        private final int position;
+
+        Entry(int position) {
+            super(nameAt(position), values[position]);
+            this.position = position;
+        }
+
+        @Override
+        public Stat setValue(Stat value) {
+            values[position] = value;
+            return super.setValue(value);
+        }
+    }
+}
@@ -1,23 +1,74 @@
 package com.github.endoscope.core;
 
 import java.beans.Transient;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.github.endoscope.properties.Properties;
 
-@com.fasterxml.jackson.annotation.JsonPropertyOrder({ "statsLeft", "lost", "fatalError", "startDate", "endDate", "map" })
+@com.fasterxml.jackson.annotation.JsonPropertyOrder({ "statsLeft", "lost", "skipped", "reducedToRoot", "countedOnly", "overloadTierChanges", "pruned", "untracked", "fatalError", "startDate", "endDate", "map" })
 public class Stats {
-    private Map<String, Stat> map = new HashMap<>();
+    public static final String OTHER = "(other)";//stats of leaves pruned because of memory budget
+    private static final long NEW_STAT_BYTES = 136;//approximate heap size of new leaf stat with its map entry
+    private static final double PRUNE_START = 0.9;//part of budget above which cold leaves get pruned
+    private static final double PRUNE_TARGET = 0.8;//part of budget left after pruning
+    private static final double RECHECK_GROWTH = 0.05;//part of budget added after unsuccessful pruning before next check
+    private static final int RECHECK_MIN_STATS = 64;//new stats added after unsuccessful pruning before next check
+    private static final int COLD_BATCH_SIZE = 64;//coldest stats found with single scan - candidates for swapping
+    private static final int INITIAL_STORE_DEPTH = 16;
+    private static final int SHAPE_CACHE_SIZE = 256;//compiled tree shapes - see CallTreeShape
+    private static final AtomicInteger LINEAGES = new AtomicInteger();//see getGeneration()
+    private static final int MAX_SHAPE_SIZE = 128;//number of calls - bigger trees are stored without shapes
+
+    private Map<String, Stat> map = new StatMap();//keyed by ints from IdDictionary - see Context#getNameId
     private long statsLeft = Properties.getMaxStatCount();
     private AtomicLong lost = new AtomicLong(0);
+    private long skipped = 0;//root calls skipped by sampling - represented by weight of sampled ones
+    //overload degradation - see OverloadTier
+    private AtomicLong reducedToRoot = new AtomicLong(0);
+    private AtomicLong countedOnly = new AtomicLong(0);
+    private AtomicLong overloadTierChanges = new AtomicLong(0);
+    private long pruned = 0;//stats merged into OTHER because of memory budget or to make room for hotter ones
+    private long untracked = 0;//root calls not stored because stat count limit was reached
+    private long maxBytes = 0;//memory budget - 0 means there is none
+    private long usedBytes = 0;//estimate - stats added since last recount are counted as NEW_STAT_BYTES
+    private long recheckBytes = 0;//estimate to reach before next check when pruning didn't get below budget
     private String fatalError = null;
     private Date startDate;
     private Date endDate;
     private String info;
+    private final IdDictionary dictionary = IdDictionary.global();
+    private final int heavyHittersSize = Properties.getHeavyHittersSize();
+    private HeavyHitters heavyHitters;//created when stat count limit is reached
+    private ArrayDeque<String> coldIds;//top level ids with fewest hits - ascending as of last scan
+    private long coldestHits = 0;//hits of first cold id when it was last checked
+    private int lineage = LINEAGES.incrementAndGet();//shared by stats and its snapshots
+    private int generation = 1;//stats changed since last snapshot are marked with it
+    private int unmarkedAt = 0;//last generation with changes which were not marked (merge, pruning)
+    private int removedAt = 0;//last generation in which top level stat was removed
+    //store() scratch space - reused so storing doesn't allocate
+    private Context[] storePath;
+    private Stat[][] storeLevels;
+    private CallTreeShape[] shapes;
+    private int[] seenShapes;//hash of last tree per cache slot - shape is compiled when it shows up again
+    private Context[] shapeCalls;
+    private Context[] shapePath;
+    private int[] shapeEncoding;
 
     //do not get it from Properties here as we could loose data by accident by calculating Stats on machine with Property turned off
     private boolean aggregateSubCalls = true;
@@ -36,65 +87,538 @@ public class Stats {
     }
 
     private Stat getOrAddParent(Context context) {
-        Stat parentStat = map.get(context.getId());
+        int nameId = context.getNameId(dictionary);
+        if( nameId == IdDictionary.NO_ID || !(map instanceof StatMap) ){
+            return getOrAddParent(context.getId());
+        }
+        StatMap statMap = (StatMap)map;
+        Stat parentStat = statMap.getById(nameId);
         if( parentStat == null && statsLeft > 0 ){
             parentStat = new Stat();
-            statsLeft--;
-            map.put(context.getId(), parentStat);
+            added();
+            statMap.putById(nameId, context.getId(), parentStat);
         }
         return parentStat;
     }
 
+    private Stat getOrAddParent(String id) {
+        Stat parentStat = map.get(id);
+        if( parentStat == null && statsLeft > 0 ){
+            parentStat = new Stat();
+            added();
+            map.put(id, parentStat);
+        }
+        return parentStat;
+    }
+
+    /**
+     * Root weight (see {@link Context#getWeight()}) is applied to whole tree so hits are extrapolated when
+     * roots are sampled.
+     *
+     * Stats for sub calls are collected in two places - in context of parent and separately as root stats.
+     * Context like this:
+     *  a -> b -> c
+     * Results in following stats:
+     *  a -> b -> c
+     *  b -> c
+     *  c
+     * Tree is traversed once with explicit stack - for each call on current path we keep stats of all
+     * paths ending with it (one per ancestor) so stats of the next call are simply children of these.
+     *
+     * Most trees have shape (ids and structure) seen before - such shapes get compiled (see {@link CallTreeShape})
+     * and trees matching them update stats with flat array loop.
+     * @param context root of call tree
+     */
     public void store(Context context){
-        store(context, true);
+        int weight = Math.max(1, context.getWeight());
+        skipped += weight - 1;
+        ensureBudget();
+
+        int size = flatten(context);
+        if( size > 0 ){
+            int hash = CallTreeShape.hash(shapeEncoding, 2 * size);
+            int slot = hash & (SHAPE_CACHE_SIZE - 1);
+            CallTreeShape shape = shapes[slot];
+            if( shape != null && shape.matches(hash, shapeEncoding, 2 * size) ){
+                store(shape, weight);
+            } else {
+                storeTree(context, weight);
+                if( seenShapes[slot] == hash ){
+                    shapes[slot] = compile(size, hash);
+                }
+                seenShapes[slot] = hash;
+            }
+            Arrays.fill(shapeCalls, 0, size, null);//don't keep references to pooled contexts
+            Arrays.fill(shapePath, 0, size, null);
+        } else {
+            storeTree(context, weight);
+        }
     }
 
-    private void store(Context context, boolean firstPass){
-        if( !firstPass && !aggregateSubCalls ){
+    private void storeTree(Context context, int weight){
+        Stat root = getOrAddParent(context);
+        if( root == null ){
+            root = admit(context.getId(), weight);
+            if( root == null ){
+                return;
+            }
+        }
+        update(root, context, weight);
+        if( context.firstChild == null ){
             return;
         }
 
-        Stat root = getOrAddParent(context);
-        if( root != null ){
-            root.update(context.getTime());
-            root.updateErr(context.isErr());
-            store(context, root, firstPass);
+        ensureStoreDepth(0);
+        storePath[0] = context;
+        storeLevels[0][0] = root;
+        int depth = 0;
+        int maxDepth = 0;
+        Context next = context.firstChild;
+        while( true ){
+            if( next != null ){
+                depth++;
+                maxDepth = Math.max(maxDepth, depth);
+                ensureStoreDepth(depth);
+                storePath[depth] = next;
+                storeCall(next, storeLevels[depth - 1], storeLevels[depth], depth, weight);
+                next = next.firstChild;
+            } else if( depth > 0 ){
+                next = storePath[depth].nextSibling;
+                depth--;
+            } else {
+                break;
+            }
         }
+        Arrays.fill(storePath, 0, maxDepth + 1, null);//don't keep references to pooled contexts
     }
 
-    private void store(Context context, final Stat parentStat, boolean firstPass){
-        if( context.getChildren() != null ){
-            //first collect number of calls per parent
-            context.getChildren().stream().forEach( child -> {
-                //update child stats
-                Stat childStat = parentStat.getChild(child.getId());
-                if( childStat == null && statsLeft > 0 ){
-                    childStat = parentStat.createChild(child.getId());
-                    statsLeft--;
+    private void store(CallTreeShape shape, int weight){
+        for( int i=0; i<shape.size(); i++ ){
+            Context call = shapeCalls[i];
+            for( int j=shape.offsets[i]; j<shape.offsets[i + 1]; j++ ){
+                update(shape.targets[j], call, weight);
+            }
+        }
+    }
+
+    /**
+     * Puts calls of tree in pre-order to shapeCalls and their ids and depths to shapeEncoding.
+     * @return number of calls or -1 if tree doesn't qualify for shape (too big or not all ids are mapped)
+     */
+    private int flatten(Context root){
+        if( !(map instanceof StatMap) ){
+            return -1;
+        }
+        if( shapes == null ){
+            shapes = new CallTreeShape[SHAPE_CACHE_SIZE];
+            seenShapes = new int[SHAPE_CACHE_SIZE];
+            shapeCalls = new Context[MAX_SHAPE_SIZE];
+            shapePath = new Context[MAX_SHAPE_SIZE];
+            shapeEncoding = new int[2 * MAX_SHAPE_SIZE];
+        }
+        int size = 0;
+        int depth = 0;
+        Context next = root;
+        while( true ){
+            if( next != null ){
+                int nameId = next.getNameId(dictionary);
+                if( size == MAX_SHAPE_SIZE || nameId == IdDictionary.NO_ID ){
+                    Arrays.fill(shapeCalls, 0, size, null);
+                    Arrays.fill(shapePath, 0, size, null);
+                    return -1;
                 }
-                if( childStat != null ){
-                    childStat.update(child.getTime());
-                    childStat.updateErr(child.isErr());
-
-                    //recurse and update next level of child stats
-                    store(child, childStat, firstPass);
-
-                    //stats for child calls are collected in two places:
-                    //- in context of parent
-                    //- separately as root stats
-                    //Context like this:
-                    // a -> b -> c
-                    //Results in following stats:
-                    // a -> b -> c
-                    // b -> c
-                    // c
-
-                    //recurse and update top level stats for this child
-                    if( firstPass ) {
-                        store(child, false);
-                    }
+                if( size > 0 ){
+                    depth++;
                 }
-            });
+                shapeCalls[size] = next;
+                shapeEncoding[2 * size] = nameId;
+                shapeEncoding[2 * size + 1] = depth;
+                shapePath[depth] = next;
+                size++;
+                next = next.firstChild;
+            } else if( depth > 0 ){
+                next = shapePath[depth].nextSibling;
+                depth--;
+            } else {
+                break;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Collects stats updated by flattened tree - it must be called right after the tree was stored.
+     * @return null if not all stats exist (limit reached)
+     */
+    private CallTreeShape compile(int size, int hash){
+        StatMap statMap = (StatMap)map;
+        int[] offsets = new int[size + 1];
+        for( int i=0; i<size; i++ ){
+            int depth = shapeEncoding[2 * i + 1];
+            offsets[i + 1] = offsets[i] + (aggregateSubCalls ? depth + 1 : 1);
+        }
+        Stat[] targets = new Stat[offsets[size]];
+        for( int i=0; i<size; i++ ){
+            int nameId = shapeEncoding[2 * i];
+            int depth = shapeEncoding[2 * i + 1];
+            ensureStoreDepth(depth);
+            Stat[] level = storeLevels[depth];
+            if( depth == 0 ){
+                level[0] = statMap.getById(nameId);
+            } else {
+                Stat[] parentLevel = storeLevels[depth - 1];
+                int inherited = aggregateSubCalls ? depth : 1;
+                for( int k=0; k<inherited; k++ ){
+                    Stat parent = parentLevel[k];
+                    //don't let lookup create children map
+                    level[k] = parent.getChildren() == null ? null : parent.getChild(nameId, shapeCalls[i].getId());
+                }
+                if( aggregateSubCalls ){
+                    level[depth] = statMap.getById(nameId);
+                }
+            }
+            for( int k=0; k<offsets[i + 1] - offsets[i]; k++ ){
+                if( level[k] == null ){
+                    return null;
+                }
+                targets[offsets[i] + k] = level[k];
+            }
+        }
+        return new CallTreeShape(hash, Arrays.copyOf(shapeEncoding, 2 * size), targets, offsets);
+    }
+
+    /**
+     * @param level stats of all paths ending with given call - index is depth of path start (0 is root)
+     * @param parentLevel the same for parent call
+     */
+    private void storeCall(Context call, Stat[] parentLevel, Stat[] level, int depth, int weight){
+        int nameId = call.getNameId(dictionary);
+        int inherited = aggregateSubCalls ? depth : 1;
+        for( int i=0; i<inherited; i++ ){
+            Stat stat = parentLevel[i];
+            if( stat != null ){
+                Stat child = stat.getChild(nameId, call.getId());
+                if( child == null && statsLeft > 0 ){
+                    child = stat.createChild(nameId, call.getId());
+                    added();
+                }
+                stat = child;
+                if( stat != null ){
+                    update(stat, call, weight);
+                }
+            }
+            level[i] = stat;
+        }
+        if( aggregateSubCalls ){
+            //calls which don't fit in root tree don't start new paths either
+            Stat stat = level[0] != null ? getOrAddParent(call) : null;
+            if( stat != null ){
+                update(stat, call, weight);
+            }
+            level[depth] = stat;
+        }
+    }
+
+    private void update(Stat stat, Context call, int weight){
+        stat.modified = generation;
+        if( call.calls != null ){
+            stat.updateCalls(call.calls, weight);
+            return;
+        }
+        stat.updateNanos(call.getTimeNanos(), weight);
+        stat.updateErr(call.isErr(), weight);
+    }
+
+    private void ensureStoreDepth(int depth){
+        if( storePath == null ){
+            storePath = new Context[INITIAL_STORE_DEPTH];
+            storeLevels = new Stat[INITIAL_STORE_DEPTH][];
+        }
+        if( depth >= storePath.length ){
+            storePath = Arrays.copyOf(storePath, storePath.length * 2);
+            storeLevels = Arrays.copyOf(storeLevels, storeLevels.length * 2);
+        }
+        if( storeLevels[depth] == null ){
+            storeLevels[depth] = new Stat[aggregateSubCalls ? depth + 1 : 1];
+        }
+    }
+
+    private void added(){
+        statsLeft--;
+        usedBytes += NEW_STAT_BYTES;
+    }
+
+    /**
+     * Budget is checked between trees so stats of tree being stored never get pruned. Estimate is recounted
+     * once it exceeds budget (histograms and maps grow without adding stats) and when it's still above
+     * {@link #PRUNE_START} coldest leaves get pruned.
+     * When pruning can't get below budget (e.g. only OTHER entries are left) next check waits until estimate grows
+     * by {@link #RECHECK_GROWTH} of budget or {@link #RECHECK_MIN_STATS} new stats - otherwise every tree would
+     * walk all stats.
+     */
+    private void ensureBudget(){
+        if( maxBytes <= 0 || usedBytes < Math.max(maxBytes, recheckBytes) ){
+            return;
+        }
+        usedBytes = estimateBytes();
+        if( usedBytes >= maxBytes * PRUNE_START ){
+            prune((long)(maxBytes * PRUNE_TARGET));
+        }
+        recheckBytes = usedBytes < maxBytes ? 0
+                : usedBytes + Math.max((long)(maxBytes * RECHECK_GROWTH), RECHECK_MIN_STATS * NEW_STAT_BYTES);
+    }
+
+    /**
+     * @return approximate heap size of stats in bytes - ids are kept in {@link IdDictionary} so they are not counted
+     */
+    long estimateBytes(){
+        long bytes = map instanceof StatMap ? ((StatMap)map).estimateBytes() : 48 + 48L * map.size();
+        return bytes + estimateBytes(map);
+    }
+
+    private static long estimateBytes(Map<String, Stat> stats){
+        long bytes = 0;
+        for(Stat stat : stats.values()){
+            bytes += stat.estimateBytes();
+            if( stat.getChildren() != null ){
+                bytes += estimateBytes(stat.getChildren());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Merges coldest (least hits) leaves into {@link #OTHER} entry of their parent until estimate drops to target.
+     */
+    private void prune(long targetBytes){
+        List<Stat> leaves = new ArrayList<>();
+        collectLeaves(map, leaves);
+        leaves.sort(Comparator.comparingLong(Stat::getHits));
+
+        Set<Stat> selected = Collections.newSetFromMap(new IdentityHashMap<>());
+        long toFree = usedBytes - targetBytes;
+        for(Stat leaf : leaves){
+            if( toFree <= 0 ){
+                break;
+            }
+            selected.add(leaf);
+            toFree -= leaf.estimateBytes() + 8;
+        }
+
+        long removed = pruneLeaves(map, selected);
+        statsLeft += removed;
+        pruned += removed;
+        usedBytes = estimateBytes();
+        forgetShapes();
+        unmarkedAt = generation;
+    }
+
+    private void forgetShapes(){
+        if( shapes != null ){
+            Arrays.fill(shapes, null);//compiled shapes may point to removed stats
+        }
+    }
+
+    /**
+     * Called for root call that doesn't fit in stat count limit. Such ids are followed with {@link HeavyHitters}
+     * and once one is guaranteed to have more hits than one of coldest top level stats it takes its place -
+     * cold stat is merged into {@link #OTHER}. Calls that are still not stored are counted as untracked.
+     * @return new stat for given id or null if call is not stored
+     */
+    private Stat admit(String id, long hits){
+        if( heavyHittersSize <= 0 || id == null || OTHER.equals(id) ){
+            untracked += hits;
+            return null;
+        }
+        if( heavyHitters == null ){
+            heavyHitters = new HeavyHitters(heavyHittersSize);
+        }
+        long guaranteed = heavyHitters.add(id, hits);
+        if( guaranteed <= coldestHits ){
+            untracked += hits;
+            return null;
+        }
+        if( !map.containsKey(OTHER) ){
+            String cold = nextColdId(guaranteed);
+            if( cold == null ){
+                untracked += hits;
+                return null;
+            }
+            evict(cold, OTHER, map.get(cold).deepCopy(false));
+        }
+        Stat stat = new Stat();
+        if( statsLeft > 0 ){//evicted stat had children
+            added();
+            map.put(id, stat);
+        } else {
+            String cold = nextColdId(guaranteed);
+            if( cold == null ){
+                untracked += hits;
+                return null;
+            }
+            map.get(OTHER).merge(map.get(cold), false);
+            evict(cold, id, stat);
+        }
+        heavyHitters.remove(id);
+        return stat;
+    }
+
+    /**
+     * Puts new entry in place of cold one - statsLeft gets children of cold entry back.
+     */
+    private void evict(String cold, String id, Stat stat){
+        Stat removed;
+        if( map instanceof StatMap ){
+            removed = ((StatMap)map).replaceKey(cold, id, stat);
+        } else {
+            removed = map.remove(cold);
+            map.put(id, stat);
+        }
+        long count = countStats(removed);
+        statsLeft += count - 1;
+        pruned += count;
+        stat.modified = generation;
+        map.get(OTHER).modified = generation;
+        removedAt = generation;
+        forgetShapes();
+    }
+
+    private static long countStats(Stat stat){
+        long count = 1;
+        if( stat.getChildren() != null ){
+            for(Stat child : stat.getChildren().values()){
+                count += countStats(child);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return cold top level id with less hits than given or null if there is none
+     */
+    private String nextColdId(long hits){
+        while( true ){
+            if( coldIds == null || coldIds.isEmpty() ){
+                findColdIds();
+                if( coldIds.isEmpty() ){
+                    return null;
+                }
+            }
+            String id = coldIds.peekFirst();
+            Stat stat = map.get(id);
+            if( stat == null ){//pruned
+                coldIds.pollFirst();
+                continue;
+            }
+            coldestHits = stat.getHits();
+            if( coldestHits >= hits ){
+                return null;
+            }
+            coldIds.pollFirst();
+            return id;
+        }
+    }
+
+    /**
+     * Single scan of top level stats - ids are consumed one by one so scan cost is shared by many swaps.
+     */
+    private void findColdIds(){
+        PriorityQueue<Map.Entry<String, Stat>> coldest = new PriorityQueue<>(COLD_BATCH_SIZE,
+                (a, b) -> Long.compare(b.getValue().getHits(), a.getValue().getHits()));
+        map.forEach((id, stat) -> {
+            if( OTHER.equals(id) ){
+                return;
+            }
+            if( coldest.size() < COLD_BATCH_SIZE ){
+                coldest.add(new AbstractMap.SimpleEntry<>(id, stat));
+            } else if( stat.getHits() < coldest.peek().getValue().getHits() ){
+                coldest.poll();
+                coldest.add(new AbstractMap.SimpleEntry<>(id, stat));
+            }
+        });
+        coldIds = new ArrayDeque<>(coldest.size());
+        while( !coldest.isEmpty() ){
+            coldIds.addFirst(coldest.poll().getKey());
+        }
+    }
+
+    private static void collectLeaves(Map<String, Stat> stats, List<Stat> leaves){
+        stats.forEach((id, stat) -> {
+            if( stat.getChildren() == null || stat.getChildren().isEmpty() ){
+                if( !OTHER.equals(id) ){
+                    leaves.add(stat);
+                }
+            } else {
+                collectLeaves(stat.getChildren(), leaves);
+            }
+        });
+    }
+
+    /**
+     * @return number of removed stats - it's net number as OTHER entries might get created
+     */
+    private long pruneLeaves(Map<String, Stat> stats, Set<Stat> selected){
+        long removed = 0;
+        for(Stat stat : stats.values()){
+            if( stat.getChildren() != null ){
+                removed += pruneLeaves(stat.getChildren(), selected);
+            }
+        }
+        Stat[] other = new Stat[1];
+        BiPredicate<String, Stat> filter = (id, stat) -> {
+            if( !selected.contains(stat) ){
+                return false;
+            }
+            if( other[0] == null ){
+                other[0] = stat.deepCopy(false);
+            } else {
+                other[0].merge(stat, false);
+            }
+            return true;
+        };
+        if( stats instanceof StatMap ){
+            removed += ((StatMap)stats).removeIf(filter);
+        } else {
+            int before = stats.size();
+            stats.entrySet().removeIf(e -> filter.test(e.getKey(), e.getValue()));
+            removed += before - stats.size();
+        }
+        if( other[0] != null ){
+            Stat existing = stats.get(OTHER);
+            if( existing == null ){
+                stats.put(OTHER, other[0]);
+                removed--;
+            } else {
+                existing.merge(other[0], false);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param maxBytes memory budget - 0 disables it
+     */
+    void setMaxBytes(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Stores root calls that were only counted (see {@link OverloadTier#COUNT_ONLY}). Individual times are not known
+     * so all calls are recorded with average time.
+     */
+    public void storeCounts(String id, long hits, long err, long timeNanos){
+        if( hits <= 0 ){
+            return;
+        }
+        ensureBudget();
+        Stat root = getOrAddParent(id);
+        if( root == null ){
+            root = admit(id, hits);
+        }
+        if( root != null ){
+            root.modified = generation;
+            root.updateNanos(timeNanos / hits, hits);
+            root.updateErr(err > 0, err);
         }
     }
 
@@ -105,24 +629,136 @@ public class Stats {
 
     @Transient
     public Stats deepCopy(boolean withChildren){
+        Stats s = copyCounters();
+        map.forEach((k, v) -> s.map.put(k, v.deepCopy(withChildren)));
+        return s;
+    }
+
+    Stats copyCounters(){
         Stats s = new Stats();
 
         s.statsLeft = statsLeft;
         s.lost.set(lost.get());
+        s.skipped = skipped;
+        s.reducedToRoot.set(reducedToRoot.get());
+        s.countedOnly.set(countedOnly.get());
+        s.overloadTierChanges.set(overloadTierChanges.get());
+        s.pruned = pruned;
+        s.untracked = untracked;
         s.fatalError = fatalError;
         s.startDate = startDate;
         s.endDate = endDate;
+        s.lineage = lineage;
+        s.generation = generation;
+        s.unmarkedAt = unmarkedAt;
+        s.removedAt = removedAt;
+        return s;
+    }
 
-        map.forEach((k, v) -> s.map.put(k, v.deepCopy(withChildren)));
-
+    /**
+     * Creates copy of all stats which shares stats not changed since previous snapshot with it - cost depends
+     * on number of changed stats (and top level map size) rather than on size of whole tree.
+     * Snapshots are shared by readers and must not be modified.
+     *
+     * Changed stats are marked with current generation which gets incremented here. Changes which are not
+     * marked (merges, pruning) make next snapshot copy everything.
+     * @param previous snapshot of these stats or null
+     */
+    Stats snapshot(Stats previous){
+        Stats s = copyCounters();
+        int since = previous != null && previous.lineage == lineage && unmarkedAt < previous.generation
+                ? previous.generation : 0;
+        map.forEach((id, stat) -> s.map.put(id, snapshot(stat, since > 0 ? previous.map.get(id) : null, since)));
+        s.generation = ++generation;
         return s;
     }
 
+    private static Stat snapshot(Stat stat, Stat previous, int since){
+        if( previous != null && stat.modified < since ){
+            return previous;
+        }
+        Stat copy = stat.deepCopy(false);
+        if( stat.getChildren() != null ){
+            Map<String, Stat> previousChildren = previous == null ? null : previous.getChildren();
+            stat.getChildren().forEach((id, child) -> copy.getChildren().put(id,
+                    snapshot(child, previousChildren == null ? null : previousChildren.get(id), since)));
+        }
+        return copy;
+    }
+
+    /**
+     * Returns stats changed in given generation or later - unchanged children of changed stats are skipped.
+     * Diff is full (contains all stats) when changes can't be tracked since given generation
+     * (merges, pruning, removed top level stats) or given generation is not one of these stats.
+     * Cost depends on number of changed stats and top level map size.
+     * @param generation {@link #getGeneration()} of stats seen before or 0
+     */
+    @Transient
+    public StatsDiff diffSince(long generation){
+        int counter = (int)generation;
+        boolean full = (int)(generation >>> 32) != lineage || counter <= 0 || counter > this.generation
+                || unmarkedAt >= counter || removedAt >= counter;
+        int since = full ? 0 : counter;
+        Stats changes = copyCounters();
+        map.forEach((id, stat) -> {
+            if( stat.modified >= since ){
+                changes.map.put(id, changed(stat, since));
+            }
+        });
+        return new StatsDiff(generation, full, changes);
+    }
+
+    private static Stat changed(Stat stat, int since){
+        Stat copy = stat.deepCopy(false);
+        if( stat.getChildren() != null ){
+            stat.getChildren().forEach((id, child) -> {
+                if( child.modified >= since ){
+                    copy.getChildren().put(id, changed(child, since));
+                }
+            });
+        }
+        return copy;
+    }
+
+    /**
+     * Changes made in this generation (or later) might not be included in these stats.
+     * Higher bits identify stats (shared with snapshots and copies), lower ones count snapshots.
+     * @return generation to diff since next time - see {@link #diffSince(long)}
+     */
+    @Transient
+    public long getGeneration(){
+        return ((long)lineage << 32) | generation;
+    }
+
     @Transient
     public void merge(Stats inc, boolean withChildren){
         //too much hassle with merging statsLeft
+        unmarkedAt = generation;
 
+        mergeCounters(inc);
+
+        inc.map.forEach((k, v) -> {
+            Stat s = map.get(k);
+            if( s == null ){
+                map.put(k, v.deepCopy(withChildren) );
+            } else {
+                s.merge(v, withChildren);
+            }
+        });
+    }
+
+    /**
+     * Merges counters, dates and fatal error - stats map is not touched.
+     */
+    @Transient
+    public void mergeCounters(Stats inc){
         lost.set(lost.get() + inc.lost.get());
+        skipped += inc.skipped;
+        reducedToRoot.addAndGet(inc.reducedToRoot.get());
+        countedOnly.addAndGet(inc.countedOnly.get());
+        overloadTierChanges.addAndGet(inc.overloadTierChanges.get());
+        pruned += inc.pruned;
+        untracked += inc.untracked;
         if( inc.fatalError != null && fatalError == null ){
             fatalError = inc.fatalError;
         }
@@ -132,17 +768,85 @@ public class Stats {
         if( endDate == null || (inc.endDate != null && inc.endDate.after(endDate)) ){
             endDate = inc.endDate;
         }
+    }
 
-        inc.map.forEach((k, v) -> {
-            Stat s = map.get(k);
-            if( s == null ){
-                map.put(k, v.deepCopy(withChildren) );
+    /**
+     * Merges single top level entry (with children) respecting statsLeft limit - entries that don't fit are dropped.
+     * Unlike {@link #merge(Stats, boolean)} it never shares instances with merged stats.
+     * Entries without calls (kept by {@link #clearValues(boolean)}) are skipped.
+     */
+    @Transient
+    public void mergeWithinLimit(String id, Stat inc){
+        if( inc.isUnused() ){
+            return;
+        }
+        ensureBudget();
+        Stat s = map.get(id);
+        if( s == null ){
+            if( statsLeft <= 0 ){
+                return;
+            }
+            added();
+            s = inc.deepCopy(false);
+            map.put(id, s);
+        } else {
+            s.merge(inc, false);
+        }
+        s.modified = generation;
+        mergeChildrenWithinLimit(s, inc);
+    }
+
+    private void mergeChildrenWithinLimit(Stat target, Stat inc){
+        if( inc.getChildren() == null ){
+            return;
+        }
+        inc.getChildren().forEach((id, incChild) -> {
+            if( incChild.isUnused() ){
+                return;
+            }
+            Stat child = target.getChild(id);
+            if( child == null ){
+                if( statsLeft <= 0 ){
+                    return;
+                }
+                added();
+                child = incChild.deepCopy(false);
+                target.getChildren().put(id, child);
             } else {
-                s.merge(v, withChildren);
+                child.merge(incChild, false);
             }
+            child.modified = generation;
+            mergeChildrenWithinLimit(child, incChild);
         });
     }
 
+    /**
+     * Clears counters and values so stats can be filled again - used by thread local stats after harvest.
+     * @param keepStats true keeps stats (with children maps and histogram buckets) and compiled shapes so the same
+     *                  trees are stored without allocating - statsLeft is not restored then
+     */
+    void clearValues(boolean keepStats){
+        lost.set(0);
+        skipped = 0;
+        reducedToRoot.set(0);
+        countedOnly.set(0);
+        overloadTierChanges.set(0);
+        pruned = 0;
+        untracked = 0;
+        heavyHitters = null;
+        coldIds = null;
+        coldestHits = 0;
+        if( keepStats ){
+            map.values().forEach(Stat::clearValues);
+            return;
+        }
+        map.clear();
+        if( shapes != null ){
+            Arrays.fill(shapes, null);
+            Arrays.fill(seenShapes, 0);
+        }
+    }
+
     /**
      * This method is thread safe.
      */
@@ -151,12 +855,28 @@ public class Stats {
         lost.incrementAndGet();
     }
 
+    /**
+     * Adds overload counters collected by application threads - see {@link OverloadTier}.
+     */
+    @Transient
+    public void addOverloadCounts(long lost, long reducedToRoot, long countedOnly, long overloadTierChanges) {
+        this.lost.addAndGet(lost);
+        this.reducedToRoot.addAndGet(reducedToRoot);
+        this.countedOnly.addAndGet(countedOnly);
+        this.overloadTierChanges.addAndGet(overloadTierChanges);
+    }
+
     public Map<String, Stat> getMap() {
         return map;
     }
 
+    @JsonDeserialize(as = StatMap.class)
     public void setMap(Map<String, Stat> map) {
         this.map = map;
+        this.shapes = null;//compiled shapes point to stats of previous map
+        this.coldIds = null;
+        this.coldestHits = 0;
+        this.unmarkedAt = generation;
     }
 
     public long getLost() {
@@ -167,6 +887,72 @@ public class Stats {
         this.lost.set(lost);
     }
 
+    /**
+     * @return number of root calls skipped by sampling - their hits are extrapolated from sampled calls
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(long skipped) {
+        this.skipped = skipped;
+    }
+
+    /**
+     * @return number of trees reduced to root call because of overload
+     */
+    public long getReducedToRoot() {
+        return reducedToRoot.get();
+    }
+
+    public void setReducedToRoot(long reducedToRoot) {
+        this.reducedToRoot.set(reducedToRoot);
+    }
+
+    /**
+     * @return number of root calls only counted because of overload - their times are averaged
+     */
+    public long getCountedOnly() {
+        return countedOnly.get();
+    }
+
+    public void setCountedOnly(long countedOnly) {
+        this.countedOnly.set(countedOnly);
+    }
+
+    /**
+     * @return number of changes of {@link OverloadTier} - both escalations and recoveries
+     */
+    public long getOverloadTierChanges() {
+        return overloadTierChanges.get();
+    }
+
+    public void setOverloadTierChanges(long overloadTierChanges) {
+        this.overloadTierChanges.set(overloadTierChanges);
+    }
+
+    /**
+     * @return number of stats merged into "(other)" entries - because of memory budget or to make room for hotter ids
+     */
+    public long getPruned() {
+        return pruned;
+    }
+
+    public void setPruned(long pruned) {
+        this.pruned = pruned;
+    }
+
+    /**
+     * @return number of root calls not stored because stat count limit was reached
+     */
+    public long getUntracked() {
+        return untracked;
+    }
+
+    public void setUntracked(long untracked) {
+        this.untracked = untracked;
+    }
+
     public long getStatsLeft() {
         return statsLeft;
     }
@@ -223,6 +1009,12 @@ public class Stats {
         Stats stats = (Stats) o;
         return statsLeft == stats.statsLeft &&
                 lost.get() == stats.lost.get() &&
+                skipped == stats.skipped &&
+                reducedToRoot.get() == stats.reducedToRoot.get() &&
+                countedOnly.get() == stats.countedOnly.get() &&
+                overloadTierChanges.get() == stats.overloadTierChanges.get() &&
+                pruned == stats.pruned &&
+                untracked == stats.untracked &&
                 aggregateSubCalls == stats.aggregateSubCalls &&
                 Objects.equals(map, stats.map) &&
                 Objects.equals(fatalError, stats.fatalError) &&
@@ -233,6 +1025,7 @@ public class Stats {
 
     @Override
     public int hashCode() {
-        return Objects.hash(map, statsLeft, lost.get(), fatalError, startDate, endDate, info, aggregateSubCalls);
+        return Objects.hash(map, statsLeft, lost.get(), skipped, reducedToRoot.get(), countedOnly.get(),
+                overloadTierChanges.get(), pruned, untracked, fatalError, startDate, endDate, info, aggregateSubCalls);
     }
 }
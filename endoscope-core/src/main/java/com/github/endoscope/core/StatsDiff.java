@@ -0,0 +1,87 @@
+package com.github.endoscope.core;
+
+import java.util.Map;
+
+/**
+ * Stats changed since some generation - see {@link Stats#diffSince(long)}.
+ *
+ * Changed stats contain only changed children. Top level counters (lost, skipped, dates etc.) are always current.
+ */
+public class StatsDiff {
+    private final long since;
+    private final boolean full;
+    private final Stats changes;
+
+    StatsDiff(long since, boolean full, Stats changes) {
+        this.since = since;
+        this.full = full;
+        this.changes = changes;
+    }
+
+    /**
+     * @return generation this diff was requested for
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * @return generation to request next diff for
+     */
+    public long getGeneration() {
+        return changes.getGeneration();
+    }
+
+    /**
+     * @return true if diff contains all stats - older stats are not needed then
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    public Stats getChanges() {
+        return changes;
+    }
+
+    /**
+     * Puts changed stats onto older stats. Result shares stats with both older stats and this diff
+     * so none of them should be modified afterwards.
+     * @param older stats this diff was requested for - {@link Stats#getGeneration()} must not be lower than {@link #getSince()}
+     * @return current stats
+     */
+    public Stats applyTo(Stats older) {
+        if( full ){
+            return changes;
+        }
+        if( older.getGeneration() >>> 32 != since >>> 32 || older.getGeneration() < since ){
+            throw new IllegalArgumentException("Diff since generation " + since
+                    + " can't be applied to stats of generation " + older.getGeneration());
+        }
+        Stats result = changes.copyCounters();
+        Map<String, Stat> map = result.getMap();
+        older.getMap().forEach((id, stat) -> map.put(id, apply(stat, changes.getMap().get(id))));
+        changes.getMap().forEach((id, stat) -> {
+            if( !map.containsKey(id) ){
+                map.put(id, stat);
+            }
+        });
+        return result;
+    }
+
+    private static Stat apply(Stat older, Stat changed) {
+        if( changed == null ){
+            return older;
+        }
+        if( older.getChildren() == null ){
+            return changed;
+        }
+        Stat result = changed.deepCopy(false);
+        older.getChildren().forEach((id, child) -> result.getChildren().put(id, apply(child, changed.getChildren().get(id))));
+        changed.getChildren().forEach((id, child) -> {
+            if( !result.getChildren().containsKey(id) ){
+                result.getChildren().put(id, child);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,478 @@
+package com.github.endoscope.core;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import com.github.endoscope.properties.Properties;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Part of current stats with its own queue. Each shard is drained by its own collector thread.
+ *
+ * Stats are filled in epochs (see {@link Epoch}). Reset replaces active epoch and returns its stats once all writers
+ * that entered it are done - writers who find their epoch retired just retry with the new one.
+ * Writers (collector, harvesting, restoring) are serialized with epoch lock. Readers don't take it while collector
+ * is attached - they get snapshot which collector publishes between batches, see {@link #readStats(Function)}.
+ *
+ * When queue fills up trees get degraded instead of dropped (see {@link OverloadTier}): first they are reduced
+ * to root call, then root calls are only counted with striped counters. Tier is left only once queue drops
+ * {@link #OVERLOAD_EXIT_MARGIN} below size it was entered at so it doesn't flip on every call. Degraded calls
+ * and tier changes are counted with striped counters of shard as well - application threads don't enter epochs
+ * for that and collector adds them to Stats together with root counters.
+ *
+ * With memory budget (see {@link Properties#MAX_STATS_BYTES}) stats get budget left after queued trees
+ * and prune their coldest leaves instead of refusing new ids.
+ *
+ * With off heap stats (see {@link Properties#OFF_HEAP_STATS}) collector stores trees in {@link OffHeapStats}
+ * which belongs to epoch as well - two of them are swapped on reset so direct memory is reused. Stats object keeps
+ * counters and whatever gets merged directly (root counters, thread local stats) - readers get heap copy of both.
+ * Only raw copy of off heap stats is taken with epoch locked - it's converted to heap stats by reader.
+ */
+class StatsShard {
+    private static final Logger log = getLogger(StatsShard.class);
+    private static final int DRAIN_BATCH_SIZE = 1024;//max number of trees stored under single stats lock
+    static final int MAX_ROOT_COUNTERS = 10000;//roots with other ids are lost when counters are full
+    private static final long MAX_READ_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);//reader copies stats itself after that
+    private static final long READ_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final double OVERLOAD_EXIT_MARGIN = 0.1;//part of queue capacity
+
+    private final RingBuffer<Context> queue;
+    private final ContextPool contextPool;
+    private final CollectorMetrics collectorMetrics = new CollectorMetrics();
+    private final long maxStatCount;
+    private final long maxBytes;//budget of stats and queued trees - 0 means there is none
+    private double averageTreeSize = 1;//number of contexts - moving average of processed trees
+    private final int rootOnlySize;
+    private final int rootOnlyExitSize;
+    private final int countOnlySize;
+    private final int countOnlyExitSize;
+    private final AtomicReference<OverloadTier> tier = new AtomicReference<>(OverloadTier.NONE);
+    private final ConcurrentHashMap<String, RootCounter> rootCounters = new ConcurrentHashMap<>();
+    //overload counters not moved to stats yet - see moveCounters(Stats)
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder reducedToRoot = new LongAdder();
+    private final LongAdder countedOnly = new LongAdder();
+    private final LongAdder tierChanges = new LongAdder();
+    private volatile Epoch active;
+    private OffHeapStats spareOffHeap;//off heap stats of last retired epoch - reused by the next one
+    private final Object resetLock = new Object();
+    private volatile Runnable collector;//wakes up attached collector thread - null when there is none
+    private final AtomicLong readRequests = new AtomicLong();//number of the latest request for fresh snapshot
+    private final long snapshotMaxAgeNanos;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Stats published for readers by collector.
+     */
+    private static final class Snapshot {
+        final Epoch epoch;
+        private Stats stats;
+        private OffHeapStats offHeap;//copy of off heap stats - merged into stats by the first reader
+        final long takenNanos;
+        final long request;//number of the latest read request it was taken for
+        volatile boolean read;
+
+        Snapshot(Epoch epoch, Stats stats, OffHeapStats offHeap, long takenNanos, long request) {
+            this.epoch = epoch;
+            this.stats = stats;
+            this.offHeap = offHeap;
+            this.takenNanos = takenNanos;
+            this.request = request;
+        }
+
+        synchronized Stats getStats() {
+            if( offHeap != null ){
+                stats = withOffHeap(offHeap, stats);
+                offHeap = null;
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Stats with number of writers currently using them.
+     */
+    private static final class Epoch {
+        final Stats stats;
+        final OffHeapStats offHeap;//null unless off heap stats are enabled
+        final AtomicInteger writers = new AtomicInteger();
+
+        Epoch(Stats stats, OffHeapStats offHeap) {
+            this.stats = stats;
+            this.offHeap = offHeap;
+        }
+    }
+
+    /**
+     * @param maxBytes heap budget of stats and queued trees - 0 disables it
+     */
+    StatsShard(int queueSize, long maxStatCount, long maxBytes, ContextPool contextPool) {
+        this.queue = new RingBuffer<>(queueSize);
+        this.maxStatCount = maxStatCount;
+        this.maxBytes = maxBytes;
+        this.contextPool = contextPool;
+        if( Properties.isOffHeapStats() ){
+            this.spareOffHeap = new OffHeapStats(Properties.getAggregateSubCalls(), maxStatCount);
+        }
+        this.active = new Epoch(createEmptyStats(),
+                spareOffHeap == null ? null : new OffHeapStats(Properties.getAggregateSubCalls(), maxStatCount));
+        this.snapshotMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(Properties.getSnapshotMaxAgeMs());
+        this.rootOnlySize = fillToSize(Properties.getOverloadRootOnlyFill());
+        this.countOnlySize = fillToSize(Properties.getOverloadCountOnlyFill());
+        this.rootOnlyExitSize = exitSize(rootOnlySize);
+        this.countOnlyExitSize = exitSize(countOnlySize);
+    }
+
+    private int fillToSize(double fill){
+        //Integer.MAX_VALUE disables it - queue never gets that big
+        return fill > 1 ? Integer.MAX_VALUE : (int)Math.ceil(fill * queue.getCapacity());
+    }
+
+    private int exitSize(int enterSize){
+        int margin = Math.max(1, (int)Math.ceil(OVERLOAD_EXIT_MARGIN * queue.getCapacity()));
+        return Math.max(0, enterSize - margin);
+    }
+
+    private Stats createEmptyStats() {
+        Stats stats = new Stats(Properties.getAggregateSubCalls());
+        stats.setStatsLeft(maxStatCount);
+        stats.setMaxBytes(maxBytes);
+        stats.setStartDate(new Date());
+        return stats;
+    }
+
+    void add(Context context){
+        //don't sync here - that could block application
+        OverloadTier current = tier.get();
+        OverloadTier required = requiredTier(current, queue.size());
+        if( required != current ){
+            changeTier(current, required);
+        }
+        if( required == OverloadTier.ROOT_ONLY && context.firstChild != null ){
+            reduceToRoot(context);
+            reducedToRoot.increment();
+        }
+        if( required == OverloadTier.COUNT_ONLY ){
+            countOnly(context);
+        } else if( !queue.offer(context) ){//exhausted queue size
+            if( countOnlySize == Integer.MAX_VALUE ){
+                lost(context);
+            } else {
+                countOnly(context);
+            }
+        }
+    }
+
+    private void lost(Context context){
+        lost.increment();
+        contextPool.release(context);
+    }
+
+    /**
+     * Tier is entered at its fill size and left below its exit size.
+     */
+    OverloadTier requiredTier(OverloadTier current, int queueSize){
+        if( queueSize >= countOnlySize || (current == OverloadTier.COUNT_ONLY && queueSize >= countOnlyExitSize) ){
+            return OverloadTier.COUNT_ONLY;
+        }
+        if( queueSize >= rootOnlySize || (current != OverloadTier.NONE && queueSize >= rootOnlyExitSize) ){
+            return OverloadTier.ROOT_ONLY;
+        }
+        return OverloadTier.NONE;
+    }
+
+    /**
+     * Only thread that actually changed tier counts and logs it.
+     */
+    private void changeTier(OverloadTier previous, OverloadTier required){
+        if( tier.compareAndSet(previous, required) ){
+            tierChanges.increment();
+            log.warn("Stats collector overload tier changed from {} to {}", previous, required);
+        }
+    }
+
+    private void reduceToRoot(Context root){
+        Context children = root.firstChild;
+        root.firstChild = root.lastChild = null;
+        for(Context c = children, next; c != null; c = next){
+            next = c.nextSibling;
+            contextPool.release(c);
+        }
+    }
+
+    private void countOnly(Context root){
+        RootCounter counter = rootCounters.get(root.getId());
+        if( counter == null ){
+            if( rootCounters.size() >= MAX_ROOT_COUNTERS ){
+                lost(root);
+                return;
+            }
+            counter = rootCounters.computeIfAbsent(root.getId(), id -> new RootCounter());
+        }
+        counter.add(root);
+        countedOnly.increment();
+        contextPool.release(root);
+    }
+
+    /**
+     * Moves trees from queue to stats in batches. Stats lock is released between batches
+     * so readers don't wait for whole queue to be processed.
+     * Must not be called concurrently.
+     * @return number of processed trees
+     */
+    int processAllFromQueue(){
+        long start = System.nanoTime();
+        int total = 0;
+        collectorMetrics.recordQueueSize(queue.size());
+        try {
+            while(true){
+                Epoch epoch = enter();
+                int count;
+                try {
+                    synchronized(epoch){
+                        if( maxBytes > 0 ){
+                            epoch.stats.setMaxBytes(statsBudget());
+                        }
+                        long storeStart = System.nanoTime();
+                        count = queue.drain(ctx -> storeAndRelease(epoch, ctx), DRAIN_BATCH_SIZE);
+                        collectorMetrics.recordStore(System.nanoTime() - storeStart);
+                        moveCounters(epoch.stats);
+                        publishSnapshot(epoch);
+                    }
+                } finally {
+                    exit(epoch);
+                }
+                total += count;
+                if( count < DRAIN_BATCH_SIZE ){
+                    break;
+                }
+            }
+        } finally {
+            collectorMetrics.recordPass(total, queue.size(), start, System.nanoTime());
+        }
+        return total;
+    }
+
+    /**
+     * Moves root and overload counters of application threads to stats. Calls counted concurrently
+     * are either moved or stay for next time. Must be called with stats locked or retired.
+     */
+    private void moveCounters(Stats current){
+        rootCounters.forEach((id, counter) -> counter.moveTo(current, id));
+        moveOverloadCounts(current);
+    }
+
+    private void moveOverloadCounts(Stats current){
+        current.addOverloadCounts(lost.sumThenReset(), reducedToRoot.sumThenReset(),
+                countedOnly.sumThenReset(), tierChanges.sumThenReset());
+    }
+
+    private void storeAndRelease(Epoch epoch, Context ctx){
+        try {
+            if( epoch.offHeap != null ){
+                epoch.offHeap.store(ctx);
+            } else {
+                epoch.stats.store(ctx);
+            }
+        } finally {
+            int released = contextPool.release(ctx);
+            if( released > 0 ){
+                averageTreeSize += (released - averageTreeSize) / 64;
+            }
+        }
+    }
+
+    /**
+     * Queued trees are part of budget - stats get what's left but never less than half of it.
+     */
+    private long statsBudget(){
+        long queuedBytes = (long)(queue.size() * averageTreeSize * Context.ESTIMATED_BYTES);
+        return Math.max(maxBytes / 2, maxBytes - queuedBytes);
+    }
+
+    Stats getStats() {
+        return active.stats;
+    }
+
+    /**
+     * @return active epoch with writer registered - must be followed by {@link #exit(Epoch)}
+     */
+    private Epoch enter(){
+        while(true){
+            Epoch epoch = active;
+            epoch.writers.incrementAndGet();
+            if( epoch == active ){
+                return epoch;
+            }
+            epoch.writers.decrementAndGet();//retired in the meantime
+        }
+    }
+
+    private static void exit(Epoch epoch){
+        epoch.writers.decrementAndGet();
+    }
+
+    /**
+     * Runs function with current stats locked for writing. Collector waits until it's done.
+     */
+    <T> T lockStats(Function<Stats, T> function){
+        Epoch epoch = enter();
+        try {
+            synchronized(epoch){
+                moveCounters(epoch.stats);
+                return function.apply(epoch.stats);
+            }
+        } finally {
+            exit(epoch);
+        }
+    }
+
+    /**
+     * Collector thread registers itself so readers get copies made by collector instead of locking stats.
+     * @param wakeUp wakes up collector when it's parked - null detaches collector
+     */
+    void attachCollector(Runnable wakeUp){
+        this.collector = wakeUp;
+    }
+
+    /**
+     * Runs function with current stats. When collector is attached function gets snapshot published by collector
+     * so readers never hold collector up - snapshot not older than {@link Properties#SNAPSHOT_MAX_AGE_MS}
+     * is used right away, otherwise reader asks for fresh one and waits. Snapshots are shared by concurrent readers
+     * and must not be modified. Without collector (or when it doesn't respond) stats get locked instead
+     * and function gets them directly unless they are off heap - those get converted after lock is released.
+     */
+    <T> T readStats(Function<Stats, T> function){
+        Runnable wakeUp = collector;
+        if( wakeUp != null ){
+            Snapshot current = snapshot;
+            if( current == null || !isFresh(current) ){
+                long request = readRequests.incrementAndGet();
+                wakeUp.run();
+                long start = System.nanoTime();
+                while( ((current = snapshot) == null || current.request < request)
+                        && collector != null && System.nanoTime() - start < MAX_READ_WAIT_NANOS ){
+                    LockSupport.parkNanos(READ_POLL_NANOS);
+                }
+                if( current != null && current.request < request ){
+                    current = null;//collector didn't respond
+                }
+            }
+            if( current != null && current.epoch == active ){
+                current.read = true;
+                return function.apply(current.getStats());
+            }
+        }
+        Stats copy;
+        OffHeapStats offHeap;
+        Epoch epoch = enter();
+        try {
+            synchronized(epoch){
+                moveCounters(epoch.stats);
+                if( epoch.offHeap == null ){
+                    return function.apply(epoch.stats);
+                }
+                copy = epoch.stats.deepCopy();
+                offHeap = epoch.offHeap.readOnlyCopy();
+            }
+        } finally {
+            exit(epoch);
+        }
+        return function.apply(withOffHeap(offHeap, copy));
+    }
+
+    private boolean isFresh(Snapshot s){
+        return s.epoch == active && (s.request >= readRequests.get() || System.nanoTime() - s.takenNanos <= snapshotMaxAgeNanos);
+    }
+
+    boolean hasPendingRead(){
+        Snapshot current = snapshot;
+        return readRequests.get() > (current == null ? 0 : current.request);
+    }
+
+    /**
+     * Publishes new snapshot when reader asked for it or when last one is being read and gets too old.
+     * Snapshot of the same epoch shares unchanged stats with previous one (see {@link Stats#snapshot(Stats)}).
+     * Must be called with epoch locked.
+     */
+    private void publishSnapshot(Epoch epoch){
+        Snapshot last = snapshot;
+        long request = readRequests.get();
+        long now = System.nanoTime();
+        boolean requested = last == null ? request > 0 : request > last.request;
+        boolean expiring = last != null && last.read && (last.epoch != epoch || now - last.takenNanos >= snapshotMaxAgeNanos);
+        if( !requested && !expiring ){
+            return;
+        }
+        if( epoch.offHeap != null ){
+            snapshot = new Snapshot(epoch, epoch.stats.deepCopy(), epoch.offHeap.readOnlyCopy(), now, request);
+        } else {
+            Stats stats = epoch.stats.snapshot(last != null && last.epoch == epoch ? last.getStats() : null);
+            snapshot = new Snapshot(epoch, stats, null, now, request);
+        }
+    }
+
+    /**
+     * Must be called with epoch locked or retired unless off heap stats are read only copy.
+     */
+    private static Stats withOffHeap(OffHeapStats offHeap, Stats target){
+        Stats stored = offHeap.toStats();
+        target.merge(stored, true);
+        target.setStatsLeft(Math.min(target.getStatsLeft(), stored.getStatsLeft()));
+        return target;
+    }
+
+    /**
+     * Starts new epoch and returns stats of the old one once writers that entered it are done.
+     * Application threads never enter epochs - overload counts they collected so far go to the old stats.
+     * @return old stats
+     */
+    Stats resetStats(){
+        synchronized(resetLock){
+            Epoch old = active;
+            active = new Epoch(createEmptyStats(), spareOffHeap);
+            while( old.writers.get() > 0 ){
+                LockSupport.parkNanos(READ_POLL_NANOS);
+            }
+            moveOverloadCounts(old.stats);//root counters go to the new epoch - collector may be moving them already
+            if( old.offHeap != null ){
+                withOffHeap(old.offHeap, old.stats);
+                old.offHeap.clear();
+                spareOffHeap = old.offHeap;
+            }
+            return old.stats;
+        }
+    }
+
+    OverloadTier getOverloadTier(){
+        return tier.get();
+    }
+
+    int getQueueSize(){
+        return queue.size();
+    }
+
+    int getQueueCapacity(){
+        return queue.getCapacity();
+    }
+
+    /**
+     * @return null unless off heap stats are enabled
+     */
+    OffHeapStats getOffHeapStats() {
+        return active.offHeap;
+    }
+
+    CollectorMetrics getCollectorMetrics() {
+        return collectorMetrics;
+    }
+}
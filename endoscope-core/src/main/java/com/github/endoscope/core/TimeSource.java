@@ -0,0 +1,14 @@
+package com.github.endoscope.core;
+
+/**
+ * Source of timestamps used to measure execution time of monitored calls.
+ *
+ * Implementation must be thread safe and as fast as possible as it's called twice per monitored call.
+ * You can provide your own implementation - see {@link com.github.endoscope.properties.Properties#TIME_SOURCE}.
+ */
+public interface TimeSource {
+    /**
+     * @return timestamp in nanoseconds - it's meaningful only as a difference between two calls
+     */
+    long nanoTime();
+}
@@ -0,0 +1,36 @@
+package com.github.endoscope.core;
+
+import com.github.endoscope.properties.Properties;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+public class TimeSourceFactory {
+    private static final Logger log = getLogger(TimeSourceFactory.class);
+
+    public static final String NANO = "nano";
+    public static final String COARSE = "coarse";
+
+    /**
+     * Should not fail. Falls back to {@link NanoTimeSource} in case of failure.
+     * @return not null
+     */
+    public TimeSource safeCreate(){
+        String name = Properties.getTimeSource();
+        if( NANO.equalsIgnoreCase(name) ){
+            return new NanoTimeSource();
+        }
+        if( COARSE.equalsIgnoreCase(name) ){
+            return new CoarseTimeSource();
+        }
+        try {
+            Class<? extends TimeSource> clazz = (Class<? extends TimeSource>)Class.forName(name);
+            TimeSource timeSource = clazz.newInstance();
+            log.debug("Successfully created TimeSource instance: {}", name);
+            return timeSource;
+        } catch (Exception e) {
+            log.warn("Failed to create TimeSource: {} - using default one.", name, e);
+        }
+        return new NanoTimeSource();
+    }
+}
@@ -24,6 +24,39 @@ public class Properties {
     public static String DEPRECATED_APP_GROUP = "endoscope.app-group";//now it's instance
     public static String AGGREGATE_SUB_CALLS = "endoscope.aggregate-sub-calls";
     public static String DAYS_TO_KEEP = "endoscope.days-to-keep";//set <= 0 to disable
+    public static String CONTEXT_POOL_SIZE = "endoscope.context-pool-size";//set <= 0 to disable
+    public static String TIME_SOURCE = "endoscope.time-source";//nano, coarse or class name of TimeSource implementation
+
+    //collector wakes up when at least batch size trees got queued or max latency passed
+    public static String COLLECTOR_BATCH_SIZE = "endoscope.collector-batch-size";
+    public static String COLLECTOR_MAX_LATENCY_MS = "endoscope.collector-max-latency-ms";
+    //number of stats shards with own queue and collector thread - increase when single collector can't keep up
+    public static String STATS_SHARDS = "endoscope.stats-shards";
+    //true/false - application threads aggregate trees in their own small stats instead of queueing them
+    public static String THREAD_LOCAL_AGGREGATION = "endoscope.thread-local-aggregation";
+    public static String THREAD_LOCAL_MAX_STAT_COUNT = "endoscope.thread-local-max-stat-count";
+    //queue fill (0-1) above which trees are reduced to root call only - set > 1 to disable
+    public static String OVERLOAD_ROOT_ONLY_FILL = "endoscope.overload-root-only-fill";
+    //queue fill (0-1) above which only root call counts are kept - when disabled full queue means lost trees
+    public static String OVERLOAD_COUNT_ONLY_FILL = "endoscope.overload-count-only-fill";
+    //all, probability, rate-limit, adaptive or class name of SamplingPolicy implementation
+    public static String SAMPLING_POLICY = "endoscope.sampling-policy";
+    public static String SAMPLING_PROBABILITY = "endoscope.sampling-probability";//0-1, used by probability policy
+    public static String SAMPLING_MAX_PER_SECOND = "endoscope.sampling-max-per-second";//per root id, used by rate-limit policy
+    //max number of distinct call ids mapped to ints - ids above the limit are aggregated with string keys
+    public static String ID_DICTIONARY_SIZE = "endoscope.id-dictionary-size";
+    //heap budget (bytes) of current stats and queued trees - coldest leaves get pruned above it; 0 disables it
+    public static String MAX_STATS_BYTES = "endoscope.max-stats-bytes";
+    //number of untracked root ids followed once stat count limit is reached - hot ones replace coldest stats; 0 disables it
+    public static String HEAVY_HITTERS_SIZE = "endoscope.heavy-hitters-size";
+    //true/false - collector keeps stats in direct memory records instead of Stat objects; readers get heap copy
+    public static String OFF_HEAP_STATS = "endoscope.off-heap-stats";
+    //max age of current stats snapshot given to readers - older one is refreshed by collector; 0 means always fresh
+    public static String SNAPSHOT_MAX_AGE_MS = "endoscope.snapshot-max-age-ms";
+    //push/pop latency of every N-th call per thread is measured for self metrics; 0 disables measuring
+    public static String SELF_METRICS_SAMPLE = "endoscope.self-metrics-sample";
+    //register self metrics MBean in platform MBean server
+    public static String JMX_ENABLED = "endoscope.jmx-enabled";
 
     /*
      Credentials format is: "username:password"
@@ -39,6 +72,25 @@ public class Properties {
     public static String DEFAULT_MAX_ID_LENGTH = "100";
     public static String DEFAULT_AGGREGATE_SUB_CALLS = "true";
     public static String DEFAULT_DAYS_TO_KEEP = "35";
+    public static String DEFAULT_CONTEXT_POOL_SIZE = "5000";//number of recycled Context objects waiting for reuse
+    public static String DEFAULT_TIME_SOURCE = "nano";
+    public static String DEFAULT_COLLECTOR_BATCH_SIZE = "1000";
+    public static String DEFAULT_COLLECTOR_MAX_LATENCY_MS = "50";
+    public static String DEFAULT_STATS_SHARDS = "1";
+    public static String DEFAULT_THREAD_LOCAL_AGGREGATION = "false";
+    public static String DEFAULT_THREAD_LOCAL_MAX_STAT_COUNT = "5000";//per thread - trees that don't fit get queued
+    public static String DEFAULT_OVERLOAD_ROOT_ONLY_FILL = "0.8";
+    public static String DEFAULT_OVERLOAD_COUNT_ONLY_FILL = "0.95";
+    public static String DEFAULT_SAMPLING_POLICY = "all";
+    public static String DEFAULT_SAMPLING_PROBABILITY = "0.1";
+    public static String DEFAULT_SAMPLING_MAX_PER_SECOND = "100";
+    public static String DEFAULT_ID_DICTIONARY_SIZE = "100000";
+    public static String DEFAULT_MAX_STATS_BYTES = "0";
+    public static String DEFAULT_HEAVY_HITTERS_SIZE = "64";
+    public static String DEFAULT_OFF_HEAP_STATS = "false";
+    public static String DEFAULT_SNAPSHOT_MAX_AGE_MS = "1000";
+    public static String DEFAULT_SELF_METRICS_SAMPLE = "1024";
+    public static String DEFAULT_JMX_ENABLED = "true";
 
 
 
@@ -158,4 +210,80 @@ public class Properties {
     public static int getDaysToKeepData() {
         return Integer.valueOf(safeGetProperty(DAYS_TO_KEEP, DEFAULT_DAYS_TO_KEEP));
     }
+
+    public static int getContextPoolSize() {
+        return Integer.valueOf(safeGetProperty(CONTEXT_POOL_SIZE, DEFAULT_CONTEXT_POOL_SIZE));
+    }
+
+    public static String getTimeSource() {
+        return safeGetProperty(TIME_SOURCE, DEFAULT_TIME_SOURCE);
+    }
+
+    public static int getCollectorBatchSize() {
+        return Integer.valueOf(safeGetProperty(COLLECTOR_BATCH_SIZE, DEFAULT_COLLECTOR_BATCH_SIZE));
+    }
+
+    public static long getCollectorMaxLatencyMs() {
+        return Long.valueOf(safeGetProperty(COLLECTOR_MAX_LATENCY_MS, DEFAULT_COLLECTOR_MAX_LATENCY_MS));
+    }
+
+    public static int getStatsShards() {
+        return Integer.valueOf(safeGetProperty(STATS_SHARDS, DEFAULT_STATS_SHARDS));
+    }
+
+    public static boolean isThreadLocalAggregation() {
+        return "true".equalsIgnoreCase(safeGetProperty(THREAD_LOCAL_AGGREGATION, DEFAULT_THREAD_LOCAL_AGGREGATION));
+    }
+
+    public static long getThreadLocalMaxStatCount() {
+        return Long.valueOf(safeGetProperty(THREAD_LOCAL_MAX_STAT_COUNT, DEFAULT_THREAD_LOCAL_MAX_STAT_COUNT));
+    }
+
+    public static String getSamplingPolicy() {
+        return safeGetProperty(SAMPLING_POLICY, DEFAULT_SAMPLING_POLICY);
+    }
+
+    public static double getSamplingProbability() {
+        return Double.valueOf(safeGetProperty(SAMPLING_PROBABILITY, DEFAULT_SAMPLING_PROBABILITY));
+    }
+
+    public static int getSamplingMaxPerSecond() {
+        return Integer.valueOf(safeGetProperty(SAMPLING_MAX_PER_SECOND, DEFAULT_SAMPLING_MAX_PER_SECOND));
+    }
+
+    public static double getOverloadRootOnlyFill() {
+        return Double.valueOf(safeGetProperty(OVERLOAD_ROOT_ONLY_FILL, DEFAULT_OVERLOAD_ROOT_ONLY_FILL));
+    }
+
+    public static double getOverloadCountOnlyFill() {
+        return Double.valueOf(safeGetProperty(OVERLOAD_COUNT_ONLY_FILL, DEFAULT_OVERLOAD_COUNT_ONLY_FILL));
+    }
+
+    public static int getIdDictionarySize() {
+        return Integer.valueOf(safeGetProperty(ID_DICTIONARY_SIZE, DEFAULT_ID_DICTIONARY_SIZE));
+    }
+
+    public static long getMaxStatsBytes() {
+        return Long.valueOf(safeGetProperty(MAX_STATS_BYTES, DEFAULT_MAX_STATS_BYTES));
+    }
+
+    public static int getHeavyHittersSize() {
+        return Integer.valueOf(safeGetProperty(HEAVY_HITTERS_SIZE, DEFAULT_HEAVY_HITTERS_SIZE));
+    }
+
+    public static boolean isOffHeapStats() {
+        return "true".equalsIgnoreCase(safeGetProperty(OFF_HEAP_STATS, DEFAULT_OFF_HEAP_STATS));
+    }
+
+    public static long getSnapshotMaxAgeMs() {
+        return Long.valueOf(safeGetProperty(SNAPSHOT_MAX_AGE_MS, DEFAULT_SNAPSHOT_MAX_AGE_MS));
+    }
+
+    public static int getSelfMetricsSample() {
+        return Integer.valueOf(safeGetProperty(SELF_METRICS_SAMPLE, DEFAULT_SELF_METRICS_SAMPLE));
+    }
+
+    public static boolean isJmxEnabled() {
+        return "true".equalsIgnoreCase(safeGetProperty(JMX_ENABLED, DEFAULT_JMX_ENABLED));
+    }
 }
@@ -10,6 +10,12 @@ public class StatHistory {
     private long max = -1;//-1 means it's not set
     private long min = 0;
     private long avg = 0;
+    private long maxNanos = -1;
+    private long minNanos = 0;
+    private double avgNanos = 0;
+    private long p50Nanos = -1;//-1 means there was no histogram
+    private long p95Nanos = -1;
+    private long p99Nanos = -1;
     private Date startDate;
     private Date endDate;
 
@@ -19,6 +25,12 @@ public class StatHistory {
         max = stat.getMax();
         min = stat.getMin();
         avg = stat.getAvg();
+        maxNanos = stat.getMaxNanos();
+        minNanos = stat.getMinNanos();
+        avgNanos = stat.getAvgNanos();
+        p50Nanos = stat.getP50Nanos();
+        p95Nanos = stat.getP95Nanos();
+        p99Nanos = stat.getP99Nanos();
 
         this.startDate = startDate;
         this.endDate = endDate;
@@ -64,6 +76,54 @@ public class StatHistory {
         this.avg = avg;
     }
 
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public void setMaxNanos(long maxNanos) {
+        this.maxNanos = maxNanos;
+    }
+
+    public long getMinNanos() {
+        return minNanos;
+    }
+
+    public void setMinNanos(long minNanos) {
+        this.minNanos = minNanos;
+    }
+
+    public double getAvgNanos() {
+        return avgNanos;
+    }
+
+    public void setAvgNanos(double avgNanos) {
+        this.avgNanos = avgNanos;
+    }
+
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    public void setP50Nanos(long p50Nanos) {
+        this.p50Nanos = p50Nanos;
+    }
+
+    public long getP95Nanos() {
+        return p95Nanos;
+    }
+
+    public void setP95Nanos(long p95Nanos) {
+        this.p95Nanos = p95Nanos;
+    }
+
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public void setP99Nanos(long p99Nanos) {
+        this.p99Nanos = p99Nanos;
+    }
+
     public Date getStartDate() {
         return startDate;
     }
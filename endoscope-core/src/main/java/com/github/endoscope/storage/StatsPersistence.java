@@ -15,6 +15,7 @@ import static org.slf4j.LoggerFactory.getLogger;
 
 public class StatsPersistence {
     private static final Logger log = getLogger(StatsPersistence.class);
+    private static final int ERROR_PAUSE_MINUTES = 5;//no save attempts for that long after failure
 
     private String appType;
     private String appInstance;
@@ -62,7 +63,7 @@ public class StatsPersistence {
             long val = lastError.get();
             if( val > 0 ){
                 long minutes = TimeUnit.MILLISECONDS.toMinutes(now.getTime() - val);
-                if( minutes < 5 ){
+                if( minutes < ERROR_PAUSE_MINUTES ){
                     return false;
                 }
             }
@@ -74,6 +75,22 @@ public class StatsPersistence {
         return false;
     }
 
+    /**
+     * @return milliseconds until {@link #threadSafeShouldSave()} starts returning true (0 if it does already)
+     * or Long.MAX_VALUE when save is disabled
+     */
+    public long threadSafeMillisToSave(){
+        if( storage == null || saveFreqMinutes <= 0 ){
+            return Long.MAX_VALUE;
+        }
+        long due = lastSave.get() + TimeUnit.MINUTES.toMillis(saveFreqMinutes);
+        long error = lastError.get();
+        if( error > 0 ){
+            due = Math.max(due, error + TimeUnit.MINUTES.toMillis(ERROR_PAUSE_MINUTES));
+        }
+        return Math.max(0, due - dateUtil.now().getTime());
+    }
+
     /**
      * @param stats
      * @return true if successfully saved stats - otherwise false
@@ -0,0 +1,64 @@
+package com.github.endoscope.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ContextPoolTest {
+
+    private Context tree(){
+        Context root = new Context("root", 1);
+        Context child = new Context("child", 1);
+        child.addChild(new Context("grand-child", 1));
+        root.addChild(child);
+        root.addChild(new Context("child2", 1));
+        return root;
+    }
+
+    @Test
+    public void should_flatten_and_reset_released_tree(){
+        ContextPool pool = new ContextPool(100);
+
+        pool.release(tree());
+        assertEquals(4, pool.getSize());
+
+        int count = 0;
+        for(Context c = pool.takeAll(); c != null; c = c.nextSibling){
+            assertNull(c.getId());
+            assertNull(c.getChildren());
+            count++;
+        }
+        assertEquals(4, count);
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void should_not_exceed_max_size(){
+        ContextPool pool = new ContextPool(6);
+
+        pool.release(tree());
+        pool.release(tree());
+        assertEquals(4, pool.getSize());
+
+        pool.release(new Context("single", 1));
+        pool.release(new Context("single", 1));
+        assertEquals(6, pool.getSize());
+    }
+
+    @Test
+    public void should_take_contexts_from_pool_on_push(){
+        ContextPool pool = new ContextPool(100);
+        Context released = new Context("single", 1);
+        pool.release(released);
+
+        CallStack stack = new CallStack(pool);
+        Context pushed = stack.push();
+
+        assertSame(released, pushed);
+        assertEquals(1, stack.getDepth());
+        assertSame(pushed, stack.pop());
+        assertEquals(0, stack.getDepth());
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.endoscope.core;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+import com.github.endoscope.properties.Properties;
+import org.junit.Test;
+
+import static com.github.endoscope.util.PropertyTestUtil.withProperty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CurrentStatsAsyncTasksTest {
+    @Test(timeout = 10000)
+    public void should_wake_up_collector_when_batch_is_ready(){
+        withProperty(Properties.COLLECTOR_BATCH_SIZE, "10", () -> {
+        withProperty(Properties.COLLECTOR_MAX_LATENCY_MS, "600000", () -> {
+            CurrentStats cs = new CurrentStats();
+            CurrentStatsAsyncTasks tasks = new CurrentStatsAsyncTasks(cs, null);
+            try {
+                waitUntilParked(tasks);
+                for(int i=0; i<10; i++){
+                    cs.add(new Context("a", 1));
+                    tasks.triggerAsyncTask();
+                }
+                waitUntilProcessed(cs, 10);
+
+                assertEquals(1, cs.getCollectorMetrics().getWakeUps());
+            } finally {
+                tasks.stopStatsProcessorThread();
+            }
+        });
+        });
+    }
+
+    @Test
+    public void should_unregister_mbean_when_stopped(){
+        CurrentStats cs = new CurrentStats();
+        cs.getSelfMetrics().safeRegisterMBean();
+        ObjectName name = cs.getSelfMetrics().getRegisteredName();
+        CurrentStatsAsyncTasks tasks = new CurrentStatsAsyncTasks(cs, null);
+
+        tasks.stopStatsProcessorThread();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test(timeout = 10000)
+    public void should_collect_after_max_latency(){
+        withProperty(Properties.COLLECTOR_BATCH_SIZE, "1000", () -> {
+        withProperty(Properties.COLLECTOR_MAX_LATENCY_MS, "10", () -> {
+            CurrentStats cs = new CurrentStats();
+            CurrentStatsAsyncTasks tasks = new CurrentStatsAsyncTasks(cs, null);
+            try {
+                cs.add(new Context("a", 1));
+                tasks.triggerAsyncTask();
+                waitUntilProcessed(cs, 1);
+
+                CollectorMetrics metrics = cs.getCollectorMetrics();
+                assertEquals(0, metrics.getWakeUps());
+                assertEquals(1, metrics.getDrained());
+                assertTrue(metrics.getPasses() >= 1);
+                assertTrue(metrics.getDrainRate() > 0);
+            } finally {
+                tasks.stopStatsProcessorThread();
+            }
+        });
+        });
+    }
+
+    @Test(timeout = 10000)
+    public void should_not_block_collector_by_readers(){
+        withProperty(Properties.COLLECTOR_BATCH_SIZE, "1", () -> {
+            CurrentStats cs = new CurrentStats();
+            CurrentStatsAsyncTasks tasks = new CurrentStatsAsyncTasks(cs, null);
+            CountDownLatch reading = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            Thread reader = new Thread(() -> cs.lockReadStats(stats -> {
+                reading.countDown();
+                await(done);
+                return null;
+            }));
+            try {
+                waitUntilParked(tasks);//collector is attached
+                reader.start();
+                await(reading);
+
+                cs.add(new Context("a", 1));
+                tasks.triggerAsyncTask();
+                waitUntilProcessed(cs, 1);
+            } finally {
+                done.countDown();
+                tasks.stopStatsProcessorThread();
+            }
+        });
+    }
+
+    @Test(timeout = 10000)
+    public void should_reuse_fresh_snapshot(){
+        withProperty(Properties.SNAPSHOT_MAX_AGE_MS, "600000", () -> {
+            CurrentStats cs = new CurrentStats();
+            CurrentStatsAsyncTasks tasks = new CurrentStatsAsyncTasks(cs, null);
+            try {
+                waitUntilParked(tasks);
+                cs.add(new Context("a", 1));
+                tasks.triggerAsyncTask();
+                waitUntilProcessed(cs, 1);
+
+                Stats first = cs.lockReadStats(s -> s);
+                assertSame(first, cs.lockReadStats(s -> s));
+
+                cs.add(new Context("a", 1));
+                tasks.triggerAsyncTask();
+                waitUntilParked(tasks);
+                assertSame(first, cs.lockReadStats(s -> s));//not older than max age
+
+                cs.resetStats();
+                assertNotSame(first, cs.lockReadStats(s -> s));
+            } finally {
+                tasks.stopStatsProcessorThread();
+            }
+        });
+    }
+
+    private static void await(CountDownLatch latch){
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void should_measure_lag(){
+        CollectorMetrics metrics = new CollectorMetrics();
+        long ms = 1000000;
+        metrics.recordPass(0, 0, 0, ms);//empty queue
+        metrics.recordPass(5, 3, 10*ms, 12*ms);//processed trees queued after 1ms
+        assertEquals(11, metrics.getLagMillis());
+        metrics.recordPass(3, 0, 20*ms, 21*ms);//queue wasn't empty since 1ms
+        assertEquals(20, metrics.getLagMillis());
+        metrics.recordPass(1, 0, 30*ms, 31*ms);
+        assertEquals(10, metrics.getLagMillis());
+        assertEquals(20, metrics.getMaxLagMillis());
+        assertEquals(9, metrics.getDrained());
+    }
+
+    private void waitUntilParked(CurrentStatsAsyncTasks tasks){
+        while( !tasks.isCollectorParked(0) ){
+            Thread.yield();
+        }
+    }
+
+    private void waitUntilProcessed(CurrentStats cs, int hits){
+        while( cs.lockReadStats(s -> s.getMap().get("a") == null || s.getMap().get("a").getHits() < hits) ){
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.endoscope.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.endoscope.properties.Properties;
+import org.junit.Test;
+
+import static com.github.endoscope.util.PropertyTestUtil.withProperty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CurrentStatsTest {
+    @Test
+    public void should_count_lost_when_queue_is_full(){
+        withProperty(Properties.QUEUE_MAX_SIZE, "2", () -> {
+        withProperty(Properties.OVERLOAD_ROOT_ONLY_FILL, "2", () -> {
+        withProperty(Properties.OVERLOAD_COUNT_ONLY_FILL, "2", () -> {
+            CurrentStats cs = new CurrentStats();
+            cs.add(new Context("a", 1));
+            cs.add(new Context("b", 1));
+            cs.add(new Context("c", 1));
+
+            assertEquals(2, cs.getQueueSize());
+            assertEquals(1L, (long)cs.lockReadStats(Stats::getLost));
+
+            cs.processAllFromQueue();
+            assertEquals(0, cs.getQueueSize());
+            assertEquals(2, (int)cs.lockReadStats(s -> s.getMap().size()));
+        });
+        });
+        });
+    }
+
+    @Test
+    public void should_move_lost_count_to_reset_stats(){
+        withProperty(Properties.QUEUE_MAX_SIZE, "1", () -> {
+        withProperty(Properties.OVERLOAD_ROOT_ONLY_FILL, "2", () -> {
+        withProperty(Properties.OVERLOAD_COUNT_ONLY_FILL, "2", () -> {
+            CurrentStats cs = new CurrentStats();
+            cs.add(new Context("a", 1));
+            cs.add(new Context("b", 1));
+
+            assertEquals(1, cs.resetStats().getLost());
+            assertEquals(0L, (long)cs.lockReadStats(Stats::getLost));
+        });
+        });
+        });
+    }
+
+    private Context tree(String rootId, long time){
+        Context root = new Context(rootId, time);
+        root.addChild(new Context("child", 1));
+        return root;
+    }
+
+    @Test
+    public void should_reduce_trees_to_root_when_queue_fills_up(){
+        withProperty(Properties.QUEUE_MAX_SIZE, "10", () -> {
+        withProperty(Properties.OVERLOAD_ROOT_ONLY_FILL, "0.5", () -> {
+        withProperty(Properties.OVERLOAD_COUNT_ONLY_FILL, "2", () -> {
+            CurrentStats cs = new CurrentStats();
+            for(int i=0; i<8; i++){
+                cs.add(tree("a", 1));
+            }
+            assertEquals(OverloadTier.ROOT_ONLY, cs.getShard(0).getOverloadTier());
+
+            cs.processAllFromQueue();
+            cs.lockReadStats(stats -> {
+                assertEquals(8, stats.getMap().get("a").getHits());
+                assertEquals(5, stats.getMap().get("child").getHits());
+                assertEquals(3, stats.getReducedToRoot());
+                assertEquals(1, stats.getOverloadTierChanges());
+                assertEquals(0, stats.getLost());
+                return null;
+            });
+
+            //queue is empty again
+            cs.add(tree("a", 1));
+            assertEquals(OverloadTier.NONE, cs.getShard(0).getOverloadTier());
+            assertEquals(2L, (long)cs.lockReadStats(Stats::getOverloadTierChanges));
+        });
+        });
+        });
+    }
+
+    @Test
+    public void should_leave_overload_tier_below_exit_size(){
+        withProperty(Properties.QUEUE_MAX_SIZE, "20", () -> {
+        withProperty(Properties.OVERLOAD_ROOT_ONLY_FILL, "0.5", () -> {
+        withProperty(Properties.OVERLOAD_COUNT_ONLY_FILL, "0.8", () -> {
+            StatsShard shard = new CurrentStats().getShard(0);
+            //margin is 2 calls for queue of 20
+            assertEquals(OverloadTier.NONE, shard.requiredTier(OverloadTier.NONE, 9));
+            assertEquals(OverloadTier.ROOT_ONLY, shard.requiredTier(OverloadTier.NONE, 10));
+            assertEquals(OverloadTier.ROOT_ONLY, shard.requiredTier(OverloadTier.ROOT_ONLY, 8));
+            assertEquals(OverloadTier.NONE, shard.requiredTier(OverloadTier.ROOT_ONLY, 7));
+
+            assertEquals(OverloadTier.COUNT_ONLY, shard.requiredTier(OverloadTier.ROOT_ONLY, 16));
+            assertEquals(OverloadTier.COUNT_ONLY, shard.requiredTier(OverloadTier.COUNT_ONLY, 14));
+            assertEquals(OverloadTier.ROOT_ONLY, shard.requiredTier(OverloadTier.COUNT_ONLY, 13));
+            assertEquals(OverloadTier.NONE, shard.requiredTier(OverloadTier.COUNT_ONLY, 0));
+        });
+        });
+        });
+    }
+
+    @Test
+    public void should_only_count_roots_when_queue_is_almost_full(){
+        withProperty(Properties.QUEUE_MAX_SIZE, "10", () -> {
+        withProperty(Properties.OVERLOAD_ROOT_ONLY_FILL, "0.5", () -> {
+        withProperty(Properties.OVERLOAD_COUNT_ONLY_FILL, "0.8", () -> {
+            CurrentStats cs = new CurrentStats();
+            for(int i=0; i<8; i++){
+                cs.add(tree("a", 1));
+            }
+            Context failed = tree("b", 10);
+            failed.setErr(true);
+            cs.add(failed);
+            cs.add(tree("b", 30));
+            assertEquals(OverloadTier.COUNT_ONLY, cs.getShard(0).getOverloadTier());
+            assertEquals(8, cs.getQueueSize());
+
+            cs.processAllFromQueue();
+            cs.lockReadStats(stats -> {
+                Stat b = stats.getMap().get("b");
+                assertEquals(2, b.getHits());
+                assertEquals(1, b.getErr());
+                assertEquals(20, b.getAvg());
+                assertEquals(2, stats.getCountedOnly());
+                assertEquals(3, stats.getReducedToRoot());
+                assertEquals(2, stats.getOverloadTierChanges());
+                assertEquals(0, stats.getLost());
+                return null;
+            });
+        });
+        });
+        });
+    }
+
+    @Test
+    public void should_process_more_than_single_batch(){
+        CurrentStats cs = new CurrentStats();
+        for(int i=0; i<5000; i++){
+            cs.add(new Context("a", 1));
+        }
+        cs.processAllFromQueue();
+
+        assertEquals(0, cs.getQueueSize());
+        assertEquals(5000L, (long)cs.lockReadStats(s -> s.getMap().get("a").getHits()));
+    }
+
+    @Test
+    public void should_merge_shards(){
+        CurrentStats cs = new CurrentStats(4);
+        for(int i=0; i<100; i++){
+            Context root = new Context("root" + i, 2);
+            root.addChild(new Context("child", 1));
+            cs.add(root);
+        }
+        cs.processAllFromQueue();
+
+        cs.lockReadStats(stats -> {
+            assertEquals(101, stats.getMap().size());
+            assertEquals(100, stats.getMap().get("child").getHits());
+            assertEquals(1, stats.getMap().get("root7").getChildren().get("child").getHits());
+            //roots with nested children + top level "child" counted once per shard
+            assertEquals(Properties.getMaxStatCount() - 200 - 4, stats.getStatsLeft());
+            return null;
+        });
+    }
+
+    @Test
+    public void should_assign_tree_to_shard_by_root_id(){
+        CurrentStats cs = new CurrentStats(8);
+        int shard = cs.add(new Context("a", 1));
+        assertEquals(shard, cs.add(new Context("a", 1)));
+        assertEquals(2, cs.getShard(shard).getQueueSize());
+        assertEquals(2, cs.getQueueSize());
+    }
+
+    @Test
+    public void should_reset_and_restore_sharded_stats(){
+        CurrentStats cs = new CurrentStats(4);
+        int shardA = cs.add(new Context("a", 1));
+        int shardB = cs.add(new Context("b", 1));
+        cs.processAllFromQueue();
+
+        Stats old = cs.resetStats();
+        old.setSkipped(3);
+        assertEquals(2, old.getMap().size());
+        assertEquals(0, (int)cs.lockReadStats(s -> s.getMap().size()));
+
+        cs.restoreStats(old);
+        assertEquals(2, (int)cs.lockReadStats(s -> s.getMap().size()));
+        assertEquals(3L, (long)cs.lockReadStats(Stats::getSkipped));
+        //restored roots are in shards new calls of them go to
+        assertEquals(1L, (long)cs.getShard(shardA).readStats(s -> s.getMap().get("a").getHits()));
+        assertEquals(1L, (long)cs.getShard(shardB).readStats(s -> s.getMap().get("b").getHits()));
+    }
+
+    @Test(timeout = 10000)
+    public void should_return_retired_stats_once_writers_are_done() throws Exception {
+        CurrentStats cs = new CurrentStats(1);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(() -> cs.getShard(0).lockStats(stats -> {
+            writing.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            stats.storeCounts("late", 1, 0, 1);
+            return null;
+        }));
+        writer.start();
+        writing.await();
+
+        AtomicReference<Stats> old = new AtomicReference<>();
+        Thread reset = new Thread(() -> old.set(cs.resetStats()));
+        reset.start();
+        reset.join(200);
+        assertTrue(reset.isAlive());
+
+        done.countDown();
+        reset.join();
+        assertEquals(1, old.get().getMap().get("late").getHits());
+        assertEquals(0, (int)cs.lockReadStats(s -> s.getMap().size()));
+    }
+}
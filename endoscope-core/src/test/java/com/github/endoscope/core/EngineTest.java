@@ -8,6 +8,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -301,4 +302,281 @@ public class EngineTest {
         assertEquals(1, map.size());
         assertEquals(1, map.get("id").getErr());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_store_deep_call_tree(){
+        Engine engine = new Engine(true, null, new NoopTasksFactory() );
+
+        for(int i=0; i<50; i++){
+            engine.push("id-" + i);
+        }
+        for(int i=0; i<50; i++){
+            engine.pop(false);
+        }
+        engine.getCurrentStats().processAllFromQueue();
+
+        Stat stat = engine.getCurrentStats().lockReadStats(stats -> stats.getMap().get("id-0") );
+        for(int i=1; i<50; i++){
+            stat = stat.getChild("id-" + i);
+            assertNotNull(stat);
+        }
+    }
+
+    @Test
+    public void should_reuse_contexts_once_stats_got_processed(){
+        Engine engine = new Engine(true, null, new NoopTasksFactory() );
+        ContextPool pool = engine.getCurrentStats().getContextPool();
+
+        engine.monitor("parent", () -> engine.monitor("child", () -> {}));
+        assertEquals(0, pool.getSize());
+
+        engine.getCurrentStats().processAllFromQueue();
+        assertEquals(2, pool.getSize());
+
+        engine.monitor("parent", () -> engine.monitor("child", () -> {}));
+        assertEquals(0, pool.getSize());
+
+        engine.getCurrentStats().processAllFromQueue();
+        Stat parent = engine.getCurrentStats().lockReadStats(stats -> stats.getMap().get("parent") );
+        assertEquals(2, parent.getHits());
+        assertEquals(2, parent.getChild("child").getHits());
+    }
+
+    @Test
+    public void should_aggregate_in_thread_local_stats(){
+        PropertyTestUtil.withProperty(Properties.THREAD_LOCAL_AGGREGATION, "true", ()->{
+            Engine engine = new Engine(true, null, new NoopTasksFactory() );
+
+            engine.monitor("parent", () -> engine.monitor("child", () -> {}));
+            engine.monitor("parent", () -> engine.monitor("child", () -> {}));
+
+            //nothing queued and contexts got recycled immediately
+            assertEquals(0, engine.getCurrentStats().getQueueSize());
+            assertEquals(2, engine.getCurrentStats().getContextPool().getSize());
+            assertEquals(0, (int)engine.getCurrentStats().lockReadStats(stats -> stats.getMap().size()));
+
+            assertEquals(1, engine.getCurrentStats().harvestLocalStats());
+            Stat parent = engine.getCurrentStats().lockReadStats(stats -> stats.getMap().get("parent") );
+            assertEquals(2, parent.getHits());
+            assertEquals(2, parent.getChild("child").getHits());
+            assertEquals(2, (long)engine.getCurrentStats().lockReadStats(stats -> stats.getMap().get("child").getHits()));
+
+            //nothing new since last harvest
+            assertEquals(0, engine.getCurrentStats().harvestLocalStats());
+        });
+    }
+
+    @Test
+    public void should_reuse_thread_local_stats_after_harvest(){
+        PropertyTestUtil.withProperty(Properties.THREAD_LOCAL_AGGREGATION, "true", ()->{
+            Engine engine = new Engine(true, null, new NoopTasksFactory() );
+
+            engine.monitor("parent", () -> engine.monitor("child", () -> {}));
+            assertEquals(1, engine.getCurrentStats().harvestLocalStats());
+            engine.monitor("other", () -> {});
+            assertEquals(1, engine.getCurrentStats().harvestLocalStats());
+            engine.monitor("parent", () -> engine.monitor("child", () -> {}));
+            assertEquals(1, engine.getCurrentStats().harvestLocalStats());
+
+            engine.getCurrentStats().lockReadStats(stats -> {
+                assertEquals(2, stats.getMap().get("parent").getHits());
+                assertEquals(2, stats.getMap().get("parent").getChild("child").getHits());
+                assertEquals(2, stats.getMap().get("child").getHits());
+                assertEquals(1, stats.getMap().get("other").getHits());
+                return null;
+            });
+        });
+    }
+
+    @Test
+    public void should_queue_trees_that_dont_fit_in_thread_local_stats(){
+        PropertyTestUtil.withProperty(Properties.THREAD_LOCAL_AGGREGATION, "true", ()->{
+        PropertyTestUtil.withProperty(Properties.THREAD_LOCAL_MAX_STAT_COUNT, "3", ()->{
+            Engine engine = new Engine(true, null, new NoopTasksFactory() );
+
+            engine.monitor("single", () -> {});
+            engine.monitor("parent", () -> engine.monitor("child", () -> {}));
+
+            assertEquals(1, engine.getCurrentStats().getQueueSize());
+
+            engine.getCurrentStats().harvestLocalStats();
+            engine.getCurrentStats().processAllFromQueue();
+            engine.getCurrentStats().lockReadStats(stats -> {
+                assertEquals(1, stats.getMap().get("single").getHits());
+                assertEquals(1, stats.getMap().get("parent").getChild("child").getHits());
+                return null;
+            });
+        });
+        });
+    }
+
+    @Test
+    public void should_harvest_stats_of_finished_threads() throws InterruptedException {
+        PropertyTestUtil.withProperty(Properties.THREAD_LOCAL_AGGREGATION, "true", ()->{
+            Engine engine = new Engine(true, null, new NoopTasksFactory() );
+
+            Thread t = new Thread(() -> engine.monitor("a", () -> {}));
+            t.start();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            assertEquals(1, engine.getCurrentStats().harvestLocalStats());
+            assertEquals(1, (long)engine.getCurrentStats().lockReadStats(stats -> stats.getMap().get("a").getHits()));
+
+            //dead thread got forgotten
+            engine.monitor("b", () -> {});
+            assertEquals(1, engine.getCurrentStats().harvestLocalStats());
+            assertEquals(0, engine.getCurrentStats().harvestLocalStats());
+        });
+    }
+
+    @Test
+    public void should_skip_whole_tree_of_not_sampled_root(){
+        Engine engine = new Engine(true, null, new NoopTasksFactory(), new NanoTimeSource(), (id, current) -> 0);
+
+        String result = engine.monitor("parent", () -> engine.monitor("child", () -> "child-result"));
+        assertEquals("child-result", result);
+        assertEquals(0, engine.getCurrentStats().getQueueSize());
+
+        //nested call of skipped root must not become a root itself
+        engine.monitor("next", () -> {
+            engine.push("not-popped");
+        });
+        assertEquals(0, engine.getCurrentStats().getQueueSize());
+    }
+
+    @Test
+    public void should_extrapolate_hits_of_sampled_root(){
+        Engine engine = new Engine(true, null, new NoopTasksFactory(), new NanoTimeSource(), (id, current) -> 10);
+
+        engine.monitor("parent", () -> {
+            engine.monitor("child", () -> {});
+            try {
+                engine.monitor("child", () -> {
+                    throw new RuntimeException();
+                });
+            } catch (RuntimeException e) {
+                //expected
+            }
+        });
+        engine.getCurrentStats().processAllFromQueue();
+
+        engine.getCurrentStats().lockReadStats(stats -> {
+            Stat parent = stats.getMap().get("parent");
+            assertEquals(10, parent.getHits());
+            assertEquals(20, parent.getChild("child").getHits());
+            assertEquals(10, parent.getChild("child").getErr());
+            assertEquals(20, parent.getChild("child").getHistogram().getTotalCount());
+            assertEquals(20, stats.getMap().get("child").getHits());
+            assertEquals(9, stats.getSkipped());
+            return null;
+        });
+    }
+
+    private long now = 0;
+
+    @Test
+    public void should_collapse_repeated_calls_with_the_same_stats(){
+        Engine engine = new Engine(true, null, new NoopTasksFactory(), () -> now);
+        Context expected = new Context("parent", 0);
+
+        now = 0;
+        engine.push("parent");
+        for(int i=0; i<1000; i++){
+            String id = i % 3 == 0 ? "a" : "b";
+            Context query = new Context(id, 0);
+            engine.push(id);
+            now += 10;
+            engine.push("jdbc");
+            now += i % 50;
+            engine.pop(false);
+            query.addChild(new Context("jdbc", 0));
+            query.firstChild.setTimeNanos(i % 50);
+            now += 5;
+            engine.pop(i % 7 == 0);
+            query.setTimeNanos(15 + i % 50);
+            query.setErr(i % 7 == 0);
+            expected.addChild(query);
+        }
+        engine.pop(false);
+        expected.setTimeNanos(now);
+
+        //loop collapsed into single context per id: parent, a, a->jdbc, b, b->jdbc
+        engine.getCurrentStats().processAllFromQueue();
+        assertEquals(5, engine.getCurrentStats().getContextPool().getSize());
+
+        Stats expectedStats = new Stats();
+        expectedStats.store(expected);
+        engine.getCurrentStats().lockReadStats(stats -> {
+            assertEquals(expectedStats.getMap(), stats.getMap());
+            assertEquals(334, stats.getMap().get("parent").getChild("a").getHits());
+            assertEquals(1000, stats.getMap().get("jdbc").getHits());
+            return null;
+        });
+    }
+
+    @Test
+    public void should_collapse_loop_preceded_by_many_distinct_calls(){
+        Engine engine = new Engine(true, null, new NoopTasksFactory());
+
+        engine.monitor("parent", () -> {
+            for(int i = 0; i < 2 * CallStack.MAX_COLLAPSE_SCAN; i++){
+                engine.monitor("setup" + i, () -> {});
+            }
+            for(int i = 0; i < 10000; i++){
+                engine.monitor("query", () -> {});
+                engine.monitor("update", () -> {});
+            }
+        });
+        engine.getCurrentStats().processAllFromQueue();
+
+        //parent, setup calls, query and update
+        assertEquals(3 + 2 * CallStack.MAX_COLLAPSE_SCAN, engine.getCurrentStats().getContextPool().getSize());
+        engine.getCurrentStats().lockReadStats(stats -> {
+            Stat parent = stats.getMap().get("parent");
+            assertEquals(2 + 2 * CallStack.MAX_COLLAPSE_SCAN, parent.getChildren().size());
+            assertEquals(10000, parent.getChild("query").getHits());
+            assertEquals(10000, parent.getChild("update").getHits());
+            return null;
+        });
+    }
+
+    @Test
+    public void should_map_ids_to_ints_when_stored_not_when_pushed(){
+        Engine engine = new Engine(true, null, new NoopTasksFactory());
+        String id = "not-stored-yet-" + System.nanoTime();
+
+        engine.monitor(id, () -> engine.monitor(id + "-child", () -> {}));
+        assertEquals(IdDictionary.NO_ID, IdDictionary.global().lookup(id));
+        assertEquals(IdDictionary.NO_ID, IdDictionary.global().lookup(id + "-child"));
+
+        engine.getCurrentStats().processAllFromQueue();
+        assertNotEquals(IdDictionary.NO_ID, IdDictionary.global().lookup(id));
+        assertNotEquals(IdDictionary.NO_ID, IdDictionary.global().lookup(id + "-child"));
+    }
+
+    @Test
+    public void should_not_collapse_calls_with_different_ids(){
+        Engine engine = new Engine(true, null, new NoopTasksFactory());
+
+        engine.monitor("parent", () -> {
+            engine.monitor("a", () -> engine.monitor("x", () -> {}));
+            engine.monitor("b", () -> {});
+            engine.monitor("a", () -> engine.monitor("y", () -> {}));
+        });
+        engine.getCurrentStats().processAllFromQueue();
+
+        engine.getCurrentStats().lockReadStats(stats -> {
+            Stat parent = stats.getMap().get("parent");
+            assertEquals(2, parent.getChildren().size());
+            assertEquals(2, parent.getChild("a").getHits());
+            assertEquals(1, parent.getChild("a").getChild("x").getHits());
+            assertEquals(1, parent.getChild("a").getChild("y").getHits());
+            assertEquals(1, parent.getChild("b").getHits());
+            return null;
+        });
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.endoscope.core;
+
+import com.github.endoscope.properties.Properties;
+import org.junit.Test;
+
+import static com.github.endoscope.util.PropertyTestUtil.withProperty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeavyHittersTest {
+
+    @Test
+    public void should_count_followed_ids_exactly(){
+        HeavyHitters hh = new HeavyHitters(2);
+        hh.add("a", 1);
+        hh.add("b", 2);
+        assertEquals(4, hh.add("a", 3));
+        assertEquals(2, hh.getGuaranteed("b"));
+        assertEquals(0, hh.getGuaranteed("c"));
+    }
+
+    @Test
+    public void should_replace_lowest_count_when_full(){
+        HeavyHitters hh = new HeavyHitters(2);
+        hh.add("a", 5);
+        hh.add("b", 1);
+
+        assertEquals(1, hh.add("c", 1));//replaces b and inherits its count as error
+
+        assertEquals(2, hh.size());
+        assertEquals(0, hh.getGuaranteed("b"));
+        assertEquals(5, hh.getGuaranteed("a"));
+    }
+
+    @Test
+    public void should_keep_heavy_hitter_among_many_ids(){
+        HeavyHitters hh = new HeavyHitters(4);
+        for(int i=0; i<1000; i++){
+            hh.add("cold" + i, 1);
+            if( i % 4 == 0 ){
+                hh.add("hot", 1);
+            }
+        }
+        assertTrue(hh.getGuaranteed("hot") > 0);
+    }
+
+    private static Stats fullStats(){
+        Stats stats = new Stats();
+        stats.setStatsLeft(10);
+        for(int i=0; i<10; i++){
+            stats.store(new Context("old" + i, 1));
+        }
+        stats.store(new Context("old0", 1));//the only one with more than single hit
+        assertEquals(0, stats.getStatsLeft());
+        return stats;
+    }
+
+    @Test
+    public void should_swap_coldest_stat_for_hot_new_id(){
+        Stats stats = fullStats();
+
+        for(int i=0; i<5; i++){
+            stats.store(new Context("new", 1));
+        }
+
+        assertNotNull(stats.getMap().get("new"));
+        assertNotNull(stats.getMap().get(Stats.OTHER));
+        assertEquals(2, stats.getMap().get("old0").getHits());
+        assertEquals(10, stats.getMap().size());
+        assertEquals(0, stats.getStatsLeft());
+        assertEquals(2, stats.getPruned());
+        //calls seen before swap are not stored anywhere
+        long stored = stats.getMap().values().stream().mapToLong(Stat::getHits).sum();
+        assertEquals(16, stored + stats.getUntracked());
+    }
+
+    @Test
+    public void should_report_untracked_calls_of_cold_new_ids(){
+        Stats stats = fullStats();
+
+        stats.store(new Context("new", 1));
+
+        assertNull(stats.getMap().get("new"));
+        assertEquals(1, stats.getUntracked());
+        assertEquals(0, stats.getPruned());
+    }
+
+    @Test
+    public void should_not_swap_when_disabled(){
+        withProperty(Properties.HEAVY_HITTERS_SIZE, "0", () -> {
+            Stats stats = fullStats();
+            for(int i=0; i<5; i++){
+                stats.store(new Context("new", 1));
+            }
+            assertNull(stats.getMap().get("new"));
+            assertEquals(5, stats.getUntracked());
+        });
+    }
+
+    @Test
+    public void should_give_swapped_stat_room_left_by_children_of_evicted_one(){
+        Stats stats = new Stats(false);
+        stats.setStatsLeft(4);
+        Context old = new Context("old", 1);
+        old.addChild(new Context("child1", 1));
+        old.addChild(new Context("child2", 1));
+        stats.store(old);
+        stats.store(new Context("warm", 1));
+        stats.store(new Context("warm", 1));
+        assertEquals(0, stats.getStatsLeft());
+
+        for(int i=0; i<2; i++){
+            Context tree = new Context("new", 1);
+            tree.addChild(new Context("child1", 1));
+            stats.store(tree);
+        }
+
+        assertNull(stats.getMap().get("old"));
+        assertEquals(1, stats.getMap().get(Stats.OTHER).getHits());
+        assertEquals(2, stats.getMap().get("warm").getHits());
+        assertEquals(1, stats.getMap().get("new").getChildren().get("child1").getHits());
+        assertEquals(0, stats.getStatsLeft());
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.endoscope.core;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IdDictionaryTest {
+
+    @Test
+    public void should_assign_dense_ints(){
+        IdDictionary d = new IdDictionary(10);
+        assertEquals(0, d.intern("a"));
+        assertEquals(1, d.intern("b"));
+        assertEquals(0, d.intern(new String("a")));
+        assertEquals("b", d.getName(1));
+        assertEquals(2, d.getSize());
+    }
+
+    @Test
+    public void should_not_assign_on_lookup(){
+        IdDictionary d = new IdDictionary(10);
+        assertEquals(IdDictionary.NO_ID, d.lookup("a"));
+        assertEquals(0, d.intern("a"));
+        assertEquals(0, d.lookup("a"));
+        assertEquals(IdDictionary.NO_ID, d.lookup(null));
+    }
+
+    @Test
+    public void should_return_no_id_when_full(){
+        IdDictionary d = new IdDictionary(2);
+        d.intern("a");
+        d.intern("b");
+        assertEquals(IdDictionary.NO_ID, d.intern("c"));
+        assertEquals(1, d.intern("b"));
+        assertEquals(2, d.getSize());
+    }
+
+    @Test
+    public void should_grow_beyond_initial_capacity(){
+        IdDictionary d = new IdDictionary(5000);
+        for(int i=0; i<5000; i++){
+            assertEquals(i, d.intern("id" + i));
+        }
+        assertEquals("id4321", d.getName(4321));
+    }
+
+    @Test
+    public void should_assign_single_int_per_id_when_used_concurrently() throws Exception {
+        IdDictionary d = new IdDictionary(1000);
+        Set<String> assigned = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for(int t=0; t<threads.length; t++){
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i=0; i<1000; i++){
+                    int nameId = d.intern("id" + i);
+                    assigned.add(nameId + "=" + d.getName(nameId));
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread t : threads){
+            t.join();
+        }
+        assertEquals(1000, assigned.size());
+        assertEquals(1000, d.getSize());
+    }
+}
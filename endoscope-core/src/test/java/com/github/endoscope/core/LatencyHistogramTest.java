@@ -0,0 +1,204 @@
+package com.github.endoscope.core;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void should_keep_small_values_exact(){
+        for(long v=0; v<LatencyHistogram.SUB_BUCKETS; v++){
+            int index = LatencyHistogram.bucketIndex(v);
+            assertEquals(v, LatencyHistogram.bucketLowerBound(index));
+            assertEquals(v, LatencyHistogram.bucketUpperBound(index));
+        }
+    }
+
+    @Test
+    public void should_cover_values_with_adjacent_buckets(){
+        for(int i = 0; i < LatencyHistogram.MAX_BUCKETS - 1; i++){
+            assertEquals(LatencyHistogram.bucketUpperBound(i) + 1, LatencyHistogram.bucketLowerBound(i + 1));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LatencyHistogram.MAX_BUCKETS - 1));
+    }
+
+    @Test
+    public void should_find_bucket_containing_value(){
+        Random r = new Random(1);
+        for(int i=0; i<100_000; i++){
+            long v = r.nextLong() >>> (1 + r.nextInt(63));
+            int index = LatencyHistogram.bucketIndex(v);
+            assertTrue(LatencyHistogram.bucketLowerBound(index) <= v);
+            assertTrue(LatencyHistogram.bucketUpperBound(index) >= v);
+        }
+    }
+
+    @Test
+    public void should_keep_relative_error_low(){
+        Random r = new Random(1);
+        for(int i=0; i<10_000; i++){
+            long v = 1 + (r.nextLong() >>> (1 + r.nextInt(63)));
+            LatencyHistogram h = new LatencyHistogram();
+            h.record(v);
+            long reported = h.getValueAtPercentile(50);
+            assertTrue("value: " + v + " reported: " + reported, Math.abs(reported - v) <= v / 16.0 + 1);
+        }
+    }
+
+    @Test
+    public void should_return_minus_one_when_empty(){
+        LatencyHistogram h = new LatencyHistogram();
+        assertTrue(h.isEmpty());
+        assertEquals(-1, h.getValueAtPercentile(99));
+        assertEquals("", h.encode());
+    }
+
+    @Test
+    public void should_ignore_negative_values(){
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        assertTrue(h.isEmpty());
+    }
+
+    @Test
+    public void should_find_percentile(){
+        LatencyHistogram h = new LatencyHistogram();
+        for(int i=1; i<=1000; i++){
+            h.record(i * 1000L);
+        }
+        assertEquals(1000, h.getTotalCount());
+        assertEquals(500_000, h.getValueAtPercentile(50), 500_000 * 0.07);
+        assertEquals(990_000, h.getValueAtPercentile(99), 990_000 * 0.07);
+        assertEquals(1000, h.getValueAtPercentile(0), 1000 * 0.07);
+        assertEquals(1000_000, h.getValueAtPercentile(100), 1000_000 * 0.07);
+    }
+
+    @Test
+    public void should_merge_same_as_recorded_together(){
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram low = new LatencyHistogram();
+        LatencyHistogram high = new LatencyHistogram();
+        for(int i=0; i<100; i++){
+            low.record(i);
+            all.record(i);
+            high.record(1000_000L * i);
+            all.record(1000_000L * i);
+        }
+
+        LatencyHistogram merged = high.copy();
+        merged.merge(low);
+        merged.merge(null);
+
+        assertEquals(all, merged);
+        assertEquals(200, merged.getTotalCount());
+    }
+
+    @Test
+    public void should_encode_and_decode(){
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(3);
+        h.record(3);
+        h.record(5);
+        h.record(100_000L);
+
+        String encoded = h.encode();
+        assertTrue(encoded, encoded.startsWith("3:2,0,1,"));
+
+        LatencyHistogram decoded = LatencyHistogram.decode(encoded);
+        assertEquals(h, decoded);
+        assertEquals(4, decoded.getTotalCount());
+        assertEquals(h.getValueAtPercentile(99), decoded.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void should_decode_blank_as_null(){
+        assertNull(LatencyHistogram.decode(null));
+        assertNull(LatencyHistogram.decode(" "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_out_of_range_histogram(){
+        LatencyHistogram.decode(LatencyHistogram.MAX_BUCKETS + ":1");
+    }
+
+    @Test
+    public void should_keep_size_bounded(){
+        LatencyHistogram h = new LatencyHistogram();
+        for(int shift=0; shift<62; shift++){
+            h.record(1L << shift);
+            assertTrue(h.getBucketCount() <= LatencyHistogram.MAX_SIZE);
+        }
+        for(int shift=61; shift>=0; shift--){
+            h.record(3L << shift);
+            assertTrue(h.getBucketCount() <= LatencyHistogram.MAX_SIZE);
+        }
+        assertEquals(124, h.getTotalCount());
+        assertEquals(LatencyHistogram.MAX_SIZE, h.getBucketCount());
+    }
+
+    @Test
+    public void should_keep_high_percentiles_accurate_after_collapse(){
+        LatencyHistogram h = new LatencyHistogram();
+        for(int i=0; i<1000; i++){
+            h.record(i);//collapsed when slow calls show up
+        }
+        for(int i=1; i<=1000; i++){
+            h.record(1000_000_000L * i);
+        }
+
+        assertEquals(LatencyHistogram.MAX_SIZE, h.getBucketCount());
+        assertEquals(2000, h.getTotalCount());
+        assertEquals(900_000_000_000L, h.getValueAtPercentile(95), 900_000_000_000L * 0.07);
+        assertEquals(980_000_000_000L, h.getValueAtPercentile(99), 980_000_000_000L * 0.07);
+    }
+
+    @Test
+    public void should_give_the_same_result_regardless_of_merge_order(){
+        Random r = new Random(1);
+        LatencyHistogram[] parts = new LatencyHistogram[30];
+        for(int i=0; i<parts.length; i++){
+            parts[i] = new LatencyHistogram();
+            for(int j=0; j<100; j++){
+                parts[i].record((long)(Math.exp(r.nextGaussian() * 2 + 15)));
+            }
+        }
+
+        LatencyHistogram forward = new LatencyHistogram();
+        for(int i=0; i<parts.length; i++){
+            forward.merge(parts[i]);
+        }
+        LatencyHistogram backward = new LatencyHistogram();
+        for(int i=parts.length-1; i>=0; i--){
+            backward.merge(parts[i]);
+        }
+
+        assertEquals(forward.getTotalCount(), backward.getTotalCount());
+        assertEquals(forward.getValueAtPercentile(50), backward.getValueAtPercentile(50));
+        assertEquals(forward.getValueAtPercentile(99), backward.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void should_reuse_buckets_after_clear(){
+        LatencyHistogram reused = new LatencyHistogram();
+        reused.record(1000);
+        reused.record(1000000000);
+        reused.clear();
+        assertTrue(reused.isEmpty());
+        assertEquals("", reused.encode());
+
+        reused.record(5000);
+        LatencyHistogram fresh = new LatencyHistogram();
+        fresh.record(5000);
+        assertEquals(fresh, reused);
+
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(reused);
+        assertEquals(fresh, merged);
+        assertEquals(1, merged.getBucketCount());//empty reused buckets are not copied
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.endoscope.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+import com.github.endoscope.properties.Properties;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.github.endoscope.util.PropertyTestUtil.withProperty;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Monitored calls should not allocate once pools, dictionaries and stats are warmed up.
+ * Bytes allocated by test thread are measured with com.sun.management.ThreadMXBean - queue is drained
+ * outside of measured code as collector thread would do (thread local stats get harvested there as well).
+ *
+ * Budget can be changed with -Dendoscope.test.max-bytes-per-call=N (bytes per monitored root call). Default one
+ * is below size of the smallest object so any per call allocation fails the test while reused histogram buckets
+ * of collapsed calls can still grow now and then.
+ */
+public class MonitorAllocationTest {
+    private static final double MAX_BYTES_PER_CALL = Double.valueOf(System.getProperty("endoscope.test.max-bytes-per-call", "4"));
+    private static final int WARM_UP_CALLS = 50000;
+    private static final int MEASURED_CALLS = 100000;
+    private static final int BATCH_SIZE = 100;//calls between draining queue - well below queue capacity
+
+    private com.sun.management.ThreadMXBean threads;
+    private Engine engine;
+
+    @Before
+    public void setUp(){
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        engine = new Engine(true, null, new EngineTest.NoopTasksFactory());
+    }
+
+    private Runnable nested(int depth, Runnable body){
+        Runnable call = body;
+        for(int level = depth - 1; level >= 0; level--){
+            String id = "level" + level;
+            Runnable inner = call;
+            call = () -> engine.monitor(id, inner);
+        }
+        return call;
+    }
+
+    private double bytesPerCall(Runnable call){
+        runBatches(call, WARM_UP_CALLS);
+        return runBatches(call, MEASURED_CALLS) / (double)MEASURED_CALLS;
+    }
+
+    private long runBatches(Runnable call, int calls){
+        long thread = Thread.currentThread().getId();
+        long allocated = 0;
+        for(int done = 0; done < calls; done += BATCH_SIZE){
+            long before = threads.getThreadAllocatedBytes(thread);
+            for(int i = 0; i < BATCH_SIZE; i++){
+                call.run();
+            }
+            allocated += threads.getThreadAllocatedBytes(thread) - before;
+            engine.getCurrentStats().processAllFromQueue();
+            engine.getCurrentStats().harvestLocalStats();
+        }
+        return allocated;
+    }
+
+    private void assertWithinBudget(String pattern, Runnable call){
+        double bytes = bytesPerCall(call);
+        assertTrue(pattern + " allocates " + bytes + " bytes per call - budget is " + MAX_BYTES_PER_CALL,
+                bytes <= MAX_BYTES_PER_CALL);
+    }
+
+    @Test
+    public void should_not_allocate_in_single_call(){
+        assertWithinBudget("single call", nested(1, () -> {}));
+    }
+
+    @Test
+    public void should_not_allocate_in_nested_calls(){
+        assertWithinBudget("nested calls", nested(10, () -> {}));
+    }
+
+    @Test
+    public void should_not_allocate_in_repeated_child_calls(){
+        Runnable child = nested(2, () -> {});
+        assertWithinBudget("repeated child calls", nested(1, () -> {
+            for(int i = 0; i < 10; i++){
+                child.run();
+            }
+        }));
+    }
+
+    @Test
+    public void should_not_allocate_in_calls_completed_with_exception(){
+        RuntimeException error = new RuntimeException("expected");
+        Runnable failing = nested(3, () -> { throw error; });
+        assertWithinBudget("failing calls", () -> {
+            try {
+                failing.run();
+            } catch (RuntimeException e) {
+                //expected
+            }
+        });
+    }
+
+    @Test
+    public void should_not_allocate_in_thread_local_aggregation(){
+        withProperty(Properties.THREAD_LOCAL_AGGREGATION, "true", () -> {
+            engine = new Engine(true, null, new EngineTest.NoopTasksFactory());
+            Runnable child = nested(2, () -> {});
+            assertWithinBudget("thread local calls", nested(2, child));
+        });
+    }
+
+    @Test
+    public void should_not_allocate_in_supplier_calls(){
+        Supplier<String> value = () -> "value";
+        Supplier<String> inner = () -> engine.monitor("inner", value);
+        assertWithinBudget("supplier calls", () -> engine.monitor("outer", inner));
+    }
+}
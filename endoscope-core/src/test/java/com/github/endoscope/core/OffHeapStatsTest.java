@@ -0,0 +1,131 @@
+package com.github.endoscope.core;
+
+import java.util.Random;
+
+import com.github.endoscope.properties.Properties;
+import org.junit.Test;
+
+import static com.github.endoscope.util.PropertyTestUtil.withProperty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OffHeapStatsTest {
+
+    private void assertSameAsHeap(boolean aggregateSubCalls){
+        Random random = new Random(1);
+        Stats expected = new Stats(aggregateSubCalls);
+        OffHeapStats offHeap = new OffHeapStats(aggregateSubCalls, Long.MAX_VALUE);
+        for(int i=0; i<500; i++){
+            Context tree = RecursiveStore.randomTree(random, 1 + random.nextInt(6), 3, 1 + random.nextInt(10));
+            tree.setWeight(1 + random.nextInt(3));
+            expected.store(tree);
+            offHeap.store(tree);
+        }
+        Stats actual = offHeap.toStats();
+        assertEquals(expected.getMap(), actual.getMap());
+        assertEquals(expected.getSkipped(), actual.getSkipped());
+    }
+
+    @Test
+    public void should_store_the_same_as_heap_stats(){
+        assertSameAsHeap(true);
+    }
+
+    @Test
+    public void should_store_the_same_as_heap_stats_without_sub_calls(){
+        assertSameAsHeap(false);
+    }
+
+    @Test
+    public void should_store_collapsed_calls(){
+        Context root = new Context("root", 10);
+        Context first = new Context("query", 1);
+        first.setErr(true);
+        first.addCall(new Context("query", 3));
+        root.addChild(first);
+
+        Stats expected = new Stats();
+        expected.store(root);
+        OffHeapStats offHeap = new OffHeapStats(true, 100);
+        offHeap.store(root);
+
+        assertEquals(expected.getMap(), offHeap.toStats().getMap());
+    }
+
+    @Test
+    public void should_grow_beyond_initial_capacity(){
+        OffHeapStats offHeap = new OffHeapStats(true, 100000);
+        for(int i=0; i<5000; i++){
+            Context root = new Context("root" + (i % 100), i);
+            root.addChild(new Context("child" + i, 1));
+            offHeap.store(root);
+        }
+        Stats stats = offHeap.toStats();
+        assertEquals(5100, stats.getMap().size());
+        assertEquals(50, stats.getMap().get("root7").getHits());
+        assertEquals(50, stats.getMap().get("root7").getChildren().size());
+        assertEquals(1, stats.getMap().get("child4999").getHits());
+        assertEquals(10100, offHeap.getStatCount());
+    }
+
+    @Test
+    public void should_count_roots_over_limit_as_untracked(){
+        OffHeapStats offHeap = new OffHeapStats(true, 2);
+        offHeap.store(new Context("a", 1));
+        offHeap.store(new Context("b", 1));
+        Context c = new Context("c", 1);
+        c.setWeight(3);
+        offHeap.store(c);
+
+        Stats stats = offHeap.toStats();
+        assertEquals(2, stats.getMap().size());
+        assertEquals(3, stats.getUntracked());
+        assertEquals(0, stats.getStatsLeft());
+    }
+
+    @Test
+    public void should_start_from_scratch_after_clear(){
+        OffHeapStats offHeap = new OffHeapStats(true, 100);
+        offHeap.store(new Context("a", 1));
+        offHeap.clear();
+        offHeap.store(new Context("b", 1));
+
+        Stats stats = offHeap.toStats();
+        assertNull(stats.getMap().get("a"));
+        assertEquals(1, stats.getMap().get("b").getHits());
+        assertEquals(1, offHeap.getStatCount());
+    }
+
+    @Test
+    public void should_not_change_read_only_copy(){
+        OffHeapStats offHeap = new OffHeapStats(true, 100);
+        Context root = new Context("a", 1);
+        root.addChild(new Context("b", 5000));
+        offHeap.store(root);
+        Stats expected = offHeap.toStats();
+
+        OffHeapStats copy = offHeap.readOnlyCopy();
+        offHeap.store(new Context("a", 1000000));
+        offHeap.store(new Context("c", 1));
+
+        assertEquals(expected.getMap(), copy.toStats().getMap());
+    }
+
+    @Test
+    public void should_give_readers_heap_copy_and_reset_off_heap_stats(){
+        withProperty(Properties.OFF_HEAP_STATS, "true", () -> {
+            CurrentStats cs = new CurrentStats(1);
+            Context root = new Context("a", 1);
+            root.addChild(new Context("b", 1));
+            cs.add(root);
+            cs.processAllFromQueue();
+
+            assertEquals(1, (long)cs.lockReadStats(s -> s.getMap().get("a").getChildren().get("b").getHits()));
+            assertEquals(3, cs.getShard(0).getOffHeapStats().getStatCount());//a, a -> b, b
+
+            Stats old = cs.resetStats();
+            assertEquals(1, old.getMap().get("a").getHits());
+            assertEquals(0, (int)cs.lockReadStats(s -> s.getMap().size()));
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.endoscope.core;
+
+import java.util.Random;
+
+/**
+ * Reference implementation of {@link Stats#store(Context)} - straightforward recursive walk that stores every
+ * subtree once more as root. Used to verify and benchmark the single pass one.
+ */
+class RecursiveStore {
+    private final Stats stats;
+    private final boolean aggregateSubCalls;
+
+    RecursiveStore(Stats stats, boolean aggregateSubCalls) {
+        this.stats = stats;
+        this.aggregateSubCalls = aggregateSubCalls;
+    }
+
+    void store(Context context){
+        int weight = Math.max(1, context.getWeight());
+        stats.setSkipped(stats.getSkipped() + weight - 1);
+        store(context, true, weight);
+    }
+
+    private void store(Context context, boolean firstPass, int weight){
+        if( !firstPass && !aggregateSubCalls ){
+            return;
+        }
+        Stat root = stats.getMap().get(context.getId());
+        if( root == null && stats.getStatsLeft() > 0 ){
+            root = new Stat();
+            stats.setStatsLeft(stats.getStatsLeft() - 1);
+            stats.getMap().put(context.getId(), root);
+        }
+        if( root != null ){
+            root.updateNanos(context.getTimeNanos(), weight);
+            root.updateErr(context.isErr(), weight);
+            store(context, root, firstPass, weight);
+        }
+    }
+
+    private void store(Context context, Stat parentStat, boolean firstPass, int weight){
+        for(Context child = context.firstChild; child != null; child = child.nextSibling){
+            Stat childStat = parentStat.getChild(child.getId());
+            if( childStat == null && stats.getStatsLeft() > 0 ){
+                childStat = parentStat.createChild(child.getId());
+                stats.setStatsLeft(stats.getStatsLeft() - 1);
+            }
+            if( childStat != null ){
+                childStat.updateNanos(child.getTimeNanos(), weight);
+                childStat.updateErr(child.isErr(), weight);
+                store(child, childStat, firstPass, weight);
+                if( firstPass ){
+                    store(child, false, weight);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param names number of distinct ids - small number gives recursive calls (the same id on path)
+     */
+    static Context randomTree(Random random, int depth, int maxChildren, int names){
+        Context c = new Context("m" + random.nextInt(names), random.nextInt(100));
+        c.setErr(random.nextInt(10) == 0);
+        if( depth > 1 ){
+            int children = 1 + random.nextInt(maxChildren);
+            for(int i=0; i<children; i++){
+                c.addChild(randomTree(random, depth - 1, maxChildren, names));
+            }
+        }
+        return c;
+    }
+
+    /**
+     * @return tree with single path of given depth and a few leaves at each level
+     */
+    static Context deepTree(int depth, int leaves){
+        Context root = new Context("level0", 10);
+        Context parent = root;
+        for(int d=1; d<depth; d++){
+            Context c = new Context("level" + d, 10);
+            for(int i=0; i<leaves; i++){
+                parent.addChild(new Context("leaf" + i, 1));
+            }
+            parent.addChild(c);
+            parent = c;
+        }
+        return root;
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.endoscope.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+    @Test
+    public void should_keep_insertion_order(){
+        RingBuffer<String> rb = new RingBuffer<>(4);
+        rb.offer("a");
+        rb.offer("b");
+        rb.offer("c");
+
+        List<String> result = new ArrayList<>();
+        assertEquals(3, rb.drain(result::add, 10));
+        assertEquals(asList("a", "b", "c"), result);
+        assertTrue(rb.isEmpty());
+    }
+
+    @Test
+    public void should_reject_when_full(){
+        RingBuffer<String> rb = new RingBuffer<>(3);//not a power of 2 - capacity must be exact anyway
+        assertTrue(rb.offer("a"));
+        assertTrue(rb.offer("b"));
+        assertTrue(rb.offer("c"));
+        assertFalse(rb.offer("d"));
+        assertEquals(3, rb.size());
+
+        rb.drain(e -> {}, 1);
+        assertTrue(rb.offer("d"));
+        assertFalse(rb.offer("e"));
+    }
+
+    @Test
+    public void should_drain_in_batches(){
+        RingBuffer<Integer> rb = new RingBuffer<>(8);
+        for(int i=0; i<20; i++){//wrap around few times
+            assertTrue(rb.offer(i));
+            if( i % 5 == 4 ){
+                List<Integer> result = new ArrayList<>();
+                assertEquals(2, rb.drain(result::add, 2));
+                assertEquals(3, rb.drain(result::add, 10));
+                assertEquals(asList(i-4, i-3, i-2, i-1, i), result);
+            }
+        }
+    }
+
+    @Test
+    public void should_release_slots_when_consumer_fails(){
+        RingBuffer<String> rb = new RingBuffer<>(2);
+        rb.offer("a");
+        rb.offer("b");
+        try {
+            rb.drain(e -> { throw new IllegalStateException(); }, 10);
+        } catch(IllegalStateException e){
+        }
+        List<String> result = new ArrayList<>();
+        rb.drain(result::add, 10);
+        assertEquals(asList("b"), result);
+
+        assertTrue(rb.offer("c"));
+        rb.drain(result::add, 10);
+        assertEquals(asList("b", "c"), result);
+    }
+
+    @Test(timeout = 30000)
+    public void should_not_lose_elements_of_concurrent_producers() throws InterruptedException {
+        int producers = 8;
+        int perProducer = 100000;
+        RingBuffer<Long> rb = new RingBuffer<>(1000);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int p=0; p<producers; p++){
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(long i=1; i<=perProducer; i++){
+                    while( !rb.offer(i) ){
+                        Thread.yield();
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        AtomicLong sum = new AtomicLong();
+        long count = 0;
+        start.countDown();
+        while( count < producers * perProducer ){
+            count += rb.drain(sum::addAndGet, 100);
+        }
+        for(Thread t : threads){
+            t.join();
+        }
+
+        assertEquals((long)producers * perProducer * (perProducer + 1) / 2, sum.get());
+        assertTrue(rb.isEmpty());
+    }
+}
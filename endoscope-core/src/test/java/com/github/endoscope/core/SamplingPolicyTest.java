@@ -0,0 +1,115 @@
+package com.github.endoscope.core;
+
+import com.github.endoscope.properties.Properties;
+import org.junit.Test;
+
+import static com.github.endoscope.util.PropertyTestUtil.withProperty;
+import static java.util.stream.IntStream.range;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingPolicyTest {
+    private long now = 0;
+    private TimeSource timeSource = () -> now;
+
+    @Test
+    public void should_record_all_calls_by_default(){
+        SamplingPolicy policy = new SamplingPolicyFactory().safeCreate();
+        assertEquals(AllSamplingPolicy.class, policy.getClass());
+        assertEquals(1, policy.sample("x", null));
+    }
+
+    @Test
+    public void should_create_configured_policies(){
+        withProperty(Properties.SAMPLING_POLICY, SamplingPolicyFactory.PROBABILITY, () -> {
+            assertEquals(ProbabilitySamplingPolicy.class, new SamplingPolicyFactory().safeCreate().getClass());
+        });
+        withProperty(Properties.SAMPLING_POLICY, SamplingPolicyFactory.RATE_LIMIT, () -> {
+            assertEquals(RateLimitSamplingPolicy.class, new SamplingPolicyFactory().safeCreate().getClass());
+        });
+        withProperty(Properties.SAMPLING_POLICY, SamplingPolicyFactory.ADAPTIVE, () -> {
+            assertEquals(AdaptiveSamplingPolicy.class, new SamplingPolicyFactory().safeCreate().getClass());
+        });
+        withProperty(Properties.SAMPLING_POLICY, AllSamplingPolicy.class.getName(), () -> {
+            assertEquals(AllSamplingPolicy.class, new SamplingPolicyFactory().safeCreate().getClass());
+        });
+    }
+
+    @Test
+    public void should_fall_back_to_all_calls(){
+        withProperty(Properties.SAMPLING_POLICY, "no.such.Clazz", () -> {
+            assertEquals(AllSamplingPolicy.class, new SamplingPolicyFactory().safeCreate().getClass());
+        });
+        withProperty(Properties.SAMPLING_POLICY, SamplingPolicyFactory.PROBABILITY, () -> {
+            withProperty(Properties.SAMPLING_PROBABILITY, "0", () -> {
+                assertEquals(AllSamplingPolicy.class, new SamplingPolicyFactory().safeCreate().getClass());
+            });
+        });
+    }
+
+    @Test
+    public void should_sample_with_probability(){
+        ProbabilitySamplingPolicy policy = new ProbabilitySamplingPolicy(0.3);
+        assertEquals(3, policy.getInterval());
+
+        long represented = range(0, 30000)
+                .map(i -> policy.sample("x", null))
+                .peek(weight -> assertTrue(weight == 0 || weight == 3))
+                .sum();
+        assertEquals(30000, represented, 1500);
+    }
+
+    @Test
+    public void should_limit_rate_per_id(){
+        RateLimitSamplingPolicy policy = new RateLimitSamplingPolicy(2, timeSource);
+
+        assertEquals(1, policy.sample("x", null));
+        assertEquals(1, policy.sample("x", null));
+        assertEquals(0, policy.sample("x", null));
+        assertEquals(0, policy.sample("x", null));
+        assertEquals(1, policy.sample("y", null));
+
+        //half a second gives one token back
+        now += 500_000_000L;
+        assertEquals(3, policy.sample("x", null));
+        assertEquals(0, policy.sample("x", null));
+
+        //tokens don't accumulate over limit
+        now += 60_000_000_000L;
+        assertEquals(2, policy.sample("x", null));
+        assertEquals(1, policy.sample("x", null));
+        assertEquals(0, policy.sample("x", null));
+    }
+
+    @Test
+    public void should_not_track_too_many_ids(){
+        RateLimitSamplingPolicy policy = new RateLimitSamplingPolicy(1, timeSource);
+        range(0, RateLimitSamplingPolicy.MAX_TRACKED_IDS).forEach(i -> policy.sample("id" + i, null));
+
+        assertEquals(1, policy.sample("other", null));
+        assertEquals(1, policy.sample("other", null));
+        assertEquals(0, policy.sample("id0", null));
+    }
+
+    @Test
+    public void should_sample_less_when_queue_fills_up(){
+        assertEquals(1, AdaptiveSamplingPolicy.intervalFor(0.0));
+        assertEquals(1, AdaptiveSamplingPolicy.intervalFor(0.49));
+        assertEquals(2, AdaptiveSamplingPolicy.intervalFor(0.5));
+        assertEquals(4, AdaptiveSamplingPolicy.intervalFor(0.6));
+        assertEquals(64, AdaptiveSamplingPolicy.intervalFor(1.0));
+
+        withProperty(Properties.QUEUE_MAX_SIZE, "10", () -> {
+            CurrentStats current = new CurrentStats(1);
+            AdaptiveSamplingPolicy policy = new AdaptiveSamplingPolicy();
+            assertEquals(1, policy.sample("x", current));
+
+            range(0, 10).forEach(i -> current.add(new Context("x", 1)));
+            assertEquals(1.0, current.getQueueFill(), 0.0001);
+            range(0, 100).forEach(i -> {
+                int weight = policy.sample("x", current);
+                assertTrue(weight == 0 || weight == 64);
+            });
+        });
+    }
+}
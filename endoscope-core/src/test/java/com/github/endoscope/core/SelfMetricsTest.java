@@ -0,0 +1,115 @@
+package com.github.endoscope.core;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import com.github.endoscope.properties.Properties;
+import org.junit.Test;
+
+import static com.github.endoscope.util.PropertyTestUtil.withProperty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SelfMetricsTest {
+
+    @Test
+    public void should_measure_sampled_push_and_pop(){
+        withProperty(Properties.SELF_METRICS_SAMPLE, "2", () -> {
+            Engine engine = new Engine(true, null, new EngineTest.NoopTasksFactory());
+            engine.push("a");
+            engine.push("b");
+            engine.pop(false);
+            engine.pop(false);
+            engine.push("c");
+            engine.popAll(false);
+
+            SelfMetrics metrics = engine.getCurrentStats().getSelfMetrics();
+            //every second call of thread is measured: push b, second pop and popAll
+            assertEquals(1, metrics.getPushSamples());
+            assertEquals(2, metrics.getPopSamples());
+            assertTrue(metrics.getMaxPushNanos() >= metrics.getAvgPushNanos());
+        });
+    }
+
+    @Test
+    public void should_not_measure_push_and_pop_when_disabled(){
+        withProperty(Properties.SELF_METRICS_SAMPLE, "0", () -> {
+            Engine engine = new Engine(true, null, new EngineTest.NoopTasksFactory());
+            engine.push("a");
+            engine.pop(false);
+
+            SelfMetrics metrics = engine.getCurrentStats().getSelfMetrics();
+            assertEquals(0, metrics.getPushSamples());
+            assertEquals(0, metrics.getPopSamples());
+        });
+    }
+
+    @Test
+    public void should_measure_queue_store_and_reads(){
+        CurrentStats cs = new CurrentStats(1);
+        for(int i=0; i<3; i++){
+            cs.add(new Context("a", 1));
+        }
+        cs.processAllFromQueue();
+        cs.lockReadStats(stats -> stats.getMap().size());
+
+        SelfMetrics metrics = cs.getSelfMetrics();
+        assertEquals(3, metrics.getMaxQueueSize());
+        assertEquals(0, metrics.getQueueSize());
+        assertTrue(metrics.getAvgStoreNanos() > 0);
+        assertEquals(1, metrics.getReads());
+    }
+
+    @Test
+    public void should_record_saves(){
+        SelfMetrics metrics = new CurrentStats(1).getSelfMetrics();
+        metrics.recordSave(5000000, 100, true);
+        metrics.recordSave(1000000, 0, false);
+
+        assertEquals(1, metrics.getSaves());
+        assertEquals(1, metrics.getFailedSaves());
+        assertEquals(5, metrics.getLastSaveMillis());
+        assertEquals(100, metrics.getLastSaveEstimatedBytes());
+    }
+
+    @Test
+    public void should_expose_metrics_over_jmx() throws Exception {
+        SelfMetrics metrics = new CurrentStats(1).getSelfMetrics();
+        metrics.recordReadWait(10);
+        metrics.safeRegisterMBean();
+        try {
+            Object reads = ManagementFactory.getPlatformMBeanServer().getAttribute(metrics.getRegisteredName(), "Reads");
+            assertEquals(1L, reads);
+        } finally {
+            metrics.safeUnregisterMBean();
+        }
+    }
+
+    @Test
+    public void should_not_replace_mbean_of_other_instance() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        SelfMetrics first = new CurrentStats(1).getSelfMetrics();
+        SelfMetrics second = new CurrentStats(1).getSelfMetrics();
+        first.safeRegisterMBean();
+        second.safeRegisterMBean();
+        try {
+            ObjectName firstName = first.getRegisteredName();
+            ObjectName secondName = second.getRegisteredName();
+            assertNotEquals(firstName, secondName);
+            assertTrue(server.isRegistered(firstName));
+            assertTrue(server.isRegistered(secondName));
+
+            second.safeUnregisterMBean();
+            assertFalse(server.isRegistered(secondName));
+            assertNull(second.getRegisteredName());
+            assertTrue(server.isRegistered(firstName));
+        } finally {
+            first.safeUnregisterMBean();
+            second.safeUnregisterMBean();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.github.endoscope.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.github.endoscope.util.JsonUtil;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatMapTest {
+
+    private static Stat stat(long hits){
+        Stat s = new Stat();
+        s.setHits(hits);
+        return s;
+    }
+
+    @Test
+    public void should_work_as_regular_map(){
+        StatMap map = new StatMap(new IdDictionary(100));
+        Map<String, Stat> expected = new HashMap<>();
+        for(int i=0; i<50; i++){
+            map.put("id" + i, stat(i));
+            expected.put("id" + i, stat(i));
+        }
+        Stat replaced = map.put("id7", stat(70));
+        expected.put("id7", stat(70));
+
+        assertEquals(7, replaced.getHits());
+        assertEquals(50, map.size());
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertTrue(map.containsKey("id49"));
+        assertFalse(map.containsKey("id50"));
+        assertNull(map.get("id50"));
+        assertNull(map.get(1));
+    }
+
+    @Test
+    public void should_keep_insertion_order(){
+        StatMap map = new StatMap(new IdDictionary(100));
+        map.put("c", stat(1));
+        map.put("a", stat(2));
+        map.put("b", stat(3));
+
+        List<String> keys = new ArrayList<>();
+        map.forEach((k, v) -> keys.add(k));
+        assertEquals(asList("c", "a", "b"), keys);
+        assertEquals(asList("c", "a", "b"), new ArrayList<>(map.keySet()));
+    }
+
+    @Test
+    public void should_find_by_int(){
+        IdDictionary dictionary = new IdDictionary(100);
+        StatMap map = new StatMap(dictionary);
+        Stat s = stat(1);
+        map.putById(dictionary.intern("x"), "x", s);
+
+        assertSame(s, map.getById(dictionary.intern("x")));
+        assertSame(s, map.get("x"));
+        assertNull(map.getById(dictionary.intern("y")));
+    }
+
+    @Test
+    public void should_not_assign_ints_to_names_put_by_key(){
+        IdDictionary dictionary = new IdDictionary(100);
+        StatMap map = new StatMap(dictionary);
+        map.put("loaded", stat(1));
+        map.replaceKey("loaded", "replaced", stat(2));
+
+        assertEquals(0, dictionary.getSize());
+        assertEquals(2, map.get("replaced").getHits());
+    }
+
+    @Test
+    public void should_find_name_put_by_key_with_int_assigned_later(){
+        IdDictionary dictionary = new IdDictionary(100);
+        StatMap map = new StatMap(dictionary);
+        for(int i=0; i<20; i++){
+            map.put("id" + i, stat(i));
+        }
+        int nameId = dictionary.intern("id7");
+
+        assertEquals(7, map.getById(nameId).getHits());
+        assertEquals(7, map.get("id7").getHits());
+        map.putById(nameId, "id7", stat(70));
+        assertEquals(70, map.get("id7").getHits());
+        assertEquals(20, map.size());
+    }
+
+    @Test
+    public void should_fall_back_to_names_when_dictionary_is_full(){
+        StatMap map = new StatMap(new IdDictionary(1));
+        map.put("a", stat(1));
+        map.put("b", stat(2));
+        map.put("c", stat(3));
+        map.put("b", stat(20));
+
+        assertEquals(3, map.size());
+        assertEquals(1, map.get("a").getHits());
+        assertEquals(20, map.get("b").getHits());
+        assertEquals(3, map.remove("c").getHits());
+        assertNull(map.get("c"));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void should_index_names_without_int_in_big_map(){
+        StatMap map = new StatMap(new IdDictionary(4));
+        for(int i=0; i<1000; i++){
+            map.put("id" + i, stat(i));
+        }
+        for(int i=0; i<1000; i++){
+            assertEquals(i, map.get("id" + i).getHits());
+        }
+        assertNull(map.get("id1000"));
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void should_keep_working_when_growing_and_shrinking_across_small_size(){
+        IdDictionary dictionary = new IdDictionary(100);
+        StatMap map = new StatMap(dictionary);
+        for(int i=0; i<StatMap.SMALL_SIZE * 2; i++){
+            map.putById(dictionary.intern("id" + i), "id" + i, stat(i));
+            for(int j=0; j<=i; j++){
+                assertEquals(j, map.getById(dictionary.intern("id" + j)).getHits());
+            }
+        }
+        for(int i=StatMap.SMALL_SIZE * 2 - 1; i>0; i--){
+            map.remove("id" + i);
+            assertEquals(0, map.getById(dictionary.intern("id0")).getHits());
+            assertNull(map.getById(dictionary.intern("id" + i)));
+        }
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void should_remove_entries(){
+        StatMap map = new StatMap(new IdDictionary(100));
+        for(int i=0; i<20; i++){
+            map.put("id" + i, stat(i));
+        }
+        assertEquals(5, map.remove("id5").getHits());
+        assertNull(map.remove("id5"));
+
+        Iterator<Map.Entry<String, Stat>> it = map.entrySet().iterator();
+        while(it.hasNext()){
+            if( it.next().getValue().getHits() % 2 == 0 ){
+                it.remove();
+            }
+        }
+        assertEquals(9, map.size());
+        for(int i=0; i<20; i++){
+            assertEquals(i % 2 == 1 && i != 5, map.containsKey("id" + i));
+        }
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        map.put("id1", stat(1));
+        assertEquals(1, map.get("id1").getHits());
+    }
+
+    @Test
+    public void should_remove_matching_entries_in_single_pass(){
+        StatMap map = new StatMap(new IdDictionary(10));
+        for(int i=0; i<20; i++){
+            map.put("id" + i, stat(i));
+        }
+
+        assertEquals(10, map.removeIf((id, stat) -> stat.getHits() % 2 == 0));
+
+        assertEquals(10, map.size());
+        List<String> keys = new ArrayList<>(map.keySet());
+        for(int i=0; i<10; i++){
+            assertEquals("id" + (2 * i + 1), keys.get(i));
+            assertEquals(2 * i + 1, map.get("id" + (2 * i + 1)).getHits());
+            assertFalse(map.containsKey("id" + (2 * i)));
+        }
+    }
+
+    @Test
+    public void should_replace_key_in_place(){
+        StatMap map = new StatMap(new IdDictionary(150));
+        for(int i=0; i<100; i++){
+            map.put("id" + i, stat(i));
+        }
+        for(int i=0; i<100; i+=3){
+            assertEquals(i, map.replaceKey("id" + i, "new" + i, stat(1000 + i)).getHits());
+        }
+        assertNull(map.replaceKey("missing", "new", stat(0)));
+
+        assertEquals(100, map.size());
+        List<String> keys = new ArrayList<>(map.keySet());
+        for(int i=0; i<100; i++){
+            String key = (i % 3 == 0 ? "new" : "id") + i;
+            assertEquals(key, keys.get(i));
+            assertEquals(i % 3 == 0 ? 1000 + i : i, map.get(key).getHits());
+            assertEquals(i % 3 != 0, map.containsKey("id" + i));
+        }
+    }
+
+    @Test
+    public void should_write_entry_value_through(){
+        StatMap map = new StatMap(new IdDictionary(100));
+        map.put("a", stat(1));
+        map.entrySet().iterator().next().setValue(stat(2));
+        assertEquals(2, map.get("a").getHits());
+    }
+
+    @Test
+    public void should_deserialize_children_into_stat_map(){
+        Stat parent = new Stat();
+        parent.createChild("child").setHits(3);
+        JsonUtil jsonUtil = new JsonUtil();
+
+        Stat restored = jsonUtil.fromJson(Stat.class, jsonUtil.toJson(parent));
+
+        assertEquals(StatMap.class, restored.getChildren().getClass());
+        assertEquals(parent, restored);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 
+import com.github.endoscope.util.JsonUtil;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -124,6 +125,44 @@ public class StatTest {
         assertEquals(100000000, s.getHits());
     }
 
+    @Test
+    public void should_keep_nanosecond_precision(){
+        Stat s = new Stat();
+        s.updateNanos(1_400_000);
+        s.updateNanos(2_600_001);
+
+        assertEquals(2_600_001, s.getMaxNanos());
+        assertEquals(1_400_000, s.getMinNanos());
+        assertEquals(2_000_000.5, s.getAvgNanos(), 0.0001);
+
+        //millisecond views are rounded
+        assertEquals(3, s.getMax());
+        assertEquals(1, s.getMin());
+        assertEquals(2, s.getAvg());
+    }
+
+    @Test
+    public void should_read_millisecond_only_json(){
+        String json = "{\"hits\":2,\"err\":0,\"max\":30,\"min\":10,\"avg\":20,\"children\":null}";
+
+        Stat s = new JsonUtil().fromJson(Stat.class, json);
+
+        assertEquals(30_000_000, s.getMaxNanos());
+        assertEquals(10_000_000, s.getMinNanos());
+        assertEquals(20_000_000, s.getAvgNanos(), 0.0001);
+    }
+
+    @Test
+    public void should_prefer_nanoseconds_from_json(){
+        Stat s1 = new Stat();
+        s1.updateNanos(1_234_567);
+
+        Stat s2 = new JsonUtil().fromJson(Stat.class, new JsonUtil().toJson(s1));
+
+        assertEquals(s1, s2);
+        assertEquals(1_234_567, s2.getMaxNanos());
+    }
+
     @Test
     public void should_merge_empty_stats(){
         Stat s1 = new Stat();
@@ -280,4 +319,139 @@ public class StatTest {
 
         assertEquals(s1, s2);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void should_report_percentiles(){
+        Stat s = new Stat();
+        for(int i=1; i<=100; i++){
+            s.updateNanos(i * 1000_000L);
+        }
+
+        assertPercentile(50_000_000L, s.getP50Nanos());
+        assertPercentile(95_000_000L, s.getP95Nanos());
+        assertPercentile(99_000_000L, s.getP99Nanos());
+    }
+
+    @Test
+    public void should_not_report_percentiles_without_histogram(){
+        Stat s = new Stat();
+        s.setHits(1);
+        s.setAvgNanos(10);
+        s.setMaxNanos(10);
+        s.setMinNanos(10);
+
+        assertEquals(-1, s.getP50Nanos());
+        assertEquals(-1, s.getP99Nanos());
+    }
+
+    @Test
+    public void should_merge_histograms(){
+        Stat s1 = new Stat();
+        range(0, 90).forEach( i -> s1.updateNanos(1000));
+        Stat s2 = new Stat();
+        range(0, 10).forEach( i -> s2.updateNanos(1000_000));
+
+        s1.merge(s2);
+
+        assertEquals(100, s1.getHistogram().getTotalCount());
+        assertPercentile(1000, s1.getP50Nanos());
+        assertPercentile(1000_000, s1.getP95Nanos());
+    }
+
+    @Test
+    public void should_keep_histogram_in_json(){
+        Stat s = new Stat();
+        range(1, 50).forEach( i -> s.updateNanos(i * 12345L));
+
+        String json = new JsonUtil().toJson(s);
+        Stat restored = new JsonUtil().fromJson(Stat.class, json);
+
+        assertEquals(s.getHistogram(), restored.getHistogram());
+        assertEquals(s.getP95Nanos(), restored.getP95Nanos());
+    }
+
+    private void assertPercentile(long expected, long actual){
+        assertEquals(expected, actual, expected * 0.07);
+    }
+
+    @Test
+    public void should_keep_exact_sum(){
+        Stat s = new Stat();
+        range(0, 1000_000).forEach( i -> s.updateNanos(1_000_003));
+
+        assertEquals(1000_003_000_000L, s.getSumNanos());
+        assertEquals(1_000_003.0, s.getAvgNanos(), 0.0);
+        assertEquals(0.0, s.getStdDevNanos(), 0.0001);
+    }
+
+    @Test
+    public void should_calculate_std_dev(){
+        Stat s = new Stat();
+        for(long time : new long[]{2, 4, 4, 4, 5, 5, 7, 9}){
+            s.updateNanos(time * 1000_000);
+        }
+
+        assertEquals(5_000_000, s.getAvgNanos(), 0.0001);
+        assertEquals(2_000_000, s.getStdDevNanos(), 0.01);
+    }
+
+    @Test
+    public void should_keep_std_dev_precise_for_long_times(){
+        Stat s = new Stat();
+        Stat weighted = new Stat();
+        range(0, 100_000).forEach( i -> s.updateNanos(1000_000_000_000L + i % 2));
+        weighted.updateCalls(s, 3);
+
+        assertEquals(0.5, s.getStdDevNanos(), 0.0001);
+        assertEquals(0.5, weighted.getStdDevNanos(), 0.0001);
+    }
+
+    @Test
+    public void should_merge_std_dev(){
+        Stat all = new Stat();
+        Stat s1 = new Stat();
+        Stat s2 = new Stat();
+        Random r = new Random(1);
+        range(0, 1000).forEach( i -> {
+            long time = 1000_000 + r.nextInt(1000);
+            all.updateNanos(time);
+            (i % 3 == 0 ? s1 : s2).updateNanos(time);
+        });
+
+        s1.merge(s2);
+
+        assertEquals(all.getSumNanos(), s1.getSumNanos());
+        assertEquals(all.getStdDevNanos(), s1.getStdDevNanos(), 0.01);
+    }
+
+    @Test
+    public void should_keep_std_dev_of_calls_added_after_merge(){
+        Stat all = new Stat();
+        Stat merged = new Stat();
+        Stat other = new Stat();
+        Random r = new Random(1);
+        range(0, 3000).forEach( i -> {
+            long time = 1000_000 * (1 + i / 1000) + r.nextInt(1000);
+            all.updateNanos(time);
+            if( i == 2000 ){
+                merged.merge(other);
+            }
+            (i >= 1000 && i < 2000 ? other : merged).updateNanos(time);
+        });
+
+        assertEquals(all.getSumNanos(), merged.getSumNanos());
+        assertEquals(all.getStdDevNanos(), merged.getStdDevNanos(), 0.01);
+        assertEquals(merged.getM2Nanos(), merged.deepCopy().getM2Nanos(), 0.01);
+    }
+
+    @Test
+    public void should_restore_sum_from_old_json(){
+        String json = "{\"hits\":3,\"err\":0,\"max\":30,\"min\":10,\"avg\":20,\"maxNanos\":30000000," +
+                "\"minNanos\":10000000,\"avgNanos\":2.00000005E7,\"children\":null}";
+
+        Stat s = new JsonUtil().fromJson(Stat.class, json);
+
+        assertEquals(60_000_002, s.getSumNanos());
+        assertEquals(0.0, s.getM2Nanos(), 0.0);
+    }
+}
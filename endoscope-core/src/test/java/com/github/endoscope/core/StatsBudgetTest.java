@@ -0,0 +1,103 @@
+package com.github.endoscope.core;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StatsBudgetTest {
+    private static final long BUDGET = 50_000;
+
+    private static long totalHits(Map<String, Stat> stats){
+        return stats.values().stream().mapToLong(Stat::getHits).sum();
+    }
+
+    @Test
+    public void should_prune_cold_roots_into_other(){
+        Stats stats = new Stats();
+        stats.setMaxBytes(BUDGET);
+        for(int i=0; i<100; i++){
+            stats.store(new Context("hot", 1));
+        }
+        for(int i=0; i<2000; i++){
+            stats.store(new Context("cold" + i, 1));
+        }
+
+        assertTrue(stats.getPruned() > 0);
+        assertTrue(stats.estimateBytes() < BUDGET);
+        assertEquals(100, stats.getMap().get("hot").getHits());
+        assertNotNull(stats.getMap().get(Stats.OTHER));
+        assertEquals(2100, totalHits(stats.getMap()));
+    }
+
+    @Test
+    public void should_prune_cold_children_into_other_of_their_parent(){
+        Stats stats = new Stats();
+        stats.setMaxBytes(BUDGET);
+        for(int i=0; i<2000; i++){
+            Context root = new Context("root", 1);
+            root.addChild(new Context("hot", 1));
+            root.addChild(new Context("cold" + i, 1));
+            stats.store(root);
+        }
+
+        Map<String, Stat> children = stats.getMap().get("root").getChildren();
+        assertEquals(2000, children.get("hot").getHits());
+        assertNotNull(children.get(Stats.OTHER));
+        assertEquals(4000, totalHits(children));
+        assertTrue(stats.estimateBytes() < BUDGET);
+    }
+
+    @Test
+    public void should_not_recount_every_tree_when_pruning_cant_get_below_budget(){
+        AtomicInteger recounts = new AtomicInteger();
+        Stats stats = new Stats(){
+            @Override
+            long estimateBytes() {
+                recounts.incrementAndGet();
+                return super.estimateBytes();
+            }
+        };
+        stats.setMaxBytes(100);
+        for(int i=0; i<1000; i++){
+            Context root = new Context("root", 1);
+            root.addChild(new Context("child", 1));
+            stats.store(root);
+        }
+
+        Map<String, Stat> children = stats.getMap().get("root").getChildren();
+        assertNotNull(children.get(Stats.OTHER));
+        assertEquals(1000, totalHits(children));
+        assertTrue("recounted " + recounts.get() + " times", recounts.get() < 100);
+    }
+
+    @Test
+    public void should_not_prune_without_budget(){
+        Stats stats = new Stats();
+        for(int i=0; i<2000; i++){
+            stats.store(new Context("cold" + i, 1));
+        }
+        assertEquals(0, stats.getPruned());
+        assertEquals(2000, stats.getMap().size());
+        assertNull(stats.getMap().get(Stats.OTHER));
+    }
+
+    @Test
+    public void should_keep_pruned_count_in_copy_and_merge(){
+        Stats stats = new Stats();
+        stats.setMaxBytes(BUDGET);
+        for(int i=0; i<2000; i++){
+            stats.store(new Context("cold" + i, 1));
+        }
+        Stats copy = stats.deepCopy();
+        assertEquals(stats.getPruned(), copy.getPruned());
+
+        copy.merge(stats, true);
+        assertEquals(2 * stats.getPruned(), copy.getPruned());
+    }
+}
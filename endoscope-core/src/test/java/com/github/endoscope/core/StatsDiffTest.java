@@ -0,0 +1,114 @@
+package com.github.endoscope.core;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatsDiffTest {
+
+    private static Context tree(String root, String child){
+        Context c = new Context(root, 1);
+        c.addChild(new Context(child, 1));
+        return c;
+    }
+
+    @Test
+    public void should_contain_only_changed_stats(){
+        Stats stats = new Stats();
+        stats.store(tree("a", "a1"));
+        stats.store(tree("b", "b1"));
+        Stats first = stats.snapshot(null);
+
+        stats.store(tree("b", "b2"));
+        StatsDiff diff = stats.snapshot(first).diffSince(first.getGeneration());
+
+        assertFalse(diff.isFull());
+        assertNull(diff.getChanges().getMap().get("a"));
+        assertNull(diff.getChanges().getMap().get("b1"));
+        assertEquals(2, diff.getChanges().getMap().get("b").getHits());
+        assertNull(diff.getChanges().getMap().get("b").getChild("b1"));
+        assertEquals(1, diff.getChanges().getMap().get("b").getChild("b2").getHits());
+        assertEquals(1, diff.getChanges().getMap().get("b2").getHits());
+    }
+
+    @Test
+    public void should_apply_diffs_onto_older_stats(){
+        Random random = new Random(1);
+        Stats stats = new Stats();
+        Stats previous = null;
+        Stats seen = new Stats();
+        for(int i=0; i<20; i++){
+            for(int j=0; j<10; j++){
+                stats.store(RecursiveStore.randomTree(random, 1 + random.nextInt(4), 3, 1 + random.nextInt(5)));
+            }
+            previous = stats.snapshot(previous);
+            StatsDiff diff = previous.diffSince(seen.getGeneration());
+            assertEquals(i == 0, diff.isFull());
+
+            seen = diff.applyTo(seen);
+            assertEquals(previous, seen);
+            assertEquals(previous.getGeneration(), diff.getGeneration());
+        }
+    }
+
+    @Test
+    public void should_be_full_after_untracked_change(){
+        Stats stats = new Stats();
+        stats.store(tree("a", "a1"));
+        long generation = stats.snapshot(null).getGeneration();
+
+        Stats inc = new Stats();
+        inc.store(tree("b", "b1"));
+        stats.merge(inc, true);
+        StatsDiff diff = stats.diffSince(generation);
+
+        assertTrue(diff.isFull());
+        assertEquals(stats.getMap(), diff.applyTo(new Stats()).getMap());
+    }
+
+    @Test
+    public void should_be_full_for_generation_of_other_stats(){
+        Stats stats = new Stats();
+        stats.store(tree("a", "a1"));
+        Stats other = new Stats();
+
+        assertTrue(stats.diffSince(other.getGeneration()).isFull());
+        assertTrue(other.diffSince(stats.getGeneration()).isFull());
+        assertTrue(stats.diffSince(0).isFull());
+    }
+
+    @Test
+    public void should_keep_unchanged_stats_of_older_stats(){
+        Stats stats = new Stats();
+        stats.store(tree("a", "a1"));
+        stats.store(tree("b", "b1"));
+        Stats first = stats.snapshot(null);
+        stats.store(new Context("b", 1));
+
+        Stats applied = stats.snapshot(first).diffSince(first.getGeneration()).applyTo(first);
+
+        assertSame(first.getMap().get("a"), applied.getMap().get("a"));
+        assertSame(first.getMap().get("b").getChild("b1"), applied.getMap().get("b").getChild("b1"));
+        assertEquals(2, applied.getMap().get("b").getHits());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_not_apply_diff_to_stats_missing_older_changes(){
+        Stats stats = new Stats();
+        stats.store(tree("a", "a1"));
+        Stats first = stats.snapshot(null);
+        stats.store(tree("a", "a1"));
+        Stats second = stats.snapshot(first);
+        stats.store(tree("a", "a1"));
+
+        StatsDiff diff = stats.diffSince(second.getGeneration());
+        assertFalse(diff.isFull());
+        diff.applyTo(first);
+    }
+}
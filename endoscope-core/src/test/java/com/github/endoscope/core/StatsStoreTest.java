@@ -0,0 +1,125 @@
+package com.github.endoscope.core;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StatsStoreTest {
+
+    private void assertSameAsRecursive(boolean aggregateSubCalls, Context... trees){
+        Stats expected = new Stats(aggregateSubCalls);
+        RecursiveStore reference = new RecursiveStore(expected, aggregateSubCalls);
+        Stats actual = new Stats(aggregateSubCalls);
+        for(Context tree : trees){
+            reference.store(tree);
+            actual.store(tree);
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void should_store_the_same_as_recursive_walk(){
+        Random random = new Random(1);
+        for(int i=0; i<200; i++){
+            Context tree = RecursiveStore.randomTree(random, 1 + random.nextInt(8), 3, 1 + random.nextInt(10));
+            tree.setWeight(1 + random.nextInt(3));
+            assertSameAsRecursive(true, tree);
+            assertSameAsRecursive(false, tree);
+        }
+    }
+
+    @Test
+    public void should_store_many_trees_the_same_as_recursive_walk(){
+        Random random = new Random(2);
+        Context[] trees = new Context[50];
+        for(int i=0; i<trees.length; i++){
+            trees[i] = RecursiveStore.randomTree(random, 1 + random.nextInt(6), 3, 6);
+        }
+        assertSameAsRecursive(true, trees);
+        assertSameAsRecursive(false, trees);
+    }
+
+    @Test
+    public void should_store_repeated_shapes_the_same_as_recursive_walk(){
+        Random random = new Random(3);
+        Context[] shapes = new Context[20];
+        for(int i=0; i<shapes.length; i++){
+            shapes[i] = RecursiveStore.randomTree(random, 1 + random.nextInt(5), 3, 5);
+        }
+        Context[] trees = new Context[500];
+        for(int i=0; i<trees.length; i++){
+            trees[i] = shapes[random.nextInt(shapes.length)];
+        }
+        assertSameAsRecursive(true, trees);
+        assertSameAsRecursive(false, trees);
+    }
+
+    @Test
+    public void should_not_use_shapes_of_replaced_map(){
+        Context tree = RecursiveStore.deepTree(3, 1);
+        Stats stats = new Stats();
+        stats.store(tree);
+        stats.store(tree);
+        stats.store(tree);
+        assertEquals(3, stats.getMap().get("level0").getHits());
+
+        stats.setMap(new StatMap());
+        stats.store(tree);
+        assertEquals(1, stats.getMap().get("level0").getHits());
+        assertEquals(1, stats.getMap().get("level0").getChild("level1").getChild("leaf0").getHits());
+    }
+
+    @Test
+    public void should_store_repeated_shape_within_limit(){
+        Context tree = RecursiveStore.deepTree(5, 1);
+        Stats stats = new Stats();
+        stats.setStatsLeft(4);
+        stats.store(tree);
+        Stats first = stats.deepCopy();
+
+        stats.store(tree);
+        stats.store(tree);
+
+        assertEquals(0, stats.getStatsLeft());
+        assertTripled(first.getMap(), stats.getMap());
+    }
+
+    private void assertTripled(Map<String, Stat> first, Map<String, Stat> current){
+        if( first == null ){
+            assertNull(current);
+            return;
+        }
+        assertEquals(first.keySet(), current.keySet());
+        first.forEach((id, stat) -> {
+            assertEquals(3 * stat.getHits(), current.get(id).getHits());
+            assertTripled(stat.getChildren(), current.get(id).getChildren());
+        });
+    }
+
+    @Test
+    public void should_store_deep_trees(){
+        assertSameAsRecursive(true, RecursiveStore.deepTree(100, 2));
+
+        Stats stats = new Stats();
+        stats.store(RecursiveStore.deepTree(20, 0));
+        Stat stat = stats.getMap().get("level10");
+        for(int d=11; d<20; d++){
+            stat = stat.getChild("level" + d);
+        }
+        assertEquals(1, stat.getHits());
+        assertEquals(20, stats.getMap().size());
+    }
+
+    @Test
+    public void should_respect_stats_limit(){
+        Stats stats = new Stats();
+        stats.setStatsLeft(5);
+        stats.store(RecursiveStore.deepTree(20, 2));
+        assertEquals(0, stats.getStatsLeft());
+        assertEquals(1, stats.getMap().get("level0").getHits());
+    }
+}
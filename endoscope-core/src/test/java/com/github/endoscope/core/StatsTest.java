@@ -171,4 +171,45 @@ public class StatsTest {
         assertEquals(1, stats.getMap().get("parent").getErr());
         assertEquals(1, stats.getMap().get("parent").getChild("child").getErr());
     }
-}
\ No newline at end of file
+
+    private static Context tree(String root, String child){
+        Context c = new Context(root, 1);
+        c.addChild(new Context(child, 1));
+        return c;
+    }
+
+    @Test
+    public void should_share_unchanged_stats_with_previous_snapshot(){
+        Stats stats = new Stats();
+        stats.store(tree("a", "a1"));
+        stats.store(tree("b", "b1"));
+        Stats first = stats.snapshot(null);
+
+        stats.store(tree("b", "b2"));
+        Stats second = stats.snapshot(first);
+
+        Assert.assertSame(first.getMap().get("a"), second.getMap().get("a"));
+        Assert.assertSame(first.getMap().get("a1"), second.getMap().get("a1"));
+        Assert.assertNotSame(first.getMap().get("b"), second.getMap().get("b"));
+        Assert.assertSame(first.getMap().get("b").getChild("b1"), second.getMap().get("b").getChild("b1"));
+        assertEquals(1, first.getMap().get("b").getHits());
+        assertEquals(stats.deepCopy(), second);
+        assertEquals(stats.getMap(), second.getMap());
+    }
+
+    @Test
+    public void should_copy_everything_after_merge(){
+        Stats stats = new Stats();
+        stats.store(tree("a", "a1"));
+        Stats first = stats.snapshot(null);
+
+        Stats inc = new Stats();
+        inc.store(tree("a", "a1"));
+        stats.merge(inc, true);
+        Stats second = stats.snapshot(first);
+
+        Assert.assertNotSame(first.getMap().get("a1"), second.getMap().get("a1"));
+        assertEquals(2, second.getMap().get("a").getChild("a1").getHits());
+        assertEquals(1, first.getMap().get("a").getChild("a1").getHits());
+    }
+}
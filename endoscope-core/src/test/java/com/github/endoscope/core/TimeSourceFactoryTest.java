@@ -0,0 +1,57 @@
+package com.github.endoscope.core;
+
+import com.github.endoscope.properties.Properties;
+import org.junit.Test;
+
+import static com.github.endoscope.util.PropertyTestUtil.withProperty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSourceFactoryTest {
+    @Test
+    public void should_create_nano_time_source_by_default(){
+        assertEquals(NanoTimeSource.class, new TimeSourceFactory().safeCreate().getClass());
+    }
+
+    @Test
+    public void should_create_coarse_time_source(){
+        withProperty(Properties.TIME_SOURCE, TimeSourceFactory.COARSE, () -> {
+            TimeSource ts = new TimeSourceFactory().safeCreate();
+            assertEquals(CoarseTimeSource.class, ts.getClass());
+            ((CoarseTimeSource)ts).stop();
+        });
+    }
+
+    @Test
+    public void should_create_custom_time_source(){
+        withProperty(Properties.TIME_SOURCE, FixedTimeSource.class.getName(), () -> {
+            assertEquals(FixedTimeSource.class, new TimeSourceFactory().safeCreate().getClass());
+        });
+    }
+
+    @Test
+    public void should_fall_back_to_nano_time_source(){
+        withProperty(Properties.TIME_SOURCE, "no.such.Clazz", () -> {
+            assertEquals(NanoTimeSource.class, new TimeSourceFactory().safeCreate().getClass());
+        });
+    }
+
+    @Test
+    public void should_advance_coarse_time() throws InterruptedException {
+        CoarseTimeSource ts = new CoarseTimeSource();
+        try {
+            long start = ts.nanoTime();
+            Thread.sleep(20);
+            assertTrue(ts.nanoTime() > start);
+        } finally {
+            ts.stop();
+        }
+    }
+
+    public static class FixedTimeSource implements TimeSource {
+        @Override
+        public long nanoTime() {
+            return 1;
+        }
+    }
+}
@@ -46,6 +46,35 @@ public class StatsPersistenceTest {
         verifyNoMoreInteractions(storage);
     }
 
+    @Test
+    public void should_tell_time_left_to_save() throws Exception {
+        given(dateUtil.now()).willReturn(new Date(2), new Date(ONE_MINUTE_MS), new Date(SAVE_FEQ * ONE_MINUTE_MS + 10));
+
+        StatsPersistence statsPersistence = new StatsPersistence(storage, dateUtil, APP_INSTANCE, APP_TYPE, SAVE_FEQ, DAYS_TO_KEEP);
+
+        assertEquals((SAVE_FEQ - 1) * ONE_MINUTE_MS + 2, statsPersistence.threadSafeMillisToSave());
+        assertEquals(0, statsPersistence.threadSafeMillisToSave());
+    }
+
+    @Test
+    public void should_wait_with_save_after_error() throws Exception {
+        given(dateUtil.now()).willReturn(new Date(2));
+        given(storage.save(any(), any(), any())).willThrow(RuntimeException.class);
+        StatsPersistence statsPersistence = new StatsPersistence(storage, dateUtil, APP_INSTANCE, APP_TYPE, ONE_MINUTE, DAYS_TO_KEEP);
+
+        statsPersistence.safeSave(new Stats());
+
+        assertEquals(5 * ONE_MINUTE_MS, statsPersistence.threadSafeMillisToSave());
+    }
+
+    @Test
+    public void should_never_save_without_storage() throws Exception {
+        given(dateUtil.now()).willReturn(new Date(2));
+        StatsPersistence statsPersistence = new StatsPersistence(null, dateUtil, APP_INSTANCE, APP_TYPE, SAVE_FEQ, DAYS_TO_KEEP);
+
+        assertEquals(Long.MAX_VALUE, statsPersistence.threadSafeMillisToSave());
+    }
+
     @Test
     public void should_not_save() throws Exception {
         given(dateUtil.now()).willReturn(new Date(2), new Date(10 * 60 * 1000 -1));
@@ -14,6 +14,7 @@ import com.github.endoscope.core.Stats;
 import com.github.endoscope.storage.jdbc.JdbcStorage;
 import com.github.endoscope.storage.jdbc.ListUtil;
 import com.github.endoscope.storage.jdbc.dto.StatEntity;
+import com.github.endoscope.storage.jdbc.handler.StatEntityHandler;
 import com.github.endoscope.util.JsonUtil;
 import org.slf4j.Logger;
 
@@ -40,8 +41,8 @@ public class ClobJdbcStorage extends JdbcStorage {
         //one record per each top level stat and all children as a JSON
 
         final String sql = "INSERT INTO " + tablePrefix
-                + "endoscopeStat(id, groupId, rootId, name, hits, err, max, min, avg, hasChildren, children) "
-                + " values(?,?,?,?,?,?,?,?,?,?,?)";
+                + "endoscopeStat(id, groupId, rootId, name, hits, err, max, min, avg, hasChildren, maxNanos, minNanos, avgNanos, histogram, sumNanos, m2Nanos, children) "
+                + " values(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
             stats.getMap().forEach((statName, stat) -> {
@@ -59,13 +60,19 @@ public class ClobJdbcStorage extends JdbcStorage {
                     stmt.setObject(8, stat.getMin());
                     stmt.setObject(9, stat.getAvg());
                     stmt.setObject(10, stat.getChildren() != null ? 1 : 0);
+                    stmt.setObject(11, stat.getMaxNanos());
+                    stmt.setObject(12, stat.getMinNanos());
+                    stmt.setObject(13, stat.getAvgNanos());
+                    stmt.setString(14, StatEntityHandler.encodeHistogram(stat));
+                    stmt.setObject(15, stat.getSumNanos());
+                    stmt.setObject(16, stat.getM2Nanos());
 
                     String json = getJsonData(stat);
                     //not supported by Postgresql driver - we need to use regular string
                     // Clob clob = conn.createClob();
                     // clob.setString(1, json);
-                    // stmt.setClob(11, clob);
-                    stmt.setString(11, json);
+                    // stmt.setClob(17, clob);
+                    stmt.setString(17, json);
 
                     stmt.addBatch();
 
@@ -11,15 +11,16 @@ import java.util.Map;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.github.endoscope.core.Stat;
 import com.github.endoscope.storage.jdbc.dto.StatEntity;
+import com.github.endoscope.storage.jdbc.handler.StatEntityHandler;
 import com.github.endoscope.util.JsonUtil;
 import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.io.IOUtils;
 
 public class ClobStatEntityHandler implements ResultSetHandler<List<StatEntity>> {
     //index is safer as column names are sometimes upper cased and sometimes not - depends on DB
-    public static final String STAT_FIELDS =           "id, groupId, name, hits, err, max, min, avg, hasChildren, children";
-    public static final String STAT_FIELDS_TOP_LEVEL = "id, groupId, name, hits, err, max, min, avg, hasChildren";
-    //                                                   1,       2,    3,    4,   5,   6,   7,   8,           9,       10
+    public static final String STAT_FIELDS =           "id, groupId, name, hits, err, max, min, avg, hasChildren, maxNanos, minNanos, avgNanos, histogram, sumNanos, m2Nanos, children";
+    public static final String STAT_FIELDS_TOP_LEVEL = "id, groupId, name, hits, err, max, min, avg, hasChildren, maxNanos, minNanos, avgNanos, histogram, sumNanos, m2Nanos";
+    //                                                   1,       2,    3,    4,   5,   6,   7,   8,           9,       10,       11,       12,        13,       14,              15,       16
 
     private boolean topLevelOnly = false;
     private JsonUtil jsonUtil = new JsonUtil();
@@ -57,15 +58,18 @@ public class ClobStatEntityHandler implements ResultSetHandler<List<StatEntity>>
             stat.setMax(rs.getLong(6));
             stat.setMin(rs.getLong(7));
             stat.setAvg(rs.getLong(8));
+            StatEntityHandler.readNanos(rs, 10, stat);
+            StatEntityHandler.readHistogram(rs, 13, stat);
+            StatEntityHandler.readSums(rs, 14, stat);
             Long hasChildren = rs.getLong(9);
             if( hasChildren > 0 ){
                 if( topLevelOnly ){
                     stat.ensureChildrenMap();
                 } else {
                     //not supported by Postgresql driver - we need to use regular string
-                    // Clob clob = rs.getClob(10);
+                    // Clob clob = rs.getClob(16);
                     // String json = readString(clob);
-                    String json = rs.getString(10);
+                    String json = rs.getString(16);
                     StatMapWrapper data = jsonUtil.fromJson(StatMapWrapper.class, json);
                     stat.setChildren(data.getMap());
                 }
@@ -178,8 +178,8 @@ public class JdbcStorage implements Storage {
         int[] result = run.batch(conn,
                 //endoscopeStat OR endoscopeDailyStat
                 "INSERT INTO " + tablePrefix
-                        + "endoscopeStat(id, groupId, parentId, rootId, name, hits, err, max, min, avg, hasChildren) "
-                        + " values(?,?,?,?,?,?,?,?,?,?,?)",
+                        + "endoscopeStat(id, groupId, parentId, rootId, name, hits, err, max, min, avg, hasChildren, maxNanos, minNanos, avgNanos, histogram, sumNanos, m2Nanos) "
+                        + " values(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)",
                 data);
         long errors = Arrays.stream(result)
                 .filter( i -> i < 0 && i != Statement.SUCCESS_NO_INFO )
@@ -203,7 +203,10 @@ public class JdbcStorage implements Storage {
             resultList.add(new Object[]{
                     statId, groupId, parentId, fixedRootId, statName,
                     stat.getHits(), stat.getErr(), stat.getMax(), stat.getMin(), stat.getAvg(),
-                    stat.getChildren() != null ? 1 : 0
+                    stat.getChildren() != null ? 1 : 0,
+                    stat.getMaxNanos(), stat.getMinNanos(), stat.getAvgNanos(),
+                    StatEntityHandler.encodeHistogram(stat),
+                    stat.getSumNanos(), stat.getM2Nanos()
             });
             if( stat.getChildren() != null ){
                 prepareStatsData(groupId, statId, fixedRootId, stat.getChildren(), resultList);
@@ -35,7 +35,13 @@ public class Schema {
                             "  max INT, " +
                             "  min INT, " +
                             "  avg INT, " +
-                            "  hasChildren INT " +
+                            "  hasChildren INT, " +
+                            "  maxNanos BIGINT, " +
+                            "  minNanos BIGINT, " +
+                            "  avgNanos DOUBLE, " +
+                            "  histogram VARCHAR, " +
+                            "  sumNanos BIGINT, " +
+                            "  m2Nanos DOUBLE " +
                             ")");
 
             run.update(
@@ -50,7 +56,13 @@ public class Schema {
                             "  max INT, " +
                             "  min INT, " +
                             "  avg INT, " +
-                            "  hasChildren INT " +
+                            "  hasChildren INT, " +
+                            "  maxNanos BIGINT, " +
+                            "  minNanos BIGINT, " +
+                            "  avgNanos DOUBLE, " +
+                            "  histogram VARCHAR, " +
+                            "  sumNanos BIGINT, " +
+                            "  m2Nanos DOUBLE " +
                             ")");
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -86,6 +98,12 @@ public class Schema {
                             "  min INT, " +
                             "  avg INT, " +
                             "  hasChildren INT, " +
+                            "  maxNanos BIGINT, " +
+                            "  minNanos BIGINT, " +
+                            "  avgNanos DOUBLE, " +
+                            "  histogram VARCHAR, " +
+                            "  sumNanos BIGINT, " +
+                            "  m2Nanos DOUBLE, " +
                             "  children CLOB " +
                             ")");
 
@@ -100,7 +118,13 @@ public class Schema {
                             "  max INT, " +
                             "  min INT, " +
                             "  avg INT, " +
-                            "  hasChildren INT " +
+                            "  hasChildren INT, " +
+                            "  maxNanos BIGINT, " +
+                            "  minNanos BIGINT, " +
+                            "  avgNanos DOUBLE, " +
+                            "  histogram VARCHAR, " +
+                            "  sumNanos BIGINT, " +
+                            "  m2Nanos DOUBLE " +
                             ")");
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -5,14 +5,15 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.github.endoscope.core.LatencyHistogram;
 import com.github.endoscope.core.Stat;
 import com.github.endoscope.storage.jdbc.dto.StatEntity;
 import org.apache.commons.dbutils.ResultSetHandler;
 
 public class StatEntityHandler implements ResultSetHandler<List<StatEntity>> {
     //index is safer as column names are sometimes upper cased and sometimes not - depends on DB
-    public static final String STAT_FIELDS = "id, groupId, parentId, name, hits, err, max, min, avg, hasChildren";
-    //                                         1,       2,        3,    4,    5,   6,   7,   8,   9,          10
+    public static final String STAT_FIELDS = "id, groupId, parentId, name, hits, err, max, min, avg, hasChildren, maxNanos, minNanos, avgNanos, histogram, sumNanos, m2Nanos";
+    //                                         1,       2,        3,    4,    5,   6,   7,   8,   9,          10,       11,       12,       13,        14,       15,              16
 
     public List<StatEntity> handle(ResultSet rs) throws SQLException {
         List<StatEntity> result = new ArrayList<>();
@@ -30,6 +31,9 @@ public class StatEntityHandler implements ResultSetHandler<List<StatEntity>> {
             stat.setMax(rs.getLong(7));
             stat.setMin(rs.getLong(8));
             stat.setAvg(rs.getLong(9));
+            readNanos(rs, 11, stat);
+            readHistogram(rs, 14, stat);
+            readSums(rs, 15, stat);
 
             Long hasChildren = rs.getLong(10);
             if( hasChildren > 0 ){
@@ -39,4 +43,47 @@ public class StatEntityHandler implements ResultSetHandler<List<StatEntity>> {
         }
         return result;
     }
+
+    /**
+     * Stats saved before nanosecond columns were added have nulls there - we keep millisecond values in such case.
+     * @param rs
+     * @param index index of maxNanos column followed by minNanos and avgNanos
+     * @param stat
+     */
+    public static void readNanos(ResultSet rs, int index, Stat stat) throws SQLException {
+        long maxNanos = rs.getLong(index);
+        if( rs.wasNull() ){
+            return;
+        }
+        stat.setMaxNanos(maxNanos);
+        stat.setMinNanos(rs.getLong(index + 1));
+        stat.setAvgNanos(rs.getDouble(index + 2));
+    }
+
+    /**
+     * Stats saved before sum columns were added have nulls there - we keep sum restored from average in such case.
+     * Must be called after {@link #readNanos(ResultSet, int, Stat)}.
+     * @param rs
+     * @param index index of sumNanos column followed by m2Nanos
+     * @param stat
+     */
+    public static void readSums(ResultSet rs, int index, Stat stat) throws SQLException {
+        long sumNanos = rs.getLong(index);
+        if( rs.wasNull() ){
+            return;
+        }
+        stat.setSumNanos(sumNanos);
+        stat.setM2Nanos(rs.getDouble(index + 1));
+    }
+
+    /**
+     * Stats saved before histogram column was added have null there.
+     */
+    public static void readHistogram(ResultSet rs, int index, Stat stat) throws SQLException {
+        stat.setHistogram(LatencyHistogram.decode(rs.getString(index)));
+    }
+
+    public static String encodeHistogram(Stat stat){
+        return stat.getHistogram() == null ? null : stat.getHistogram().encode();
+    }
 }
@@ -484,4 +484,47 @@ public abstract class AggregatedStorageTestCases {
         verifyNoMoreInteractions(weeklyStorage);
         verifyNoMoreInteractions(monthlyStorage);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldMergePercentilesIntoExistingAggregate(){
+        //given
+        Stats stats = new Stats();
+        stats.setStartDate(parse("2000-03-03 13:15:12"));
+        stats.setEndDate(parse("2000-03-03 13:25:07"));
+        Stat slow = new Stat();
+        for(int i=0; i<10; i++){
+            slow.update(1000);
+        }
+        stats.getMap().put("x", slow);
+
+        given(dailyStorage.find(
+                eq(parse("2000-03-03 00:00:01")),
+                eq(parse("2000-03-03 23:59:58")),
+                isNull(String.class),
+                eq("type")
+        )).willReturn(
+                asList("daily-stat-id")
+        );
+
+        Stats existing = new Stats();
+        existing.setStartDate(parse("2000-03-03 00:00:00"));
+        existing.setEndDate(parse("2000-03-03 23:59:59"));
+        Stat fast = new Stat();
+        for(int i=0; i<90; i++){
+            fast.update(10);
+        }
+        existing.getMap().put("x", fast);
+        given(dailyStorage.load(eq("daily-stat-id"))).willReturn(existing);
+
+        //when
+        storage.save(stats, "instance", "type");
+
+        //then
+        verify(dailyStorage).replace(eq("daily-stat-id"), statsCaptor.capture(), isNull(String.class), eq("type"));
+
+        Stat merged = statsCaptor.getValue().getMap().get("x");
+        assertEquals(100, merged.getHistogram().getTotalCount());
+        assertEquals(10_000_000L, merged.getP50Nanos(), 10_000_000L * 0.07);
+        assertEquals(1000_000_000L, merged.getP95Nanos(), 1000_000_000L * 0.07);
+    }
+}
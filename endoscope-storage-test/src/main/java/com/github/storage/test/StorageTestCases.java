@@ -1,6 +1,7 @@
 package com.github.storage.test;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -527,4 +528,24 @@ public abstract class StorageTestCases {
         assertEquals( 100L, stat.getMax());
         assertEquals( 100L, stat.getMin());
     }
+
+    @Test
+    public void should_load_aggregated_percentiles_of_all_instances() throws IOException{
+        //given
+        long[] fast = new long[90];
+        Arrays.fill(fast, 10);
+        long[] slow = new long[10];
+        Arrays.fill(slow, 1000);
+        storage.save(stats( dt(year+"-01-01 08:00:00"), dt(year+"-01-01 08:10:00"), stat(fast)), "i1", "t1");
+        storage.save(stats( dt(year+"-01-01 08:00:00"), dt(year+"-01-01 08:10:00"), stat(slow)), "i2", "t1");
+
+        //when
+        Stats aggregated = storage.loadAggregated(false, dt(year+"-01-01 07:00:00"), dt(year+"-01-01 09:30:00"), null, "t1");
+
+        //then
+        Stat stat = aggregated.getMap().get(STAT_NAME);
+        assertEquals( 100L, stat.getHits());
+        assertEquals( 10_000_000L, stat.getP50Nanos(), 10_000_000L * 0.07);
+        assertEquals( 1000_000_000L, stat.getP95Nanos(), 1000_000_000L * 0.07);
+    }
 }
@@ -89,6 +89,13 @@ public class StatsDataController {
         return noCacheResponse(jsonUtil.toJson(histogram));
     }
 
+    @GET
+    @Path("/data/self")
+    @Produces("application/json")
+    public Response self(){
+        return noCacheResponse(jsonUtil.toJson(Endoscope.getSelfMetrics()));
+    }
+
     private Stats topLevelForRange(TimeRange range) {
         Stats result;
         if( canSearch(range) ){
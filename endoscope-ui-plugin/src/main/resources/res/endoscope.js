@@ -384,9 +384,11 @@
         switch(options.sortField){
             case "hits": return (a.hits - b.hits) * options.sortDirection;
             case "err":  return (a.err - b.err)   * options.sortDirection;
-            case "min":  return (a.min - b.min)   * options.sortDirection;
-            case "max":  return (a.max - b.max)   * options.sortDirection;
-            case "avg":  return (a.avg - b.avg)   * options.sortDirection;
+            case "min":  return (timeMs(a, "min") - timeMs(b, "min")) * options.sortDirection;
+            case "max":  return (timeMs(a, "max") - timeMs(b, "max")) * options.sortDirection;
+            case "avg":  return (timeMs(a, "avg") - timeMs(b, "avg")) * options.sortDirection;
+            case "p95":  return (timeMs(a, "p95") - timeMs(b, "p95")) * options.sortDirection;
+            case "p99":  return (timeMs(a, "p99") - timeMs(b, "p99")) * options.sortDirection;
             default:
                 if( a.id == b.id ){
                     return 0;
@@ -570,7 +572,8 @@
             { id: "bad",  data: extractSeries(histogram, "bad"),  lines: { show: true, lineWidth: 1 }, color: "#e74c3c" },
             { id: "min",  data: extractSeries(histogram, "min"),  lines: { show: true, lineWidth: 0, fill: false }, color: "#33b5e5" },
             { id: "max",  data: extractSeries(histogram, "max"),  lines: { show: true, lineWidth: 0, fill: 0.4 }, color: "#33b5e5", fillBetween: "min"},
-            { label: "Average Time [ms]", id: "avg",  data: extractSeries(histogram, "avg"), lines: { show: true, lineWidth: 3 }, color: "#33b5e5" }
+            { label: "Average Time [ms]", id: "avg",  data: extractSeries(histogram, "avg"), lines: { show: true, lineWidth: 3 }, color: "#33b5e5" },
+            { label: "95th Percentile [ms]", id: "p95",  data: extractSeries(histogram, "p95"), lines: { show: true, lineWidth: 1 }, color: "#aa66cc" }
         ];
         container = $(".es-details .es-chart-times");
         container.empty();
@@ -612,11 +615,13 @@
         } else {
             histogram.forEach(function(h){
                 var time = (h.startDate + h.endDate)/2;
-                var tick = [time, h[property]];
+                var tick = [time, property == "hits" ? h[property] : timeMs(h, property)];
                 if( property == "hits" ){
                     //convert to average tick per second, as total hits doesn't look well espiecially when tick length may differ
                     var seconds = (h.endDate - h.startDate)/1000;
                     tick[1] = tick[1]/seconds;
+                } else if( tick[1] < 0 ){
+                    return;//not available - e.g. no percentiles in old data
                 }
                 result.push(tick);
             });
@@ -648,13 +653,34 @@
 
         row.find(".es-id").append(indent(level)).append(id);
         addNumberValue( row.find(".es-err"), obj.err);
-        addNumberValue( row.find(".es-max"), obj.max);
-        addNumberValue( row.find(".es-min"), obj.min);
-        addNumberValue( row.find(".es-avg"), obj.avg);
+        addNumberValue( row.find(".es-max"), timeMs(obj, "max"));
+        addNumberValue( row.find(".es-min"), timeMs(obj, "min"));
+        addNumberValue( row.find(".es-avg"), timeMs(obj, "avg"));
+        addOptionalTimeValue( row.find(".es-p95"), timeMs(obj, "p95"));
+        addOptionalTimeValue( row.find(".es-p99"), timeMs(obj, "p99"));
 
         return row;
     };
 
+    //prefer nanosecond values when available - data stored by older versions has milliseconds only
+    var timeMs = function(obj, property){
+        var nanos = obj[property + "Nanos"];
+        if( nanos == null ){
+            return obj[property];
+        }
+        if( nanos < 0 ){
+            return -1;
+        }
+        return Math.round(nanos / 10000) / 100;
+    };
+
+    //percentiles are not available in data stored by older versions
+    var addOptionalTimeValue = function(el, val){
+        if( val != null && val >= 0 ){
+            addNumberValue(el, val);
+        }
+    };
+
     var addNumberValue = function(el, val){
         var tpl = valueTemplate(val);
         if( tpl ){